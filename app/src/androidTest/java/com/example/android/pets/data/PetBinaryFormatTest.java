@@ -0,0 +1,90 @@
+package com.example.android.pets.data;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link PetBinaryFormat#isValidUtf8} accepts the first and last encodings of every
+ * sequence length and rejects overlong encodings, surrogates and code points above U+10FFFF.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetBinaryFormatTest {
+
+    @Test
+    public void acceptsValidUtf8() {
+        assertValid();
+        assertValid(0x00);
+        assertValid(0x7F);
+        assertValid(0xC2, 0x80);
+        assertValid(0xDF, 0xBF);
+        assertValid(0xE0, 0xA0, 0x80);
+        assertValid(0xED, 0x9F, 0xBF);
+        assertValid(0xEE, 0x80, 0x80);
+        assertValid(0xEF, 0xBF, 0xBF);
+        assertValid(0xF0, 0x90, 0x80, 0x80);
+        assertValid(0xF4, 0x8F, 0xBF, 0xBF);
+        assertValid('P', 0xC3, 0xA9, 't');
+    }
+
+    @Test
+    public void rejectsOverlongEncodings() {
+        assertInvalid(0xC0, 0x80);
+        assertInvalid(0xC1, 0xBF);
+        assertInvalid(0xE0, 0x80, 0x80);
+        assertInvalid(0xE0, 0x9F, 0xBF);
+        assertInvalid(0xF0, 0x80, 0x80, 0x80);
+        assertInvalid(0xF0, 0x8F, 0xBF, 0xBF);
+    }
+
+    @Test
+    public void rejectsSurrogatesAndCodePointsAboveTheLast() {
+        assertInvalid(0xED, 0xA0, 0x80);
+        assertInvalid(0xED, 0xBF, 0xBF);
+        assertInvalid(0xF4, 0x90, 0x80, 0x80);
+        assertInvalid(0xF5, 0x80, 0x80, 0x80);
+    }
+
+    @Test
+    public void rejectsMissingAndStrayContinuationBytes() {
+        assertInvalid(0x80);
+        assertInvalid(0xC3);
+        assertInvalid(0xE2, 0x82);
+        assertInvalid(0xC3, 0x28);
+        assertInvalid(0xF0, 0x90, 0x80, 0x28);
+    }
+
+    private static void assertValid(int... bytes) {
+        assertTrue(hex(bytes), isValidUtf8(bytes));
+    }
+
+    private static void assertInvalid(int... bytes) {
+        assertFalse(hex(bytes), isValidUtf8(bytes));
+    }
+
+    /** Check the bytes in the middle of a buffer, the range must not depend on its position */
+    private static boolean isValidUtf8(int[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 2);
+        buffer.put((byte) 0xFF);
+        for (int b : bytes) {
+            buffer.put((byte) b);
+        }
+        buffer.put((byte) 0xFF);
+        buffer.position(0);
+        return PetBinaryFormat.isValidUtf8(buffer, 1, 1 + bytes.length);
+    }
+
+    private static String hex(int[] bytes) {
+        final StringBuilder text = new StringBuilder();
+        for (int b : bytes) {
+            text.append(String.format("%02X ", b));
+        }
+        return text.toString().trim();
+    }
+}
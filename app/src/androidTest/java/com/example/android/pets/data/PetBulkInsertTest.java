@@ -0,0 +1,107 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+/**
+ * Inserts the same pets one at a time and with {@link PetProvider#bulkInsert}, and logs the rows
+ * per second of both paths. The test runs on a database of its own, which is deleted afterwards.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetBulkInsertTest {
+
+    private static final String LOG_TAG = PetBulkInsertTest.class.getSimpleName();
+
+    private static final int PET_COUNT = 2000;
+
+    /** Prefix of the names of the test pets, so they can be told apart from the user's */
+    private static final String NAME_PREFIX = "Bulk insert test ";
+
+    private static final String DATABASE_NAME = "pets_bulk_insert_test.db";
+
+    private PetTestProvider mProvider;
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mProvider = new PetTestProvider(InstrumentationRegistry.getTargetContext(),
+                DATABASE_NAME);
+        mResolver = mProvider.getResolver();
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.close();
+    }
+
+    @Test
+    public void bulkInsertWritesTheSamePetsAsSingleInserts() {
+        final ContentValues[] pets = createPets();
+
+        long startNanos = System.nanoTime();
+        for (ContentValues pet : pets) {
+            assertNotNull(mResolver.insert(PetEntry.CONTENT_URI, pet));
+        }
+        final long singleNanos = System.nanoTime() - startNanos;
+        assertEquals(PET_COUNT, deleteTestPets());
+
+        startNanos = System.nanoTime();
+        assertEquals(PET_COUNT, mResolver.bulkInsert(PetEntry.CONTENT_URI, pets));
+        final long bulkNanos = System.nanoTime() - startNanos;
+        assertEquals(PET_COUNT, deleteTestPets());
+
+        Log.i(LOG_TAG, "Single inserts: " + rowsPerSecond(singleNanos) + " rows/s, bulkInsert: "
+                + rowsPerSecond(bulkNanos) + " rows/s");
+    }
+
+    @Test
+    public void invalidPetRejectsTheWholeBatch() {
+        final ContentValues[] pets = createPets();
+        pets[PET_COUNT - 1].remove(PetEntry.COLUMN_PET_NAME);
+
+        try {
+            mResolver.bulkInsert(PetEntry.CONTENT_URI, pets);
+            fail("A pet without a name was accepted");
+        } catch (IllegalArgumentException expected) {
+            // Nothing is written before every pet is validated
+        }
+        assertEquals(0, deleteTestPets());
+    }
+
+    private static ContentValues[] createPets() {
+        final ContentValues[] pets = new ContentValues[PET_COUNT];
+        for (int i = 0; i < PET_COUNT; i++) {
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, NAME_PREFIX + i);
+            values.put(PetEntry.COLUMN_PET_BREED, "Beagle");
+            values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_FEMALE);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, 1 + i % 40);
+            pets[i] = values;
+        }
+        return pets;
+    }
+
+    private static long rowsPerSecond(long nanos) {
+        return (nanos > 0) ? Math.round(PET_COUNT / (nanos / 1e9)) : 0;
+    }
+
+    /** Delete the pets of the test and return how many there were */
+    private int deleteTestPets() {
+        return mResolver.delete(PetEntry.CONTENT_URI, PetEntry.COLUMN_PET_NAME + " LIKE ?",
+                new String[] { NAME_PREFIX + "%" });
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the pets database runs in write-ahead logging mode, where a long write
+ * transaction does not block the readers on other threads. It runs on a database of its own.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetDbHelperTest {
+
+    /** Time a read may take while the write transaction is open */
+    private static final long READ_TIMEOUT_SECONDS = 2;
+
+    /** Time the write transaction is held open at most */
+    private static final long WRITE_TIMEOUT_SECONDS = 10;
+
+    /** Pets inserted by the write transaction before the read starts */
+    private static final int WRITE_COUNT = 5000;
+
+    private static final String DATABASE_NAME = "pets_db_helper_test.db";
+
+    private Context mContext;
+    private PetDbHelper mWriterHelper;
+    private PetDbHelper mReaderHelper;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+
+        // Two helpers have their own connections, like two processes would
+        mWriterHelper = new PetDbHelper(mContext, DATABASE_NAME, PetDbHelper.SYNCHRONOUS_NORMAL,
+                1000);
+        mReaderHelper = new PetDbHelper(mContext, DATABASE_NAME, PetDbHelper.SYNCHRONOUS_NORMAL,
+                1000);
+        mWriterHelper.getWritableDatabase();
+        mReaderHelper.getReadableDatabase();
+    }
+
+    @After
+    public void tearDown() {
+        mWriterHelper.close();
+        mReaderHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void databaseIsInWalMode() {
+        assertEquals("wal", DatabaseUtils.stringForQuery(mReaderHelper.getReadableDatabase(),
+                "PRAGMA journal_mode", null).toLowerCase());
+    }
+
+    @Test
+    public void readerIsNotBlockedByWriteTransaction() throws InterruptedException {
+        final long petCount = countPets(mReaderHelper.getReadableDatabase());
+        final CountDownLatch writing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // beginTransaction() is exclusive, without WAL it would lock the readers out. The writer
+        // keeps inserting pets until the read is done, so the read runs during the writes.
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = mWriterHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    ContentValues values = new ContentValues();
+                    values.put(PetEntry.COLUMN_PET_BREED, "Beagle");
+                    values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
+                    values.put(PetEntry.COLUMN_PET_WEIGHT, 12);
+
+                    final long deadline = System.nanoTime()
+                            + TimeUnit.SECONDS.toNanos(WRITE_TIMEOUT_SECONDS);
+                    int written = 0;
+                    while (release.getCount() > 0 && System.nanoTime() < deadline) {
+                        values.put(PetEntry.COLUMN_PET_NAME, "Uncommitted " + written);
+                        db.insert(PetEntry.TABLE_NAME, null, values);
+                        if (++written == WRITE_COUNT) {
+                            writing.countDown();
+                        }
+                    }
+                } finally {
+                    // Rolled back, the test leaves the pets as they were
+                    db.endTransaction();
+                }
+            }
+        });
+
+        final long[] readCount = { -1 };
+        final CountDownLatch read = new CountDownLatch(1);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readCount[0] = countPets(mReaderHelper.getReadableDatabase());
+                read.countDown();
+            }
+        });
+
+        writer.start();
+        try {
+            assertTrue(writing.await(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            reader.start();
+
+            assertTrue("Reader blocked by the write transaction",
+                    read.await(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            assertEquals(petCount, readCount[0]);
+        } finally {
+            release.countDown();
+            writer.join();
+            reader.join();
+        }
+    }
+
+    private static long countPets(SQLiteDatabase db) {
+        return DatabaseUtils.queryNumEntries(db, PetEntry.TABLE_NAME);
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs concurrent inserts through the group commit of {@link PetProvider}, so they share one
+ * transaction, with one of them rejected. The test counts every pet of the table, so it runs on
+ * a database of its own.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetGroupCommitTest {
+
+    /** Long enough for every insert of the test to join the first group */
+    private static final long WINDOW_MILLIS = 500;
+
+    private static final int WRITER_COUNT = 8;
+
+    /** The writer whose pet has no name */
+    private static final int FAILING_WRITER = 3;
+
+    private static final String DATABASE_NAME = "pets_group_commit_test.db";
+
+    private PetTestProvider mProvider;
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mProvider = new PetTestProvider(InstrumentationRegistry.getTargetContext(),
+                DATABASE_NAME);
+        mResolver = mProvider.getResolver();
+        setGroupCommitWindow(WINDOW_MILLIS);
+    }
+
+    @After
+    public void tearDown() {
+        // The writer thread only stops once group commit is off
+        setGroupCommitWindow(0);
+        mProvider.close();
+    }
+
+    @Test
+    public void rejectedWriteDoesNotFailItsGroup() throws InterruptedException {
+        final Uri[] uris = new Uri[WRITER_COUNT];
+        final RuntimeException[] errors = new RuntimeException[WRITER_COUNT];
+        final CountDownLatch start = new CountDownLatch(1);
+
+        Thread[] writers = new Thread[WRITER_COUNT];
+        for (int i = 0; i < WRITER_COUNT; i++) {
+            final int writer = i;
+            writers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    ContentValues values = new ContentValues();
+                    if (writer != FAILING_WRITER) {
+                        values.put(PetEntry.COLUMN_PET_NAME, "Pet " + writer);
+                    }
+                    values.put(PetEntry.COLUMN_PET_BREED, "Beagle");
+                    values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_FEMALE);
+                    values.put(PetEntry.COLUMN_PET_WEIGHT, 10 + writer);
+
+                    try {
+                        start.await();
+                        uris[writer] = mResolver.insert(PetEntry.CONTENT_URI, values);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (RuntimeException e) {
+                        errors[writer] = e;
+                    }
+                }
+            });
+            writers[i].start();
+        }
+
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertTrue(errors[FAILING_WRITER] instanceof IllegalArgumentException);
+        for (int i = 0; i < WRITER_COUNT; i++) {
+            if (i != FAILING_WRITER) {
+                assertEquals("Writer " + i + " failed", null, errors[i]);
+                assertNotNull(uris[i]);
+                assertEquals("Pet " + i, queryName(uris[i]));
+            }
+        }
+        assertEquals(WRITER_COUNT - 1, countPets());
+    }
+
+    private String queryName(Uri uri) {
+        Cursor cursor = mResolver.query(uri, new String[] { PetEntry.COLUMN_PET_NAME }, null,
+                null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int countPets() {
+        Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, new String[] { PetEntry._ID },
+                null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void setGroupCommitWindow(long windowMillis) {
+        Bundle extras = new Bundle();
+        extras.putLong(PetContract.EXTRA_GROUP_COMMIT_WINDOW_MILLIS, windowMillis);
+        mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_SET_GROUP_COMMIT, null, extras);
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Upgrades a populated version 1 database through every step of {@link PetMigrations} and
+ * checks that the pets are kept and the tables, triggers and indexes of the later versions work
+ * on them.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetMigrationsTest {
+
+    private static final String DATABASE_NAME = "pets_migrations_test.db";
+
+    /** Database created at the current version, next to the upgraded one */
+    private static final String NEW_DATABASE_NAME = "pets_migrations_test_new.db";
+
+    /** The pets table of version 1, the only table of that version */
+    private static final String CREATE_VERSION_1 = "CREATE TABLE pets ("
+            + "_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+            + "name TEXT,"
+            + "breed TEXT,"
+            + "gender INTEGER,"
+            + "weight INTEGER);";
+
+    /** Pets of the version 1 database: name, breed, gender and weight, in _ID order */
+    private static final Object[][] PETS = {
+            { "Bella", "Beagle", PetEntry.GENDER_FEMALE, 10 },
+            { "Max", "Beagle", PetEntry.GENDER_MALE, 20 },
+            { "Luna", "Siamese", null, null },
+            { "Coco", null, PetEntry.GENDER_MALE, 5 }
+    };
+
+    private Context mContext;
+    private PetDbHelper mDbHelper;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mContext.deleteDatabase(DATABASE_NAME);
+
+        SQLiteDatabase db = mContext.openOrCreateDatabase(DATABASE_NAME, Context.MODE_PRIVATE,
+                null);
+        try {
+            db.execSQL(CREATE_VERSION_1);
+            for (Object[] pet : PETS) {
+                db.execSQL("INSERT INTO pets (name, breed, gender, weight) VALUES (?, ?, ?, ?)",
+                        pet);
+            }
+            db.setVersion(1);
+        } finally {
+            db.close();
+        }
+
+        mDbHelper = new PetDbHelper(mContext, DATABASE_NAME, PetDbHelper.SYNCHRONOUS_NORMAL,
+                1000);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        mContext.deleteDatabase(DATABASE_NAME);
+    }
+
+    @Test
+    public void upgradeKeepsThePets() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        assertEquals(8, db.getVersion());
+
+        Cursor cursor = db.query(PetEntry.TABLE_NAME, new String[] { PetEntry._ID,
+                        PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED,
+                        PetEntry.COLUMN_PET_GENDER, PetEntry.COLUMN_PET_WEIGHT,
+                        PetEntry.COLUMN_DELETED, PetEntry.COLUMN_CHANGE_SEQ },
+                null, null, null, null, PetEntry._ID);
+        try {
+            assertEquals(PETS.length, cursor.getCount());
+            for (Object[] pet : PETS) {
+                cursor.moveToNext();
+                assertEquals(pet[0], cursor.getString(1));
+                assertEquals(pet[1], cursor.getString(2));
+                assertEquals(pet[2], cursor.isNull(3) ? null : cursor.getInt(3));
+                assertEquals(pet[3], cursor.isNull(4) ? null : cursor.getInt(4));
+                assertEquals(0, cursor.getLong(5));
+
+                // The existing pets get their _ID as change sequence
+                assertEquals(cursor.getLong(0), cursor.getLong(6));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void upgradeIndexesAndCountsThePets() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        assertEquals(1, count(db, "SELECT docid FROM " + PetDbHelper.FTS_TABLE_NAME
+                + " WHERE " + PetDbHelper.FTS_TABLE_NAME + " MATCH 'siamese'"));
+        assertEquals(2, count(db, "SELECT docid FROM " + PetDbHelper.FTS_TABLE_NAME
+                + " WHERE " + PetDbHelper.FTS_TABLE_NAME + " MATCH 'b*'"));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            assertTrue(DatabaseUtils.stringForQuery(db, "SELECT sql FROM sqlite_master WHERE "
+                    + "name = '" + PetDbHelper.FTS_TABLE_NAME + "'", null).contains("prefix"));
+        }
+
+        // Gender, pet count, weight sum and weight count, a null gender counts as unknown
+        assertEquals("0,1,0,0;1,2,25,2;2,1,10,1", readRows(db, "SELECT "
+                + PetStatsEntry.COLUMN_GENDER + ", " + PetStatsEntry.COLUMN_PET_COUNT + ", "
+                + PetStatsEntry.COLUMN_WEIGHT_SUM + ", " + PetStatsEntry.COLUMN_WEIGHT_COUNT
+                + " FROM " + PetStatsEntry.GENDER_TABLE_NAME + " ORDER BY 1"));
+        assertEquals(",1;Beagle,2;Siamese,1", readRows(db, "SELECT "
+                + PetStatsEntry.COLUMN_BREED + ", " + PetStatsEntry.COLUMN_PET_COUNT + " FROM "
+                + PetStatsEntry.BREED_TABLE_NAME + " ORDER BY 1"));
+
+        assertEquals(PETS.length, DatabaseUtils.longForQuery(db, "SELECT "
+                + PetDbHelper.COLUMN_LAST_CHANGE_SEQ + " FROM "
+                + PetDbHelper.CHANGE_STATE_TABLE_NAME, null));
+
+        for (String index : new String[] { "pet_breed_stats_count", "pets_deleted",
+                "pets_change_seq", "pets_name", "pets_breed", "pets_weight", "pets_gender",
+                "pets_gender_name", "pets_gender_breed", "pets_gender_weight" }) {
+            assertEquals(index, 1, count(db, "SELECT name FROM sqlite_master WHERE type = "
+                    + "'index' AND name = '" + index + "'"));
+        }
+    }
+
+    @Test
+    public void upgradedTriggersTrackNewPets() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Milo");
+        values.put(PetEntry.COLUMN_PET_BREED, "Siamese");
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_FEMALE);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 4);
+        final long id = db.insert(PetEntry.TABLE_NAME, null, values);
+
+        assertEquals(PETS.length + 1, DatabaseUtils.longForQuery(db, "SELECT "
+                + PetEntry.COLUMN_CHANGE_SEQ + " FROM " + PetEntry.TABLE_NAME + " WHERE "
+                + PetEntry._ID + " = " + id, null));
+        assertEquals(2, DatabaseUtils.longForQuery(db, "SELECT "
+                + PetStatsEntry.COLUMN_PET_COUNT + " FROM " + PetStatsEntry.BREED_TABLE_NAME
+                + " WHERE " + PetStatsEntry.COLUMN_BREED + " = 'Siamese'", null));
+        assertEquals(1, count(db, "SELECT docid FROM " + PetDbHelper.FTS_TABLE_NAME
+                + " WHERE " + PetDbHelper.FTS_TABLE_NAME + " MATCH 'milo'"));
+    }
+
+    @Test
+    public void onlyNewDatabasesUseIncrementalVacuum() {
+        // Switching the upgraded database would take a VACUUM of all of its pets
+        assertEquals(0, DatabaseUtils.longForQuery(mDbHelper.getWritableDatabase(),
+                "PRAGMA auto_vacuum", null));
+
+        mContext.deleteDatabase(NEW_DATABASE_NAME);
+        PetDbHelper newDbHelper = new PetDbHelper(mContext, NEW_DATABASE_NAME,
+                PetDbHelper.SYNCHRONOUS_NORMAL, 1000);
+        try {
+            assertEquals(PetDbHelper.AUTO_VACUUM_INCREMENTAL, DatabaseUtils.longForQuery(
+                    newDbHelper.getWritableDatabase(), "PRAGMA auto_vacuum", null));
+        } finally {
+            newDbHelper.close();
+            mContext.deleteDatabase(NEW_DATABASE_NAME);
+        }
+    }
+
+    private static int count(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** Rows of a query as text, columns separated by "," and rows by ";" */
+    private static String readRows(SQLiteDatabase db, String sql) {
+        final StringBuilder rows = new StringBuilder();
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                if (rows.length() > 0) {
+                    rows.append(';');
+                }
+                for (int i = 0; i < cursor.getColumnCount(); i++) {
+                    if (i > 0) {
+                        rows.append(',');
+                    }
+                    rows.append(cursor.getString(i));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows.toString();
+    }
+}
@@ -0,0 +1,480 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * {@link PetProviderBenchmark} measures the throughput and latency of the hot paths of
+ * {@link PetProvider} on tables of increasing size, through the same {@link ContentResolver}
+ * calls the app makes.
+ *
+ * For every table size, the pets table is emptied and filled by {@link PetDataGenerator}, then
+ * each operation runs a fixed number of times on random pets. Every call is timed on its own,
+ * and the operations per second and the latency percentiles of each operation are written as
+ * JSON, together with the objects and bytes allocated per call on the calling thread, so runs
+ * on different commits can be compared. The insert and bulk_insert operations write the same
+ * pets one by one and in batches, so their rows per second compare the two insert paths.
+ *
+ * It runs as an instrumented test against its own provider and database, the pets of the app
+ * are never touched, and writes its results to the benchmarks directory of the files of the
+ * app. It takes several minutes, so it only runs when the instrumentation argument
+ * {@link #ARGUMENT_BENCHMARK} is true, e.g. with
+ * {@code ./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.benchmark=true}.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class PetProviderBenchmark {
+
+    private static final String LOG_TAG = PetProviderBenchmark.class.getSimpleName();
+
+    /** Instrumentation argument that turns the benchmark on */
+    private static final String ARGUMENT_BENCHMARK = "benchmark";
+
+    /** Database of the provider of the benchmark, deleted after the run */
+    private static final String DATABASE_NAME = "pets_benchmark.db";
+
+    /** Table sizes measured by default */
+    private static final int[] DEFAULT_TABLE_SIZES = { 1000, 100000, 1000000 };
+
+    /** Number of timed calls of each operation for one table size */
+    private static final int OPERATION_COUNT = 1000;
+
+    /** The allocation pass of an operation makes one call for this many timed calls */
+    private static final int ALLOCATION_CALL_RATIO = 10;
+
+    /** Number of pets of a list page or of a bulk insert */
+    private static final int PAGE_SIZE = 100;
+
+    /** Prefixes searched for, they match the generated names and breeds */
+    private static final String[] SEARCH_QUERIES = {
+            "ba", "lu", "mo", "ri", "terrier", "golden", "ma", "pe", "si", "zu"
+    };
+
+    private static final String[] PET_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    private static final String[] LIST_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED
+    };
+
+    private Context mContext;
+    private PetTestProvider mProvider;
+    private ContentResolver mResolver;
+    private final Random mRandom = new Random(7);
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(Boolean.parseBoolean(
+                InstrumentationRegistry.getArguments().getString(ARGUMENT_BENCHMARK)));
+
+        mContext = InstrumentationRegistry.getTargetContext();
+        mProvider = new PetTestProvider(mContext, DATABASE_NAME);
+        mResolver = mProvider.getResolver();
+    }
+
+    @After
+    public void tearDown() {
+        if (mProvider != null) {
+            mProvider.close();
+        }
+    }
+
+    /** Write the results to a JSON file named after the time of the run */
+    @Test
+    public void runBenchmark() throws IOException, JSONException {
+        File output = new File(new File(mContext.getFilesDir(), "benchmarks"),
+                "pet_provider_" + System.currentTimeMillis() + ".json");
+        run(DEFAULT_TABLE_SIZES, output);
+        Log.d(LOG_TAG, "Benchmark results written to " + output);
+    }
+
+    /**
+     * Run the benchmark for each table size and write the results to the given file.
+     *
+     * @return the results
+     */
+    private JSONObject run(int[] tableSizes, File output) throws IOException, JSONException {
+        JSONObject results = new JSONObject();
+        results.put("timestamp", System.currentTimeMillis());
+        results.put("device", Build.MODEL);
+        results.put("sdk", Build.VERSION.SDK_INT);
+        results.put("operation_count", OPERATION_COUNT);
+
+        JSONArray runs = new JSONArray();
+        for (int tableSize : tableSizes) {
+            runs.put(runTableSize(tableSize));
+        }
+        results.put("runs", runs);
+
+        File directory = output.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(output), "UTF-8");
+        try {
+            writer.write(results.toString(2));
+        } finally {
+            writer.close();
+        }
+        return results;
+    }
+
+    /**
+     * Remove the pets with an _ID above the given one at once, so the pets added by the inserts
+     * of a pass do not count in the next one. The database belongs to the benchmark, the pets of
+     * the app are not in it.
+     */
+    private void deletePetsAfter(long lastId) {
+        mResolver.delete(PetEntry.CONTENT_URI, PetEntry._ID + " > ?",
+                new String[] { String.valueOf(lastId) });
+        mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_PURGE_DELETED, null, null);
+    }
+
+    private JSONObject runTableSize(int tableSize) throws JSONException {
+        deletePetsAfter(0);
+
+        // Filling the table measures the bulk insert throughput on large batches
+        final long fillStartNanos = System.nanoTime();
+        final long generatedRows = new PetDataGenerator.Builder().setRowCount(tableSize).build()
+                .generate(mResolver, null);
+        final double fillSeconds = (System.nanoTime() - fillStartNanos) / 1e9;
+        assertEquals(tableSize, generatedRows);
+        assertEquals(tableSize, countPets());
+
+        // The generated pets are inserted in order into an empty table, so their IDs follow
+        // each other from the ID of the first pet
+        final long firstId = getFirstId();
+        final long lastId = firstId + tableSize - 1;
+
+        final long[] insertedIds = new long[OPERATION_COUNT];
+        final Operation[] operations = createOperations(firstId, tableSize, insertedIds);
+
+        // Every operation is timed first, then its allocations are counted in a shorter pass
+        // since counting slows the allocations down. Both passes start from the generated pets.
+        Map<String, Timings> timings = new LinkedHashMap<>();
+        for (Operation operation : operations) {
+            timings.put(operation.mName, measure(operation));
+        }
+        deletePetsAfter(lastId);
+        assertEquals(tableSize, countPets());
+
+        for (Operation operation : operations) {
+            countAllocations(operation, timings.get(operation.mName));
+        }
+        deletePetsAfter(lastId);
+        assertEquals(tableSize, countPets());
+
+        JSONObject run = new JSONObject();
+        run.put("table_size", tableSize);
+        run.put("fill_rows_per_sec", (fillSeconds > 0) ? tableSize / fillSeconds : 0);
+
+        JSONObject operationResults = new JSONObject();
+        for (Map.Entry<String, Timings> entry : timings.entrySet()) {
+            operationResults.put(entry.getKey(), entry.getValue().toJson());
+        }
+        run.put("operations", operationResults);
+
+        Log.d(LOG_TAG, "Measured " + tableSize + " pets");
+        return run;
+    }
+
+    private long getFirstId() {
+        Cursor cursor = mResolver.query(PetEntry.buildPageUri(0, 1), LIST_PROJECTION,
+                null, null, null);
+        if (cursor == null) {
+            return 0;
+        }
+
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long countPets() {
+        Cursor cursor = mResolver.query(PetEntry.CONTENT_URI, new String[] { "COUNT(*)" },
+                null, null, null);
+        assertNotNull(cursor);
+
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long randomId(long firstId, int tableSize) {
+        return firstId + mRandom.nextInt(tableSize);
+    }
+
+    /**
+     * The measured operations, in the order they run. The deletes remove the pets added by the
+     * inserts through their IDs, so the size of the table does not drift.
+     */
+    private Operation[] createOperations(final long firstId, final int tableSize,
+                                         final long[] insertedIds) {
+        final ContentValues updateValues = new ContentValues(4);
+        final ContentValues[] batch = new ContentValues[PAGE_SIZE];
+        final ByteArrayOutputStream binaryBatch = new ByteArrayOutputStream();
+
+        return new Operation[] {
+                new Operation("query_pet_id", OPERATION_COUNT, 1) {
+                    @Override
+                    void run(int index) {
+                        final Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI,
+                                randomId(firstId, tableSize));
+                        readAll(mResolver.query(uri, PET_PROJECTION, null, null, null));
+                    }
+                },
+                new Operation("query_page", OPERATION_COUNT, PAGE_SIZE) {
+                    @Override
+                    void run(int index) {
+                        final Uri uri = PetEntry.buildPageUri(randomId(firstId, tableSize),
+                                PAGE_SIZE);
+                        readAll(mResolver.query(uri, LIST_PROJECTION, null, null, null));
+                    }
+                },
+                new Operation("query_search", OPERATION_COUNT, 1) {
+                    @Override
+                    void run(int index) {
+                        final Uri uri = PetEntry.buildSearchUri(
+                                SEARCH_QUERIES[mRandom.nextInt(SEARCH_QUERIES.length)], PAGE_SIZE);
+                        readAll(mResolver.query(uri, LIST_PROJECTION, null, null, null));
+                    }
+                },
+                // The editor saves every column of a pet
+                new Operation("update_pet_id", OPERATION_COUNT, 1) {
+                    @Override
+                    void run(int index) {
+                        final Uri uri = ContentUris.withAppendedId(PetEntry.CONTENT_URI,
+                                randomId(firstId, tableSize));
+                        updateValues.put(PetEntry.COLUMN_PET_NAME, "Updated " + index);
+                        updateValues.put(PetEntry.COLUMN_PET_BREED, "Beagle");
+                        updateValues.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_FEMALE);
+                        updateValues.put(PetEntry.COLUMN_PET_WEIGHT, 1 + mRandom.nextInt(60));
+                        assertEquals(1, mResolver.update(uri, updateValues, null, null));
+                    }
+                },
+                new Operation("insert", OPERATION_COUNT, 1) {
+                    @Override
+                    void run(int index) {
+                        final Uri uri = mResolver.insert(PetEntry.CONTENT_URI, createPet(index));
+                        assertNotNull(uri);
+                        insertedIds[index] = ContentUris.parseId(uri);
+                    }
+                },
+                new Operation("delete_pet_id", OPERATION_COUNT, 1) {
+                    @Override
+                    void run(int index) {
+                        assertEquals(1, mResolver.delete(ContentUris.withAppendedId(
+                                PetEntry.CONTENT_URI, insertedIds[index]), null, null));
+                    }
+                },
+                // The same number of pets as the inserts, in batches of a page
+                new Operation("bulk_insert", OPERATION_COUNT / PAGE_SIZE, PAGE_SIZE) {
+                    @Override
+                    void run(int index) {
+                        for (int i = 0; i < batch.length; i++) {
+                            batch[i] = createPet(index * PAGE_SIZE + i);
+                        }
+                        assertEquals(PAGE_SIZE, mResolver.bulkInsert(PetEntry.CONTENT_URI, batch));
+                    }
+                },
+                // The same batches, packed in the binary format
+                new Operation("bulk_insert_binary", OPERATION_COUNT / PAGE_SIZE, PAGE_SIZE) {
+                    @Override
+                    void run(int index) {
+                        binaryBatch.reset();
+                        try {
+                            PetBinaryFormat.Writer writer = new PetBinaryFormat.Writer(binaryBatch);
+                            for (int i = 0; i < PAGE_SIZE; i++) {
+                                writer.writePet("Bench " + (index * PAGE_SIZE + i), "Beagle",
+                                        PetEntry.GENDER_UNKNOWN, 10);
+                            }
+                            writer.flush();
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+
+                        Bundle extras = new Bundle();
+                        extras.putByteArray(PetContract.EXTRA_PETS_DATA, binaryBatch.toByteArray());
+                        Bundle result = mResolver.call(PetEntry.CONTENT_URI,
+                                PetContract.METHOD_BULK_INSERT_BINARY, null, extras);
+                        assertNotNull(result);
+                        assertEquals(PAGE_SIZE, result.getInt(PetContract.EXTRA_INSERTED_ROWS));
+                    }
+                }
+        };
+    }
+
+    /** Time every call of the operation */
+    private static Timings measure(Operation operation) {
+        Timings timings = new Timings(operation.mCallCount, operation.mRowsPerCall);
+
+        for (int i = 0; i < operation.mCallCount; i++) {
+            final long startNanos = System.nanoTime();
+            operation.run(i);
+            timings.add(System.nanoTime() - startNanos);
+        }
+        return timings;
+    }
+
+    /** Count the objects and bytes allocated by the calls of the operation on this thread */
+    @SuppressWarnings("deprecation")
+    private static void countAllocations(Operation operation, Timings timings) {
+        final int callCount = Math.max(1, operation.mCallCount / ALLOCATION_CALL_RATIO);
+
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        try {
+            for (int i = 0; i < callCount; i++) {
+                operation.run(i);
+            }
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        timings.setAllocations(callCount, Debug.getThreadAllocCount(),
+                Debug.getThreadAllocSize());
+    }
+
+    private static ContentValues createPet(int index) {
+        ContentValues values = new ContentValues(4);
+        values.put(PetEntry.COLUMN_PET_NAME, "Bench " + index);
+        values.put(PetEntry.COLUMN_PET_BREED, "Beagle");
+        values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_UNKNOWN);
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 10);
+        return values;
+    }
+
+    /** Read every row of the cursor, so the measure includes filling its window, and close it */
+    private static void readAll(Cursor cursor) {
+        assertNotNull(cursor);
+
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** A measured call of the provider, run with the index of the call */
+    private abstract static class Operation {
+
+        final String mName;
+        final int mCallCount;
+        final int mRowsPerCall;
+
+        Operation(String name, int callCount, int rowsPerCall) {
+            mName = name;
+            mCallCount = callCount;
+            mRowsPerCall = rowsPerCall;
+        }
+
+        abstract void run(int index);
+    }
+
+    /** Durations of the calls of one operation */
+    private static final class Timings {
+
+        private final long[] mNanos;
+        private final int mRowsPerCall;
+        private int mCount;
+
+        private double mAllocationsPerCall;
+        private double mAllocatedBytesPerCall;
+
+        Timings(int capacity, int rowsPerCall) {
+            mNanos = new long[capacity];
+            mRowsPerCall = rowsPerCall;
+        }
+
+        void add(long nanos) {
+            mNanos[mCount++] = nanos;
+        }
+
+        void setAllocations(int callCount, long allocations, long allocatedBytes) {
+            mAllocationsPerCall = (double) allocations / callCount;
+            mAllocatedBytesPerCall = (double) allocatedBytes / callCount;
+        }
+
+        JSONObject toJson() throws JSONException {
+            final long[] nanos = Arrays.copyOf(mNanos, mCount);
+            Arrays.sort(nanos);
+
+            long total = 0;
+            for (long value : nanos) {
+                total += value;
+            }
+            final double seconds = total / 1e9;
+
+            JSONObject json = new JSONObject();
+            json.put("count", mCount);
+            json.put("ops_per_sec", (seconds > 0) ? mCount / seconds : 0);
+            json.put("rows_per_sec", (seconds > 0) ? mCount * mRowsPerCall / seconds : 0);
+            json.put("p50_us", percentile(nanos, 50) / 1000);
+            json.put("p90_us", percentile(nanos, 90) / 1000);
+            json.put("p99_us", percentile(nanos, 99) / 1000);
+            json.put("max_us", (mCount == 0) ? 0 : nanos[mCount - 1] / 1000);
+            json.put("allocations_per_call", mAllocationsPerCall);
+            json.put("allocated_bytes_per_call", mAllocatedBytesPerCall);
+            return json;
+        }
+
+        private static long percentile(long[] sortedValues, int percentile) {
+            if (sortedValues.length == 0) {
+                return 0;
+            }
+            final int index = (int) Math.ceil(percentile / 100.0 * sortedValues.length) - 1;
+            return sortedValues[Math.max(0, index)];
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Queries the sort orders and filters of the pets list URI, whole and page by page, and checks
+ * the pets they return against the pets filtered and sorted here. The query plan watchdog runs
+ * every statement through EXPLAIN QUERY PLAN and rejects the ones that scan the pets table or
+ * sort into a temporary B-tree, so the plans of the same queries are checked too. The lists
+ * cover the whole table, so the test runs on a database of its own.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetProviderFilterTest {
+
+    private static final int PET_COUNT = 500;
+    private static final int PAGE_SIZE = 40;
+
+    private static final String DATABASE_NAME = "pets_filter_test.db";
+
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    private static final String[] SORT_ORDERS = {
+            null, PetEntry.SORT_BY_NAME, PetEntry.SORT_BY_BREED, PetEntry.SORT_BY_WEIGHT
+    };
+
+    private static final Integer[] GENDERS = { null, PetEntry.GENDER_MALE };
+
+    /** Weight ranges, a null bound is open */
+    private static final Integer[][] WEIGHT_RANGES = {
+            { null, null }, { 10, null }, { null, 30 }, { 10, 30 }, { 25, 25 }
+    };
+
+    private static final String[] NAMES = { "Bella", "Max", "Luna", "Charlie", "Milo", "Coco" };
+    private static final String[] BREEDS = { "Beagle", "Poodle", "Tabby", "Siamese", "Pug" };
+
+    /** A pet as it was inserted */
+    private static final class Pet {
+        final long mId;
+        final String mName;
+        final String mBreed;
+        final int mGender;
+        final int mWeight;
+
+        Pet(long id, String name, String breed, int gender, int weight) {
+            mId = id;
+            mName = name;
+            mBreed = breed;
+            mGender = gender;
+            mWeight = weight;
+        }
+    }
+
+    private PetTestProvider mProvider;
+    private ContentResolver mResolver;
+    private final List<Pet> mPets = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        mProvider = new PetTestProvider(InstrumentationRegistry.getTargetContext(),
+                DATABASE_NAME);
+        mResolver = mProvider.getResolver();
+
+        final Random random = new Random(22);
+        for (int i = 0; i < PET_COUNT; i++) {
+            final String name = NAMES[random.nextInt(NAMES.length)] + random.nextInt(50);
+            final String breed = BREEDS[random.nextInt(BREEDS.length)];
+            final int gender = random.nextInt(3);
+            final int weight = 1 + random.nextInt(60);
+
+            ContentValues values = new ContentValues();
+            values.put(PetEntry.COLUMN_PET_NAME, name);
+            values.put(PetEntry.COLUMN_PET_BREED, breed);
+            values.put(PetEntry.COLUMN_PET_GENDER, gender);
+            values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
+            final Uri uri = mResolver.insert(PetEntry.CONTENT_URI, values);
+            mPets.add(new Pet(ContentUris.parseId(uri), name, breed, gender, weight));
+        }
+
+        // Any plan that scans or sorts the pets fails its query
+        setWatchdog(PetContract.WATCHDOG_MODE_THROW);
+    }
+
+    @After
+    public void tearDown() {
+        mProvider.close();
+    }
+
+    @Test
+    public void pagesReturnTheFilteredPetsInOrder() {
+        for (String sortOrder : SORT_ORDERS) {
+            for (Integer gender : GENDERS) {
+                for (Integer[] range : WEIGHT_RANGES) {
+                    final Uri listUri = PetEntry.buildFilterUri(gender, range[0], range[1]);
+                    assertEquals(listUri + " " + sortOrder,
+                            getExpectedIds(sortOrder, gender, range[0], range[1]),
+                            queryPages(listUri, sortOrder));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void queriesReturnTheFilteredPetsInOrder() {
+        for (String sortOrder : SORT_ORDERS) {
+            for (Integer gender : GENDERS) {
+                for (Integer[] range : WEIGHT_RANGES) {
+                    // The whole table is a full scan of the table or of the index of the sort
+                    // order, which the watchdog rejects without a limit
+                    if (gender == null && range[0] == null && range[1] == null) {
+                        continue;
+                    }
+
+                    final Uri listUri = PetEntry.buildFilterUri(gender, range[0], range[1]);
+                    List<Long> expected = getExpectedIds(sortOrder, gender, range[0], range[1]);
+                    List<Long> ids = queryIds(listUri, sortOrder);
+
+                    // Without a sort order the pets come in the order of the index SQLite chose
+                    if (sortOrder == null) {
+                        Collections.sort(expected);
+                        Collections.sort(ids);
+                    }
+                    assertEquals(listUri + " " + sortOrder, expected, ids);
+                }
+            }
+        }
+    }
+
+    /** Read every page of a list URI in a sort order, like the catalog does */
+    private List<Long> queryPages(Uri listUri, String sortOrder) {
+        final List<Long> ids = new ArrayList<>();
+        final String sortColumn = getSortColumn(sortOrder);
+        String afterValue = null;
+        long afterId = 0;
+
+        while (true) {
+            Cursor cursor = mResolver.query(
+                    PetEntry.buildPageUri(listUri, afterValue, afterId, PAGE_SIZE), PROJECTION,
+                    null, null, sortOrder);
+            final int count;
+            try {
+                count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    afterId = cursor.getLong(cursor.getColumnIndexOrThrow(PetEntry._ID));
+                    if (sortColumn != null) {
+                        afterValue = cursor.getString(cursor.getColumnIndexOrThrow(sortColumn));
+                    }
+                    ids.add(afterId);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (count < PAGE_SIZE) {
+                return ids;
+            }
+        }
+    }
+
+    private List<Long> queryIds(Uri uri, String sortOrder) {
+        final List<Long> ids = new ArrayList<>();
+        Cursor cursor = mResolver.query(uri, PROJECTION, null, null, sortOrder);
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(cursor.getColumnIndexOrThrow(PetEntry._ID)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    /** IDs of the inserted pets that match the filters, in the sort order and then by _ID */
+    private List<Long> getExpectedIds(final String sortOrder, Integer gender, Integer minWeight,
+                                      Integer maxWeight) {
+        final List<Pet> pets = new ArrayList<>();
+        for (Pet pet : mPets) {
+            if ((gender == null || pet.mGender == gender)
+                    && (minWeight == null || pet.mWeight >= minWeight)
+                    && (maxWeight == null || pet.mWeight <= maxWeight)) {
+                pets.add(pet);
+            }
+        }
+
+        // The names and breeds are ASCII, their String order is the order of SQLite
+        Collections.sort(pets, new Comparator<Pet>() {
+            @Override
+            public int compare(Pet a, Pet b) {
+                int result = 0;
+                if (PetEntry.SORT_BY_NAME.equals(sortOrder)) {
+                    result = a.mName.compareTo(b.mName);
+                } else if (PetEntry.SORT_BY_BREED.equals(sortOrder)) {
+                    result = a.mBreed.compareTo(b.mBreed);
+                } else if (PetEntry.SORT_BY_WEIGHT.equals(sortOrder)) {
+                    result = a.mWeight - b.mWeight;
+                }
+                return (result != 0) ? result : (a.mId < b.mId ? -1 : (a.mId == b.mId ? 0 : 1));
+            }
+        });
+
+        final List<Long> ids = new ArrayList<>();
+        for (Pet pet : pets) {
+            ids.add(pet.mId);
+        }
+        return ids;
+    }
+
+    private static String getSortColumn(String sortOrder) {
+        if (PetEntry.SORT_BY_NAME.equals(sortOrder)) {
+            return PetEntry.COLUMN_PET_NAME;
+        } else if (PetEntry.SORT_BY_BREED.equals(sortOrder)) {
+            return PetEntry.COLUMN_PET_BREED;
+        } else if (PetEntry.SORT_BY_WEIGHT.equals(sortOrder)) {
+            return PetEntry.COLUMN_PET_WEIGHT;
+        }
+        return null;
+    }
+
+    private void setWatchdog(int mode) {
+        Bundle extras = new Bundle();
+        extras.putInt(PetContract.EXTRA_WATCHDOG_MODE, mode);
+        extras.putLong(PetContract.EXTRA_WATCHDOG_ROW_THRESHOLD, 0);
+        mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_SET_QUERY_WATCHDOG, null, extras);
+    }
+}
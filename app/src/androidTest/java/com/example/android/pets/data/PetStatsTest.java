@@ -0,0 +1,140 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs every kind of write of {@link PetProvider} and checks after each one that the statistics
+ * kept by the triggers equal the statistics recomputed from the pets with a GROUP BY. The
+ * statistics cover the whole table, so the test runs on a database of its own.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PetStatsTest {
+
+    private static final String STORED_GENDER_STATS = "SELECT " + PetStatsEntry.COLUMN_GENDER
+            + ", " + PetStatsEntry.COLUMN_PET_COUNT + ", " + PetStatsEntry.COLUMN_WEIGHT_SUM
+            + ", " + PetStatsEntry.COLUMN_WEIGHT_COUNT + " FROM "
+            + PetStatsEntry.GENDER_TABLE_NAME;
+
+    private static final String STORED_BREED_STATS = "SELECT " + PetStatsEntry.COLUMN_BREED
+            + ", " + PetStatsEntry.COLUMN_PET_COUNT + " FROM " + PetStatsEntry.BREED_TABLE_NAME;
+
+    private static final String[] BREEDS = { "Beagle", "Poodle", "Tabby", "Siamese", "Pug" };
+
+    private static final String DATABASE_NAME = "pets_stats_test.db";
+
+    private PetTestProvider mProvider;
+    private ContentResolver mResolver;
+    private PetDbHelper mDbHelper;
+    private final Random mRandom = new Random(14);
+
+    @Before
+    public void setUp() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        mProvider = new PetTestProvider(context, DATABASE_NAME);
+        mResolver = mProvider.getResolver();
+        mDbHelper = new PetDbHelper(context, DATABASE_NAME, PetDbHelper.SYNCHRONOUS_NORMAL,
+                1000);
+    }
+
+    @After
+    public void tearDown() {
+        mDbHelper.close();
+        mProvider.close();
+    }
+
+    @Test
+    public void statsMatchThePetsAfterEveryWrite() {
+        Uri firstPet = null;
+        for (int i = 0; i < 50; i++) {
+            final Uri uri = mResolver.insert(PetEntry.CONTENT_URI, newPet(i));
+            if (firstPet == null) {
+                firstPet = uri;
+            }
+        }
+        assertStatsConsistent("insert");
+
+        final ContentValues[] pets = new ContentValues[50];
+        for (int i = 0; i < pets.length; i++) {
+            pets[i] = newPet(50 + i);
+        }
+        mResolver.bulkInsert(PetEntry.CONTENT_URI, pets);
+        assertStatsConsistent("bulk insert");
+
+        // An update of every column goes through the compiled statement
+        mResolver.update(firstPet, newPet(100), null, null);
+        assertStatsConsistent("update of a pet");
+
+        ContentValues weight = new ContentValues();
+        weight.put(PetEntry.COLUMN_PET_WEIGHT, 42);
+        mResolver.update(PetEntry.CONTENT_URI, weight, PetEntry.COLUMN_PET_GENDER + " = ?",
+                new String[] { String.valueOf(PetEntry.GENDER_MALE) });
+        assertStatsConsistent("update of the list");
+
+        ContentValues breed = new ContentValues();
+        breed.put(PetEntry.COLUMN_PET_BREED, "Mixed");
+        mResolver.update(ContentUris.withAppendedId(PetEntry.CONTENT_URI,
+                ContentUris.parseId(firstPet) + 1), breed, null, null);
+        assertStatsConsistent("update of a breed");
+
+        mResolver.delete(firstPet, null, null);
+        assertStatsConsistent("delete of a pet");
+
+        mResolver.delete(PetEntry.CONTENT_URI, PetEntry.COLUMN_PET_BREED + " = ?",
+                new String[] { BREEDS[0] });
+        assertStatsConsistent("delete of the list");
+
+        mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_UNDO_DELETE, null, null);
+        assertStatsConsistent("undo");
+
+        mResolver.delete(PetEntry.CONTENT_URI, PetEntry.COLUMN_PET_WEIGHT + " < ?",
+                new String[] { "20" });
+        mResolver.call(PetEntry.CONTENT_URI, PetContract.METHOD_PURGE_DELETED, null, null);
+        assertStatsConsistent("purge");
+    }
+
+    private ContentValues newPet(int i) {
+        ContentValues values = new ContentValues();
+        values.put(PetEntry.COLUMN_PET_NAME, "Pet " + i);
+        values.put(PetEntry.COLUMN_PET_BREED, BREEDS[mRandom.nextInt(BREEDS.length)]);
+        values.put(PetEntry.COLUMN_PET_GENDER, mRandom.nextInt(3));
+        values.put(PetEntry.COLUMN_PET_WEIGHT, 1 + mRandom.nextInt(40));
+        return values;
+    }
+
+    /** The stored statistics and the recomputed ones must have the same rows */
+    private void assertStatsConsistent(String write) {
+        SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        assertEquals("Gender stats after " + write, 0, countRows(db, STORED_GENDER_STATS
+                + " EXCEPT " + PetMigrations.SELECT_LIVE_GENDER_STATS));
+        assertEquals("Gender stats after " + write, 0, countRows(db,
+                PetMigrations.SELECT_LIVE_GENDER_STATS + " EXCEPT " + STORED_GENDER_STATS));
+        assertEquals("Breed stats after " + write, 0, countRows(db, STORED_BREED_STATS
+                + " EXCEPT " + PetMigrations.SELECT_LIVE_BREED_STATS));
+        assertEquals("Breed stats after " + write, 0, countRows(db,
+                PetMigrations.SELECT_LIVE_BREED_STATS + " EXCEPT " + STORED_BREED_STATS));
+    }
+
+    private static long countRows(SQLiteDatabase db, String select) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM (" + select + ")", null);
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.test.mock.MockContentResolver;
+
+/**
+ * {@link PetTestProvider} attaches a {@link PetProvider} of its own database to a
+ * {@link MockContentResolver}, so tests and benchmarks make the same resolver calls as the app
+ * without touching the pets of the user. The database is deleted when it is closed.
+ */
+final class PetTestProvider {
+
+    private final Context mContext;
+    private final String mDatabaseName;
+    private final PetProvider mProvider;
+    private final MockContentResolver mResolver = new MockContentResolver();
+
+    /** Start a provider on an empty database with the given name */
+    PetTestProvider(Context context, String databaseName) {
+        mContext = context;
+        mDatabaseName = databaseName;
+        context.deleteDatabase(databaseName);
+
+        ProviderInfo providerInfo = new ProviderInfo();
+        providerInfo.authority = PetContract.CONTENT_AUTHORITY;
+        mProvider = new PetProvider(databaseName);
+        mProvider.attachInfo(context, providerInfo);
+        mResolver.addProvider(PetContract.CONTENT_AUTHORITY, mProvider);
+    }
+
+    /** Resolver of the URIs of {@link PetContract}, they all go to the provider of the test */
+    ContentResolver getResolver() {
+        return mResolver;
+    }
+
+    /** Stop the provider and delete its database */
+    void close() {
+        mProvider.shutdown();
+        mContext.deleteDatabase(mDatabaseName);
+    }
+}
@@ -15,39 +15,90 @@
  */
 package com.example.android.pets;
 
+import android.annotation.SuppressLint;
 import android.app.AlertDialog;
 import android.app.LoaderManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
-import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.support.design.widget.FloatingActionButton;
+import android.support.design.widget.Snackbar;
+import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.Toast;
 
+import java.io.IOException;
+
+import com.example.android.pets.data.PetContract;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetCsvImporter;
+import com.example.android.pets.data.PetDataGenerator;
+import com.example.android.pets.data.PetWriteExecutor;
 
 /**
  * Displays list of pets that were entered and stored in the app.
  */
 public class CatalogActivity extends AppCompatActivity
-        implements LoaderManager.LoaderCallbacks<Cursor>{
+        implements LoaderManager.LoaderCallbacks<PetList>{
 
     private static final String LOG_TAG = CatalogActivity.class.getSimpleName();
     private static final int CURSOR_LOADER_ID = 0;
+    private static final int SEARCH_LOADER_ID = 1;
+
+    /** Key of the search text in the arguments of the search loader */
+    private static final String ARG_SEARCH_QUERY = "search_query";
+
+    /** Maximum number of pets shown for a search */
+    private static final int SEARCH_LIMIT = 100;
+
+    /** Number of pets loaded at once */
+    private static final int PAGE_SIZE = 100;
+
+    /** Load the next page when the user scrolls within this many pets of the end of the list */
+    private static final int PAGE_PREFETCH_DISTANCE = 20;
+
+    /** Request code of the picker of the CSV file to import */
+    private static final int REQUEST_IMPORT_CSV = 1;
+
+    /** Number of pets inserted by the debug option that generates pets */
+    private static final int GENERATED_PET_COUNT = 100000;
+
+    private PetAdapter mAdapter;
 
-    private PetCursorAdapter mCursorAdapter;
+    private View mEmptyView;
+
+    /** Pets of the catalog loader, shown whenever the user is not searching */
+    private PetList mCatalogPets;
+
+    /** Logs the frame times of the list while it scrolls, only in debug builds */
+    private FrameTimeMonitor mFrameTimeMonitor;
+
+    /** True while the search field has text and the list shows search results */
+    private boolean mSearching;
+
+    /** Sort order of the catalog, one of the sort orders of PetEntry or null for the _ID order */
+    private String mSortOrder;
+
+    /** Filters of the catalog, null when the catalog is not filtered */
+    private Integer mGenderFilter;
+    private Integer mMinWeightFilter;
+    private Integer mMaxWeightFilter;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -66,16 +117,9 @@ public class CatalogActivity extends AppCompatActivity
 
         getLoaderManager().initLoader(CURSOR_LOADER_ID, null, this);
 
-        mCursorAdapter = new PetCursorAdapter(this, null);
-
-        View emptyView = findViewById(R.id.empty_view);
-
-        ListView listView = (ListView) findViewById(R.id.pet_list);
-        listView.setAdapter(mCursorAdapter);
-        listView.setEmptyView(emptyView);
-        listView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        mAdapter = new PetAdapter(this, new PetAdapter.OnPetClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+            public void onPetClick(long id) {
                 Uri uri = Uri.withAppendedPath(PetEntry.CONTENT_URI, String.valueOf(id));
 
                 Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
@@ -84,6 +128,62 @@ public class CatalogActivity extends AppCompatActivity
                 startActivity(intent);
             }
         });
+        mAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+        });
+
+        mEmptyView = findViewById(R.id.empty_view);
+
+        if (BuildConfig.DEBUG && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mFrameTimeMonitor = new FrameTimeMonitor("Catalog");
+        }
+
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        RecyclerView recyclerView = (RecyclerView) findViewById(R.id.pet_list);
+        recyclerView.setLayoutManager(layoutManager);
+        recyclerView.setAdapter(mAdapter);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if (mFrameTimeMonitor == null) {
+                    return;
+                }
+
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    mFrameTimeMonitor.stop();
+                } else {
+                    mFrameTimeMonitor.start();
+                }
+            }
+
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                final int itemCount = layoutManager.getItemCount();
+                if (itemCount > 0 && layoutManager.findLastVisibleItemPosition()
+                        >= itemCount - 1 - PAGE_PREFETCH_DISTANCE) {
+                    loadMorePets();
+                }
+            }
+        });
+    }
+
+    /** Show the empty view when the catalog has no pets */
+    private void updateEmptyView() {
+        final boolean empty = !mSearching && mAdapter.getItemCount() == 0;
+        mEmptyView.setVisibility(empty ? View.VISIBLE : View.GONE);
     }
 
     @Override
@@ -96,9 +196,46 @@ public class CatalogActivity extends AppCompatActivity
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+        menu.findItem(R.id.action_generate_pets).setVisible(BuildConfig.DEBUG);
+
+        SearchView searchView = (SearchView) MenuItemCompat.getActionView(
+                menu.findItem(R.id.action_search));
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                search(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText);
+                return true;
+            }
+        });
         return true;
     }
 
+    /** Show the pets matching the given text, or the whole catalog if the text is empty */
+    private void search(String query) {
+        if (TextUtils.isEmpty(query.trim())) {
+            if (mSearching) {
+                mSearching = false;
+                mAdapter.swapPets(mCatalogPets);
+                getLoaderManager().destroyLoader(SEARCH_LOADER_ID);
+                updateEmptyView();
+            }
+            return;
+        }
+
+        mSearching = true;
+        updateEmptyView();
+        Bundle args = new Bundle();
+        args.putString(ARG_SEARCH_QUERY, query);
+        getLoaderManager().restartLoader(SEARCH_LOADER_ID, args, this);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
@@ -111,10 +248,79 @@ public class CatalogActivity extends AppCompatActivity
             case R.id.action_delete_all_entries:
                 showDeleteConfirmationDialog();
                 return true;
+            // Respond to a click on the "Import CSV" menu option
+            case R.id.action_import_csv:
+                pickCsvFile();
+                return true;
+            // Respond to a click on the debug "Generate pets" menu option
+            case R.id.action_generate_pets:
+                // A long run must not hold the serial executor of the list diffs
+                new GeneratePetsTask(this).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                return true;
+            // Respond to a click on a sort option
+            case R.id.sort_default:
+                showCatalog(item, null, mGenderFilter, mMinWeightFilter, mMaxWeightFilter);
+                return true;
+            case R.id.sort_name:
+                showCatalog(item, PetEntry.SORT_BY_NAME, mGenderFilter, mMinWeightFilter,
+                        mMaxWeightFilter);
+                return true;
+            case R.id.sort_breed:
+                showCatalog(item, PetEntry.SORT_BY_BREED, mGenderFilter, mMinWeightFilter,
+                        mMaxWeightFilter);
+                return true;
+            case R.id.sort_weight:
+                showCatalog(item, PetEntry.SORT_BY_WEIGHT, mGenderFilter, mMinWeightFilter,
+                        mMaxWeightFilter);
+                return true;
+            // Respond to a click on a gender filter
+            case R.id.filter_gender_all:
+                showCatalog(item, mSortOrder, null, mMinWeightFilter, mMaxWeightFilter);
+                return true;
+            case R.id.filter_gender_male:
+                showCatalog(item, mSortOrder, PetEntry.GENDER_MALE, mMinWeightFilter,
+                        mMaxWeightFilter);
+                return true;
+            case R.id.filter_gender_female:
+                showCatalog(item, mSortOrder, PetEntry.GENDER_FEMALE, mMinWeightFilter,
+                        mMaxWeightFilter);
+                return true;
+            case R.id.filter_gender_unknown:
+                showCatalog(item, mSortOrder, PetEntry.GENDER_UNKNOWN, mMinWeightFilter,
+                        mMaxWeightFilter);
+                return true;
+            // Respond to a click on a weight filter
+            case R.id.filter_weight_all:
+                showCatalog(item, mSortOrder, mGenderFilter, null, null);
+                return true;
+            case R.id.filter_weight_light:
+                showCatalog(item, mSortOrder, mGenderFilter, null, 9);
+                return true;
+            case R.id.filter_weight_medium:
+                showCatalog(item, mSortOrder, mGenderFilter, 10, 30);
+                return true;
+            case R.id.filter_weight_heavy:
+                showCatalog(item, mSortOrder, mGenderFilter, 31, null);
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Load the catalog again in the given order and with the given filters, the menu item that
+     * chose them is checked. The provider reads every combination from an index.
+     */
+    private void showCatalog(MenuItem item, String sortOrder, Integer gender, Integer minWeight,
+                             Integer maxWeight) {
+        item.setChecked(true);
+
+        mSortOrder = sortOrder;
+        mGenderFilter = gender;
+        mMinWeightFilter = minWeight;
+        mMaxWeightFilter = maxWeight;
+        getLoaderManager().restartLoader(CURSOR_LOADER_ID, null, this);
+    }
+
     private void insertData() {
         ContentValues values = new ContentValues();
         values.put(PetEntry.COLUMN_PET_NAME, "Toto");
@@ -122,30 +328,189 @@ public class CatalogActivity extends AppCompatActivity
         values.put(PetEntry.COLUMN_PET_GENDER, PetEntry.GENDER_MALE);
         values.put(PetEntry.COLUMN_PET_WEIGHT, 7);
 
-        Uri insertedPetUri = getContentResolver().insert(PetEntry.CONTENT_URI, values);;
-        long id = ContentUris.parseId(insertedPetUri);
+        PetWriteExecutor.getInstance(this).insert(PetEntry.CONTENT_URI, values,
+                new PetWriteExecutor.Callback() {
+                    @Override
+                    public void onWriteComplete(Uri uri, int rows) {
+                        if (uri != null) {
+                            Log.d(LOG_TAG, "Inserted data _id: " + ContentUris.parseId(uri));
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Inserts generated pets in the background and logs the throughput, to profile the app with
+     * a large catalog. It only holds the application context, so it may outlive the activity.
+     */
+    private static class GeneratePetsTask extends AsyncTask<Void, Void, Long> {
+
+        private final Context mContext;
+        private long mStartNanos;
+
+        GeneratePetsTask(Context context) {
+            mContext = context.getApplicationContext();
+        }
+
+        @Override
+        protected Long doInBackground(Void... params) {
+            mStartNanos = System.nanoTime();
+
+            PetDataGenerator generator = new PetDataGenerator.Builder()
+                    .setRowCount(GENERATED_PET_COUNT)
+                    .build();
+            return generator.generate(mContext.getContentResolver(),
+                    new PetDataGenerator.ProgressListener() {
+                        @Override
+                        public void onProgress(long insertedRows, long totalRows,
+                                               double rowsPerSecond) {
+                            Log.d(LOG_TAG, "Generated " + insertedRows + "/" + totalRows
+                                    + " pets, " + Math.round(rowsPerSecond) + " pets/s");
+                        }
+                    });
+        }
+
+        @Override
+        protected void onPostExecute(Long insertedRows) {
+            final double seconds = (System.nanoTime() - mStartNanos) / 1e9;
+            final long rowsPerSecond = (seconds > 0) ? Math.round(insertedRows / seconds) : 0;
+            Toast.makeText(mContext, mContext.getString(R.string.generate_pets_finished,
+                    insertedRows, rowsPerSecond), Toast.LENGTH_LONG).show();
+        }
+    }
+
+    /** Let the user pick the CSV file to import, the import starts in {@link #onActivityResult} */
+    private void pickCsvFile() {
+        Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+        intent.setType("text/*");
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        startActivityForResult(intent, REQUEST_IMPORT_CSV);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode == REQUEST_IMPORT_CSV) {
+            if (resultCode == RESULT_OK && data != null && data.getData() != null) {
+                // A large import must not hold the serial executor of the list diffs and undo
+                new ImportCsvTask(this).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR,
+                        data.getData());
+            }
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, data);
+    }
+
+    /**
+     * Imports the pets of a CSV file in the background with {@link PetCsvImporter}, logs the
+     * rejected rows and shows how many pets were imported. It only holds the application
+     * context, so it may outlive the activity.
+     */
+    private static class ImportCsvTask extends AsyncTask<Uri, Void, long[]> {
+
+        private final Context mContext;
+
+        ImportCsvTask(Context context) {
+            mContext = context.getApplicationContext();
+        }
+
+        @Override
+        protected long[] doInBackground(Uri... params) {
+            final long[] counts = new long[2];
+            ParcelFileDescriptor file = null;
+            try {
+                file = mContext.getContentResolver().openFileDescriptor(params[0], "r");
+                counts[0] = new PetCsvImporter.Builder().build().importPets(
+                        mContext.getContentResolver(), file, new PetCsvImporter.Listener() {
+                            @Override
+                            public void onProgress(long readBytes, long totalBytes,
+                                                   long insertedRows, long rejectedRows,
+                                                   double rowsPerSecond) {
+                                Log.d(LOG_TAG, "Imported " + insertedRows + " pets, "
+                                        + readBytes + "/" + totalBytes + " bytes, "
+                                        + Math.round(rowsPerSecond) + " pets/s");
+                            }
 
-        Log.d(LOG_TAG, "Inserted data _id: " + id);
+                            @Override
+                            public void onRowRejected(long line, String reason) {
+                                counts[1]++;
+                                Log.w(LOG_TAG, "Rejected CSV line " + line + ": " + reason);
+                            }
+                        });
+                return counts;
+            } catch (IOException | IllegalArgumentException e) {
+                Log.e(LOG_TAG, "Failed to import " + params[0], e);
+                return null;
+            } finally {
+                if (file != null) {
+                    try {
+                        file.close();
+                    } catch (IOException e) {
+                        Log.e(LOG_TAG, "Failed to close " + params[0], e);
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected void onPostExecute(long[] counts) {
+            if (counts != null) {
+                Toast.makeText(mContext, mContext.getString(R.string.import_csv_finished,
+                        counts[0], counts[1]), Toast.LENGTH_LONG).show();
+            } else {
+                Toast.makeText(mContext, R.string.import_csv_failed, Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+
+    /** Load the next page of pets, if the catalog is not showing all of them yet */
+    private void loadMorePets() {
+        if (mSearching) {
+            return;
+        }
+
+        Loader<PetList> loader = getLoaderManager().getLoader(CURSOR_LOADER_ID);
+        if (loader != null) {
+            ((PetListLoader) loader).loadMore();
+        }
     }
 
     @Override
-    public Loader onCreateLoader(int id, Bundle args) {
-        String[] projection = {
-                PetEntry._ID,
-                PetEntry.COLUMN_PET_NAME,
-                PetEntry.COLUMN_PET_BREED
-        };
-        return new CursorLoader(this, PetEntry.CONTENT_URI, projection, null, null, null);
+    public Loader<PetList> onCreateLoader(int id, Bundle args) {
+        if (id == SEARCH_LOADER_ID) {
+            return new PetListLoader(this, args.getString(ARG_SEARCH_QUERY), SEARCH_LIMIT);
+        }
+        return new PetListLoader(this, PetEntry.buildFilterUri(mGenderFilter, mMinWeightFilter,
+                mMaxWeightFilter), mSortOrder, PAGE_SIZE);
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        mCursorAdapter.swapCursor(data);
+    public void onLoadFinished(Loader<PetList> loader, PetList data) {
+        if (loader.getId() == SEARCH_LOADER_ID) {
+            if (mSearching) {
+                mAdapter.swapPets(data);
+            }
+            return;
+        }
+
+        mCatalogPets = data;
+        if (!mSearching) {
+            mAdapter.swapPets(data);
+        }
     }
 
     @Override
-    public void onLoaderReset(Loader loader) {
-        mCursorAdapter.swapCursor(null);
+    public void onLoaderReset(Loader<PetList> loader) {
+        if (loader.getId() == SEARCH_LOADER_ID) {
+            if (mSearching) {
+                mAdapter.swapPets(null);
+            }
+            return;
+        }
+
+        mCatalogPets = null;
+        if (!mSearching) {
+            mAdapter.swapPets(null);
+        }
     }
 
     private void showDeleteConfirmationDialog() {
@@ -175,14 +540,64 @@ public class CatalogActivity extends AppCompatActivity
     }
 
     private void deletePet() {
-        int deletedRows = getContentResolver().delete(PetEntry.CONTENT_URI, null, null);
-
-        if (deletedRows > 0) {
-            Toast.makeText(this, R.string.catalog_delete_pet_successful, Toast.LENGTH_SHORT)
-                    .show();
-        } else {
-            Toast.makeText(this, R.string.catalog_delete_pet_failed, Toast.LENGTH_SHORT)
-                    .show();
+        PetWriteExecutor.getInstance(this).delete(PetEntry.CONTENT_URI,
+                new PetWriteExecutor.Callback() {
+                    @Override
+                    public void onWriteComplete(Uri uri, int rows) {
+                        if (rows > 0) {
+                            showUndoDeleteSnackbar(rows);
+                        } else {
+                            Toast.makeText(getApplicationContext(),
+                                    R.string.catalog_delete_pet_failed, Toast.LENGTH_SHORT)
+                                    .show();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Offer to restore the deleted pets while the provider still keeps them. The Snackbar takes
+     * a duration in milliseconds besides its LENGTH_ constants, so it lasts the whole undo window.
+     */
+    @SuppressLint("WrongConstant")
+    private void showUndoDeleteSnackbar(int rows) {
+        Snackbar.make(findViewById(R.id.pet_list),
+                getString(R.string.catalog_delete_pet_successful, rows),
+                (int) PetContract.UNDO_WINDOW_MILLIS)
+                .setAction(R.string.undo, new View.OnClickListener() {
+                    @Override
+                    public void onClick(View view) {
+                        new UndoDeleteTask(CatalogActivity.this).execute();
+                    }
+                })
+                .show();
+    }
+
+    /**
+     * Restores the pets of the last delete in the background. It only holds the application
+     * context, so it may outlive the activity.
+     */
+    private static class UndoDeleteTask extends AsyncTask<Void, Void, Integer> {
+
+        private final Context mContext;
+
+        UndoDeleteTask(Context context) {
+            mContext = context.getApplicationContext();
+        }
+
+        @Override
+        protected Integer doInBackground(Void... params) {
+            Bundle result = mContext.getContentResolver().call(PetEntry.CONTENT_URI,
+                    PetContract.METHOD_UNDO_DELETE, null, null);
+            return (result != null) ? result.getInt(PetContract.EXTRA_RESTORED_ROWS) : 0;
+        }
+
+        @Override
+        protected void onPostExecute(Integer restoredRows) {
+            if (restoredRows == 0) {
+                Toast.makeText(mContext, R.string.catalog_undo_delete_failed,
+                        Toast.LENGTH_SHORT).show();
+            }
         }
     }
 }
@@ -41,6 +41,7 @@ import android.widget.Toast;
 
 import com.example.android.pets.data.PetContract.PetEntry;
 import com.example.android.pets.data.PetDbHelper;
+import com.example.android.pets.data.PetWriteExecutor;
 
 /**
  * Allows user to create a new pet or edit an existing one.
@@ -243,23 +244,32 @@ public class EditorActivity extends AppCompatActivity
         values.put(PetEntry.COLUMN_PET_GENDER, mGender);
         values.put(PetEntry.COLUMN_PET_WEIGHT, weight);
 
-        boolean isTransactionSuccessful = true;
-        if (mCurrentPetUri == null) {
-            Uri insertedPetUri = getContentResolver().insert(PetEntry.CONTENT_URI, values);
-            isTransactionSuccessful = (insertedPetUri != null);
-        } else {
-            int rowsUpdated = getContentResolver().update(mCurrentPetUri, values, null, null);
-            isTransactionSuccessful = (rowsUpdated == 1);
-        }
+        // The pet is written in the background, the result is shown once it is stored
+        PetWriteExecutor.Callback callback = new PetWriteExecutor.Callback() {
+            @Override
+            public void onWriteComplete(Uri uri, int rows) {
+                if (rows == PetWriteExecutor.SUPERSEDED) {
+                    // The pet was deleted before the save ran, the delete reports its result
+                    return;
+                }
+
+                String message;
+                if (rows == 1) {
+                    message = getString(R.string.msg_success_insert);
+                } else {
+                    message = getString(R.string.msg_failed_insert);
+                }
+
+                Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show();
+            }
+        };
 
-        String message;
-        if (isTransactionSuccessful) {
-            message = getString(R.string.msg_success_insert);
+        PetWriteExecutor executor = PetWriteExecutor.getInstance(this);
+        if (mCurrentPetUri == null) {
+            executor.insert(PetEntry.CONTENT_URI, values, callback);
         } else {
-            message = getString(R.string.msg_failed_insert);
+            executor.update(mCurrentPetUri, values, callback);
         }
-
-        Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
     }
 
     @Override
@@ -379,16 +389,22 @@ public class EditorActivity extends AppCompatActivity
      */
     private void deletePet() {
         if (mCurrentPetUri != null) {
-            int deletedRows = getContentResolver().delete(mCurrentPetUri, null, null);
-
-            if (deletedRows > 0) {
-                Toast.makeText(this, getString(R.string.editor_delete_pet_successful),
-                        Toast.LENGTH_SHORT).show();
-                finish();
-            } else {
-                Toast.makeText(this, getString(R.string.editor_delete_pet_failed),
-                        Toast.LENGTH_SHORT).show();
-            }
+            PetWriteExecutor.getInstance(this).delete(mCurrentPetUri,
+                    new PetWriteExecutor.Callback() {
+                        @Override
+                        public void onWriteComplete(Uri uri, int rows) {
+                            if (rows > 0) {
+                                Toast.makeText(getApplicationContext(),
+                                        getString(R.string.editor_delete_pet_successful),
+                                        Toast.LENGTH_SHORT).show();
+                                finish();
+                            } else {
+                                Toast.makeText(getApplicationContext(),
+                                        getString(R.string.editor_delete_pet_failed),
+                                        Toast.LENGTH_SHORT).show();
+                            }
+                        }
+                    });
         }
 
     }
@@ -0,0 +1,105 @@
+package com.example.android.pets;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.Arrays;
+
+/**
+ * {@link FrameTimeMonitor} measures the time between frames while it is running and logs a
+ * summary when it stops. The catalog runs it while the list scrolls in debug builds, which gives
+ * the frame times to compare list implementations on the same data set.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+final class FrameTimeMonitor implements Choreographer.FrameCallback {
+
+    private static final String LOG_TAG = FrameTimeMonitor.class.getSimpleName();
+
+    /** Time budget of a frame at 60 frames per second */
+    private static final long FRAME_BUDGET_NANOS = 16666667;
+
+    /** Maximum number of frame times kept for one summary */
+    private static final int MAX_FRAMES = 4096;
+
+    private final String mName;
+    private final long[] mFrameTimes = new long[MAX_FRAMES];
+    private int mFrameCount;
+    private long mLastFrameTimeNanos;
+    private boolean mRunning;
+
+    /** @param name Name of the measured view, it prefixes the logged summary */
+    FrameTimeMonitor(String name) {
+        mName = name;
+    }
+
+    void start() {
+        if (mRunning) {
+            return;
+        }
+
+        mRunning = true;
+        mFrameCount = 0;
+        mLastFrameTimeNanos = 0;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    void stop() {
+        if (!mRunning) {
+            return;
+        }
+
+        mRunning = false;
+        Choreographer.getInstance().removeFrameCallback(this);
+        logSummary();
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) {
+            return;
+        }
+
+        if (mLastFrameTimeNanos != 0 && mFrameCount < MAX_FRAMES) {
+            mFrameTimes[mFrameCount++] = frameTimeNanos - mLastFrameTimeNanos;
+        }
+        mLastFrameTimeNanos = frameTimeNanos;
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    private void logSummary() {
+        if (mFrameCount == 0) {
+            return;
+        }
+
+        final long[] frameTimes = Arrays.copyOf(mFrameTimes, mFrameCount);
+        Arrays.sort(frameTimes);
+
+        long total = 0;
+        int jankyFrames = 0;
+        for (long frameTime : frameTimes) {
+            total += frameTime;
+            if (frameTime > FRAME_BUDGET_NANOS) {
+                jankyFrames++;
+            }
+        }
+
+        Log.d(LOG_TAG, mName + ": " + mFrameCount + " frames"
+                + ", mean " + toMillis(total / mFrameCount) + " ms"
+                + ", p50 " + toMillis(percentile(frameTimes, 50)) + " ms"
+                + ", p90 " + toMillis(percentile(frameTimes, 90)) + " ms"
+                + ", p99 " + toMillis(percentile(frameTimes, 99)) + " ms"
+                + ", max " + toMillis(frameTimes[frameTimes.length - 1]) + " ms"
+                + ", janky " + jankyFrames);
+    }
+
+    private static long percentile(long[] sortedValues, int percentile) {
+        final int index = (int) Math.ceil(percentile / 100.0 * sortedValues.length) - 1;
+        return sortedValues[Math.max(0, index)];
+    }
+
+    private static String toMillis(long nanos) {
+        return String.valueOf(nanos / 100000 / 10.0);
+    }
+}
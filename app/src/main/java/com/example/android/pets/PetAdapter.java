@@ -0,0 +1,169 @@
+package com.example.android.pets;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+/**
+ * {@link PetAdapter} is a {@link RecyclerView} adapter that uses a {@link PetList} as its data
+ * source. This adapter knows how to create list items for each pet in the {@link PetList}.
+ *
+ * A new list is diffed against the displayed one on a background thread, keyed on the _ID of
+ * the pets, so only the rows that were inserted, removed or changed are rebound and animated.
+ */
+public class PetAdapter extends RecyclerView.Adapter<PetAdapter.PetViewHolder> {
+
+    /** Receives clicks on the pets of the list */
+    public interface OnPetClickListener {
+        void onPetClick(long id);
+    }
+
+    private final LayoutInflater mInflater;
+    private final OnPetClickListener mListener;
+    private final String mUnknownBreed;
+
+    /** The pets that are displayed */
+    private PetList mPets;
+
+    /** Diff between the displayed pets and the latest list, null when there is none */
+    private DiffTask mDiffTask;
+
+    /**
+     * Constructs a new {@link PetAdapter}.
+     *
+     * @param context  The context
+     * @param listener The listener notified when a pet is clicked
+     */
+    public PetAdapter(Context context, OnPetClickListener listener) {
+        mInflater = LayoutInflater.from(context);
+        mListener = listener;
+        mUnknownBreed = context.getString(R.string.unknown_breed);
+        setHasStableIds(true);
+    }
+
+    /**
+     * Display the given pets. The change is applied once the difference with the displayed pets
+     * has been computed in the background, a later call replaces a change that is still pending.
+     */
+    public void swapPets(PetList pets) {
+        if (mDiffTask != null) {
+            mDiffTask.cancel(false);
+            mDiffTask = null;
+        }
+
+        // Nothing to diff against, replace the whole list
+        if (mPets == null || pets == null || mPets.size() == 0 || pets.size() == 0) {
+            mPets = pets;
+            notifyDataSetChanged();
+            return;
+        }
+
+        mDiffTask = new DiffTask(mPets, pets);
+        mDiffTask.execute();
+    }
+
+    @Override
+    public PetViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        return new PetViewHolder(mInflater.inflate(R.layout.list_item, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(PetViewHolder holder, int position) {
+        String breed = mPets.getBreed(position);
+        if (TextUtils.isEmpty(breed)) {
+            breed = mUnknownBreed;
+        }
+
+        holder.mNameTextView.setText(mPets.getName(position));
+        holder.mSummaryTextView.setText(breed);
+    }
+
+    @Override
+    public int getItemCount() {
+        return (mPets == null) ? 0 : mPets.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mPets.getId(position);
+    }
+
+    /** Holds the views of a list item, so they are looked up once and not on every bind */
+    class PetViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+
+        private final TextView mNameTextView;
+        private final TextView mSummaryTextView;
+
+        PetViewHolder(View itemView) {
+            super(itemView);
+            mNameTextView = (TextView) itemView.findViewById(R.id.name);
+            mSummaryTextView = (TextView) itemView.findViewById(R.id.summary);
+            itemView.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            final int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) {
+                mListener.onPetClick(getItemId());
+            }
+        }
+    }
+
+    /** Compares two lists of pets on a background thread and applies the result */
+    private class DiffTask extends AsyncTask<Void, Void, DiffUtil.DiffResult> {
+
+        private final PetList mOldPets;
+        private final PetList mNewPets;
+
+        DiffTask(PetList oldPets, PetList newPets) {
+            mOldPets = oldPets;
+            mNewPets = newPets;
+        }
+
+        @Override
+        protected DiffUtil.DiffResult doInBackground(Void... params) {
+            return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+                @Override
+                public int getOldListSize() {
+                    return mOldPets.size();
+                }
+
+                @Override
+                public int getNewListSize() {
+                    return mNewPets.size();
+                }
+
+                @Override
+                public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                    return mOldPets.getId(oldPosition) == mNewPets.getId(newPosition);
+                }
+
+                @Override
+                public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                    return TextUtils.equals(mOldPets.getName(oldPosition),
+                                    mNewPets.getName(newPosition))
+                            && TextUtils.equals(mOldPets.getBreed(oldPosition),
+                                    mNewPets.getBreed(newPosition));
+                }
+            }, false);
+        }
+
+        @Override
+        protected void onPostExecute(DiffUtil.DiffResult result) {
+            if (mDiffTask != this) {
+                return;
+            }
+
+            mDiffTask = null;
+            mPets = mNewPets;
+            result.dispatchUpdatesTo(PetAdapter.this);
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.android.pets;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+
+/**
+ * {@link PetList} is an immutable snapshot of the pets shown by the catalog, with the columns
+ * of a list item. It is built by {@link PetListLoader} in the background and handed to
+ * {@link PetAdapter}, so the list can be diffed and bound without touching a {@link
+ * android.database.Cursor} that the loader may close at any time.
+ *
+ * The pets are in one of the sort orders of {@link PetEntry}, or in _ID order without one,
+ * the order in which {@link com.example.android.pets.data.PetProvider} returns them.
+ */
+public final class PetList {
+
+    private final String mSortOrder;
+    private final long[] mIds;
+    private final String[] mNames;
+    private final String[] mBreeds;
+    private final Integer[] mWeights;
+    private final int mSize;
+
+    /** Number of pages of the pets table in this list */
+    final int mPageCount;
+
+    /** True if the list contains the last page of the pets table */
+    final boolean mComplete;
+
+    /** Content change count of the loader when the pets were queried */
+    final int mChangeCount;
+
+    /**
+     * Change sequence of the pets table that the list is up to date with, the later changes
+     * can be applied to it. 0 for a list that cannot be updated, e.g. search results.
+     */
+    final long mChangeSeq;
+
+    private PetList(Builder builder, int pageCount, boolean complete, int changeCount,
+                    long changeSeq) {
+        mSortOrder = builder.mSortOrder;
+        mIds = builder.mIds;
+        mNames = builder.mNames;
+        mBreeds = builder.mBreeds;
+        mWeights = builder.mWeights;
+        mSize = builder.mSize;
+        mPageCount = pageCount;
+        mComplete = complete;
+        mChangeCount = changeCount;
+        mChangeSeq = changeSeq;
+    }
+
+    /** Number of pets in the list */
+    public int size() {
+        return mSize;
+    }
+
+    public long getId(int position) {
+        return mIds[position];
+    }
+
+    public String getName(int position) {
+        return mNames[position];
+    }
+
+    public String getBreed(int position) {
+        return mBreeds[position];
+    }
+
+    public Integer getWeight(int position) {
+        return mWeights[position];
+    }
+
+    /** ID of the last pet of the list, or 0 if the list is empty */
+    long getLastId() {
+        return (mSize == 0) ? 0 : mIds[mSize - 1];
+    }
+
+    /**
+     * True if a pet with these values comes before the last pet of the list, or is the last
+     * pet, in the order of the list
+     */
+    boolean isBeforeEnd(long id, String name, String breed, Integer weight) {
+        return mSize > 0 && compare(mSortOrder, id, name, breed, weight, mIds[mSize - 1],
+                mNames[mSize - 1], mBreeds[mSize - 1], mWeights[mSize - 1]) <= 0;
+    }
+
+    /**
+     * Compare two pets in a sort order the way SQLite does: nulls first, texts by their UTF-8
+     * bytes, which is the order of their code points, then by _ID.
+     */
+    private static int compare(String sortOrder, long id1, String name1, String breed1,
+                               Integer weight1, long id2, String name2, String breed2,
+                               Integer weight2) {
+        int result = 0;
+        if (PetEntry.SORT_BY_NAME.equals(sortOrder)) {
+            result = compareTexts(name1, name2);
+        } else if (PetEntry.SORT_BY_BREED.equals(sortOrder)) {
+            result = compareTexts(breed1, breed2);
+        } else if (PetEntry.SORT_BY_WEIGHT.equals(sortOrder)) {
+            if (weight1 == null || weight2 == null) {
+                result = (weight1 == null ? 0 : 1) - (weight2 == null ? 0 : 1);
+            } else {
+                result = weight1.compareTo(weight2);
+            }
+        }
+        return (result != 0) ? result : (id1 < id2 ? -1 : (id1 == id2 ? 0 : 1));
+    }
+
+    private static int compareTexts(String text1, String text2) {
+        if (text1 == null || text2 == null) {
+            return (text1 == null ? 0 : 1) - (text2 == null ? 0 : 1);
+        }
+
+        int i1 = 0;
+        int i2 = 0;
+        while (i1 < text1.length() && i2 < text2.length()) {
+            final int c1 = text1.codePointAt(i1);
+            final int c2 = text2.codePointAt(i2);
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+            i1 += Character.charCount(c1);
+            i2 += Character.charCount(c2);
+        }
+        return (text1.length() - i1) - (text2.length() - i2);
+    }
+
+    /** Collects the pets of a {@link PetList} in order */
+    static final class Builder {
+
+        private final String mSortOrder;
+        private long[] mIds;
+        private String[] mNames;
+        private String[] mBreeds;
+        private Integer[] mWeights;
+        private int mSize;
+
+        Builder() {
+            this(16, null);
+        }
+
+        /**
+         * @param sortOrder one of the sort orders of {@link PetEntry}, or null for the _ID order
+         */
+        Builder(int capacity, String sortOrder) {
+            mSortOrder = sortOrder;
+            mIds = new long[capacity];
+            mNames = new String[capacity];
+            mBreeds = new String[capacity];
+            mWeights = new Integer[capacity];
+        }
+
+        /** Start with the pets of an existing list, so more pets can be appended to them */
+        Builder(PetList pets) {
+            this(pets.mSize + 16, pets.mSortOrder);
+            System.arraycopy(pets.mIds, 0, mIds, 0, pets.mSize);
+            System.arraycopy(pets.mNames, 0, mNames, 0, pets.mSize);
+            System.arraycopy(pets.mBreeds, 0, mBreeds, 0, pets.mSize);
+            System.arraycopy(pets.mWeights, 0, mWeights, 0, pets.mSize);
+            mSize = pets.mSize;
+        }
+
+        Builder add(long id, String name, String breed, Integer weight) {
+            if (mSize == mIds.length) {
+                final int capacity = mSize * 2;
+                mIds = Arrays.copyOf(mIds, capacity);
+                mNames = Arrays.copyOf(mNames, capacity);
+                mBreeds = Arrays.copyOf(mBreeds, capacity);
+                mWeights = Arrays.copyOf(mWeights, capacity);
+            }
+
+            mIds[mSize] = id;
+            mNames[mSize] = name;
+            mBreeds[mSize] = breed;
+            mWeights[mSize] = weight;
+            mSize++;
+            return this;
+        }
+
+        /**
+         * Set the values of the pet with the given ID, moving it to its position in the order of
+         * the list, or insert it there if the list does not have it. The pets must be in the
+         * order of the list.
+         */
+        Builder put(long id, String name, String breed, Integer weight) {
+            remove(id);
+
+            // First position whose pet comes after the new one
+            int low = 0;
+            int high = mSize;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (compare(mSortOrder, mIds[middle], mNames[middle], mBreeds[middle],
+                        mWeights[middle], id, name, breed, weight) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+
+            add(0, null, null, null);
+            final int moved = mSize - 1 - low;
+            System.arraycopy(mIds, low, mIds, low + 1, moved);
+            System.arraycopy(mNames, low, mNames, low + 1, moved);
+            System.arraycopy(mBreeds, low, mBreeds, low + 1, moved);
+            System.arraycopy(mWeights, low, mWeights, low + 1, moved);
+
+            mIds[low] = id;
+            mNames[low] = name;
+            mBreeds[low] = breed;
+            mWeights[low] = weight;
+            return this;
+        }
+
+        /** Remove the pet with the given ID if the list has it */
+        Builder remove(long id) {
+            final int position = indexOf(id);
+            if (position >= 0) {
+                mSize--;
+                final int moved = mSize - position;
+                System.arraycopy(mIds, position + 1, mIds, position, moved);
+                System.arraycopy(mNames, position + 1, mNames, position, moved);
+                System.arraycopy(mBreeds, position + 1, mBreeds, position, moved);
+                System.arraycopy(mWeights, position + 1, mWeights, position, moved);
+                mNames[mSize] = null;
+                mBreeds[mSize] = null;
+                mWeights[mSize] = null;
+            }
+            return this;
+        }
+
+        /**
+         * Position of the pet with the given ID, or a negative value. A list in _ID order is
+         * searched by bisection, a sorted list from the start.
+         */
+        private int indexOf(long id) {
+            if (mSortOrder == null) {
+                return Arrays.binarySearch(mIds, 0, mSize, id);
+            }
+
+            for (int i = 0; i < mSize; i++) {
+                if (mIds[i] == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /** ID of the last pet, or 0 if there is none */
+        long getLastId() {
+            return (mSize == 0) ? 0 : mIds[mSize - 1];
+        }
+
+        /** Value of the sort column of the last pet, null for the _ID order or no pet */
+        String getLastSortValue() {
+            if (mSize == 0) {
+                return null;
+            }
+
+            final int last = mSize - 1;
+            if (PetEntry.SORT_BY_NAME.equals(mSortOrder)) {
+                return mNames[last];
+            } else if (PetEntry.SORT_BY_BREED.equals(mSortOrder)) {
+                return mBreeds[last];
+            } else if (PetEntry.SORT_BY_WEIGHT.equals(mSortOrder) && mWeights[last] != null) {
+                return String.valueOf(mWeights[last]);
+            }
+            return null;
+        }
+
+        /** The builder must not be used anymore after building the list */
+        PetList build(int pageCount, boolean complete, int changeCount, long changeSeq) {
+            return new PetList(this, pageCount, complete, changeCount, changeSeq);
+        }
+    }
+}
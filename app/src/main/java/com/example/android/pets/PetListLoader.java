@@ -0,0 +1,332 @@
+package com.example.android.pets;
+
+import android.content.AsyncTaskLoader;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.pets.data.PetContract;
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * {@link PetListLoader} loads the pets of the catalog into a {@link PetList}.
+ *
+ * The catalog is loaded one page at a time through the paginated {@link PetEntry#CONTENT_URI},
+ * or a filter URI of {@link PetEntry#buildFilterUri}, in one of the sort orders of
+ * {@link PetEntry}. A page starts after the sort value and ID of the last loaded pet, so it is
+ * read from the index of the sort order wherever it is in the list.
+ * The first page is loaded when the loader starts and every call to {@link #loadMore()} only
+ * queries the page after the loaded ones, so the work and memory of a load depend on how far
+ * the user scrolled and not on the size of the table.
+ *
+ * When the pets change, only the pets changed since the last load are read from
+ * {@link PetEntry#CONTENT_CHANGES_URI} and applied to the loaded pets, so a single edit costs
+ * the same whatever the size of the table. The loaded pages are queried again only when there
+ * are more changes than loaded pets, or when the changes are no longer available.
+ *
+ * A search loader loads the results of {@link PetEntry#buildSearchUri} in a single page.
+ */
+public class PetListLoader extends AsyncTaskLoader<PetList> {
+
+    /** Columns of a list item */
+    private static final String[] PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    /** Columns of a changed pet */
+    private static final String[] CHANGES_PROJECTION = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_DELETED,
+            PetEntry.COLUMN_CHANGE_SEQ
+    };
+
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private boolean mObserverRegistered;
+
+    /** Text to search for, or null to load the catalog */
+    private final String mSearchQuery;
+
+    /** URI of the pets of the catalog and their sort order, null for the _ID order */
+    private final Uri mListUri;
+    private final String mSortOrder;
+
+    private final int mPageSize;
+
+    /** The pets that were delivered last, their pages are reused when loading more */
+    private volatile PetList mPets;
+
+    /** Number of pages the next load should contain */
+    private volatile int mRequestedPages = 1;
+
+    /** Incremented for every content change, pages loaded before a change are stale */
+    private volatile int mChangeCount;
+
+    /**
+     * Constructs a new {@link PetListLoader}.
+     *
+     * @param context     The context
+     * @param searchQuery The text to search for, or null to load the catalog page by page
+     * @param pageSize    The number of pets in one page, or the maximum number of results
+     */
+    public PetListLoader(Context context, String searchQuery, int pageSize) {
+        this(context, searchQuery, PetEntry.CONTENT_URI, null, pageSize);
+    }
+
+    /**
+     * Constructs a new {@link PetListLoader} of the catalog.
+     *
+     * @param context   The context
+     * @param listUri   {@link PetEntry#CONTENT_URI} or a URI of {@link PetEntry#buildFilterUri}
+     * @param sortOrder One of the sort orders of {@link PetEntry}, or null for the _ID order
+     * @param pageSize  The number of pets in one page
+     */
+    public PetListLoader(Context context, Uri listUri, String sortOrder, int pageSize) {
+        this(context, null, listUri, sortOrder, pageSize);
+    }
+
+    private PetListLoader(Context context, String searchQuery, Uri listUri, String sortOrder,
+                          int pageSize) {
+        super(context);
+        mSearchQuery = searchQuery;
+        mListUri = listUri;
+        mSortOrder = sortOrder;
+        mPageSize = pageSize;
+    }
+
+    /**
+     * Load the page that follows the loaded pages. Does nothing while the previous page is still
+     * loading, when the last page has been reached or for a search.
+     */
+    public void loadMore() {
+        final PetList pets = mPets;
+        if (mSearchQuery != null || pets == null || pets.mComplete
+                || mRequestedPages > pets.mPageCount) {
+            return;
+        }
+
+        mRequestedPages++;
+        forceLoad();
+    }
+
+    @Override
+    public PetList loadInBackground() {
+        final int changeCount = mChangeCount;
+
+        if (mSearchQuery != null) {
+            PetList.Builder builder = new PetList.Builder();
+            readPage(PetEntry.buildSearchUri(mSearchQuery, mPageSize), builder);
+            return builder.build(1, true, changeCount, 0);
+        }
+
+        final int requestedPages = mRequestedPages;
+        final PetList current = mPets;
+
+        // The loaded pages are still valid if nothing changed since they were queried, or once
+        // the changes are applied to them
+        PetList.Builder builder = null;
+        int pageCount = 0;
+        boolean complete = false;
+        long changeSeq = -1;
+        if (current != null) {
+            builder = new PetList.Builder(current);
+            if (current.mChangeCount == changeCount) {
+                changeSeq = current.mChangeSeq;
+            } else if (current.mChangeSeq > 0) {
+                changeSeq = applyChanges(current, builder);
+            }
+        }
+
+        if (changeSeq >= 0) {
+            pageCount = current.mPageCount;
+            complete = current.mComplete;
+        } else {
+            // The pages read after this change sequence are up to date with it
+            builder = new PetList.Builder(mPageSize, mSortOrder);
+            changeSeq = readChangeSeq();
+        }
+
+        while (!complete && pageCount < requestedPages) {
+            // The next page starts after the last pet, once the changes are applied
+            final int sizeBefore = builder.size();
+            readPage(PetEntry.buildPageUri(mListUri, builder.getLastSortValue(),
+                    builder.getLastId(), mPageSize), builder);
+            pageCount++;
+
+            if (builder.size() - sizeBefore < mPageSize) {
+                complete = true;
+            }
+        }
+
+        return builder.build(pageCount, complete, changeCount, changeSeq);
+    }
+
+    /**
+     * Apply the pets changed since the change sequence of the loaded pets to the builder. A
+     * changed pet that no longer matches the filter of the list is removed from it, one that
+     * matches is moved to its position in the sort order. A pet after the last loaded one is
+     * left to the page that will load it, unless the last page is loaded.
+     *
+     * @return the change sequence of the last applied change, or -1 if the loaded pets must be
+     * queried again because there are more changes than loaded pets or the changes are gone
+     */
+    private long applyChanges(PetList current, PetList.Builder builder) {
+        final int limit = Math.max(current.size(), mPageSize);
+        Cursor cursor;
+        try {
+            cursor = getContext().getContentResolver().query(
+                    PetEntry.buildChangesUri(current.mChangeSeq, limit), CHANGES_PROJECTION,
+                    null, null, null);
+        } catch (IllegalArgumentException e) {
+            // The changes since the loaded pets were purged
+            return -1;
+        }
+        if (cursor == null) {
+            return -1;
+        }
+
+        long changeSeq = current.mChangeSeq;
+        try {
+            if (cursor.getCount() >= limit) {
+                return -1;
+            }
+
+            final int idIndex = cursor.getColumnIndexOrThrow(PetEntry._ID);
+            final int nameIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME);
+            final int breedIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED);
+            final int genderIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_GENDER);
+            final int weightIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_WEIGHT);
+            final int deletedIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_DELETED);
+            final int changeSeqIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_CHANGE_SEQ);
+            final Integer gender = getFilter(PetContract.QUERY_PARAMETER_GENDER);
+            final Integer minWeight = getFilter(PetContract.QUERY_PARAMETER_MIN_WEIGHT);
+            final Integer maxWeight = getFilter(PetContract.QUERY_PARAMETER_MAX_WEIGHT);
+
+            while (cursor.moveToNext()) {
+                changeSeq = cursor.getLong(changeSeqIndex);
+
+                final long id = cursor.getLong(idIndex);
+                final String name = cursor.getString(nameIndex);
+                final String breed = cursor.getString(breedIndex);
+                final Integer weight = cursor.isNull(weightIndex)
+                        ? null : cursor.getInt(weightIndex);
+
+                // A null weight is outside of every weight range, as in SQL
+                final boolean matches = cursor.getLong(deletedIndex) == 0
+                        && (gender == null || (!cursor.isNull(genderIndex)
+                                && cursor.getInt(genderIndex) == gender))
+                        && (minWeight == null || (weight != null && weight >= minWeight))
+                        && (maxWeight == null || (weight != null && weight <= maxWeight));
+
+                if (!matches) {
+                    builder.remove(id);
+                } else if (current.mComplete || current.isBeforeEnd(id, name, breed, weight)) {
+                    builder.put(id, name, breed, weight);
+                } else {
+                    // The pet moved after the loaded pages, the page that follows them has it
+                    builder.remove(id);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return changeSeq;
+    }
+
+    /** Value of a filter query parameter of the list URI, or null if the list has no filter */
+    private Integer getFilter(String parameter) {
+        final String value = mListUri.getQueryParameter(parameter);
+        return (value != null) ? Integer.valueOf(value) : null;
+    }
+
+    /** Read the last change sequence of the pets table, 0 if it cannot be read */
+    private long readChangeSeq() {
+        Bundle result = getContext().getContentResolver().call(PetEntry.CONTENT_URI,
+                PetContract.METHOD_GET_CHANGE_SEQ, null, null);
+        return (result != null) ? result.getLong(PetContract.EXTRA_CHANGE_SEQ) : 0;
+    }
+
+    /** Append the pets of the given URI, in the sort order of the loader, to the builder */
+    private void readPage(Uri uri, PetList.Builder builder) {
+        Cursor cursor = getContext().getContentResolver().query(uri, PROJECTION, null, null,
+                mSortOrder);
+        if (cursor == null) {
+            return;
+        }
+
+        try {
+            // Look up the column indices once per page instead of once per row
+            final int idIndex = cursor.getColumnIndexOrThrow(PetEntry._ID);
+            final int nameIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_NAME);
+            final int breedIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_BREED);
+            final int weightIndex = cursor.getColumnIndexOrThrow(PetEntry.COLUMN_PET_WEIGHT);
+
+            while (cursor.moveToNext()) {
+                builder.add(cursor.getLong(idIndex), cursor.getString(nameIndex),
+                        cursor.getString(breedIndex),
+                        cursor.isNull(weightIndex) ? null : cursor.getInt(weightIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public void deliverResult(PetList pets) {
+        if (isReset()) {
+            return;
+        }
+
+        mPets = pets;
+        if (isStarted()) {
+            super.deliverResult(pets);
+        }
+    }
+
+    @Override
+    public void onContentChanged() {
+        mChangeCount++;
+        super.onContentChanged();
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserverRegistered) {
+            getContext().getContentResolver().registerContentObserver(PetEntry.CONTENT_URI, true,
+                    mObserver);
+            mObserverRegistered = true;
+        }
+
+        if (mPets != null) {
+            deliverResult(mPets);
+        }
+        if (takeContentChanged() || mPets == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+
+        if (mObserverRegistered) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserverRegistered = false;
+        }
+        mPets = null;
+        mRequestedPages = 1;
+    }
+}
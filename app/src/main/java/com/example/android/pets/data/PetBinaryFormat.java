@@ -0,0 +1,308 @@
+package com.example.android.pets.data;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Packed binary format of a list of pets, read by {@link PetContract#METHOD_BULK_INSERT_BINARY}.
+ *
+ * The data starts with the int {@link #MAGIC} and the short {@link #VERSION}, followed by one
+ * record per pet until the end of the data:
+ * <ul>
+ *     <li>unsigned short: length in bytes of the name, then the name in UTF-8</li>
+ *     <li>unsigned short: length in bytes of the breed, then the breed in UTF-8</li>
+ *     <li>byte: gender, one of the GENDER constants of {@link PetEntry}</li>
+ *     <li>int: weight</li>
+ * </ul>
+ * Numbers are big-endian. A pet is read into reusable arrays, so reading a list of pets of any
+ * size creates no String or byte array per pet.
+ */
+public final class PetBinaryFormat {
+
+    /** "PETS" in ASCII */
+    public static final int MAGIC = 0x50455453;
+
+    public static final short VERSION = 1;
+
+    /** Size of the magic and version at the start of the data */
+    static final int HEADER_SIZE = 6;
+
+    /** Maximum length in bytes of a name or a breed */
+    public static final int MAX_TEXT_LENGTH = 0xFFFF;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Prevent creating instance of this class */
+    private PetBinaryFormat() {}
+
+    /**
+     * Check the header and every pet of the data, with the rules of an insert of
+     * {@link PetProvider}: every pet has a name and a breed in valid UTF-8, and a valid gender.
+     * The position of the buffer is not changed.
+     *
+     * @return the {@link Reader} of the pets
+     * @throws IllegalArgumentException if the data or a pet is invalid, nothing should be
+     *                                  inserted then
+     */
+    static Reader validate(ByteBuffer data) {
+        ByteBuffer buffer = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int maxNameLength = 0;
+        int maxBreedLength = 0;
+        int count = 0;
+
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new IllegalArgumentException("Pet data does not start with the magic");
+            }
+            final short version = buffer.getShort();
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unknown pet data version " + version);
+            }
+
+            while (buffer.hasRemaining()) {
+                final int nameLength = skipText(buffer, count, "name");
+                final int breedLength = skipText(buffer, count, "breed");
+
+                final int gender = buffer.get();
+                if (!PetEntry.isValidGender(gender)) {
+                    throw new IllegalArgumentException("Pet " + count + " has invalid gender "
+                            + gender);
+                }
+                buffer.getInt();
+
+                maxNameLength = Math.max(maxNameLength, nameLength);
+                maxBreedLength = Math.max(maxBreedLength, breedLength);
+                count++;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Pet data is truncated at pet " + count);
+        }
+
+        return new Reader(data, count, maxNameLength, maxBreedLength);
+    }
+
+    /** Skip a text of a pet after checking it is valid UTF-8, and return its length */
+    private static int skipText(ByteBuffer buffer, int pet, String column) {
+        final int length = buffer.getShort() & 0xFFFF;
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        final int end = buffer.position() + length;
+        if (!isValidUtf8(buffer, buffer.position(), end)) {
+            throw new IllegalArgumentException("Pet " + pet + " has an invalid " + column);
+        }
+
+        buffer.position(end);
+        return length;
+    }
+
+    /**
+     * True if the bytes of the buffer from {@code start} to {@code end} excluded are valid
+     * UTF-8: every lead byte is followed by its number of continuation bytes, and there is no
+     * overlong encoding, UTF-16 surrogate or code point above U+10FFFF. The position of the
+     * buffer is not used.
+     */
+    static boolean isValidUtf8(ByteBuffer buffer, int start, int end) {
+        int i = start;
+        while (i < end) {
+            final int b = buffer.get(i) & 0xFF;
+
+            // Number of continuation bytes after this one
+            int continuation;
+            if (b < 0x80) {
+                continuation = 0;
+            } else if (b >= 0xC2 && b <= 0xDF) {
+                continuation = 1;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                continuation = 2;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                continuation = 3;
+            } else {
+                return false;
+            }
+
+            if (i + continuation >= end) {
+                return false;
+            }
+
+            // Some lead bytes allow only part of the continuation bytes after them: E0 and F0
+            // would start overlong encodings, ED surrogates and F4 code points above U+10FFFF
+            int min = 0x80;
+            int max = 0xBF;
+            if (b == 0xE0) {
+                min = 0xA0;
+            } else if (b == 0xED) {
+                max = 0x9F;
+            } else if (b == 0xF0) {
+                min = 0x90;
+            } else if (b == 0xF4) {
+                max = 0x8F;
+            }
+
+            for (int j = 1; j <= continuation; j++) {
+                final int next = buffer.get(i + j) & 0xFF;
+                if (next < min || next > max) {
+                    return false;
+                }
+                min = 0x80;
+                max = 0xBF;
+            }
+            i += 1 + continuation;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the pets of validated data one at a time. The name and breed of the current pet are
+     * in arrays of their exact length that are reused by the following pets, they must not be
+     * kept.
+     */
+    static final class Reader {
+
+        private final ByteBuffer mBuffer;
+        private final int mCount;
+
+        /** Reusable arrays by length, one set for the names and one for the breeds */
+        private final byte[][] mNameArrays;
+        private final byte[][] mBreedArrays;
+
+        private byte[] mName;
+        private byte[] mBreed;
+        private int mGender;
+        private int mWeight;
+
+        private Reader(ByteBuffer data, int count, int maxNameLength, int maxBreedLength) {
+            mBuffer = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+            mBuffer.position(mBuffer.position() + HEADER_SIZE);
+            mCount = count;
+            mNameArrays = new byte[maxNameLength + 1][];
+            mBreedArrays = new byte[maxBreedLength + 1][];
+        }
+
+        /** Number of pets of the data */
+        int getCount() {
+            return mCount;
+        }
+
+        /** Move to the next pet, return false after the last one */
+        boolean next() {
+            if (!mBuffer.hasRemaining()) {
+                return false;
+            }
+
+            mName = readText(mNameArrays);
+            mBreed = readText(mBreedArrays);
+            mGender = mBuffer.get();
+            mWeight = mBuffer.getInt();
+            return true;
+        }
+
+        private byte[] readText(byte[][] arrays) {
+            final int length = mBuffer.getShort() & 0xFFFF;
+            byte[] text = arrays[length];
+            if (text == null) {
+                text = new byte[length];
+                arrays[length] = text;
+            }
+            mBuffer.get(text);
+            return text;
+        }
+
+        /** UTF-8 name of the current pet */
+        byte[] getName() {
+            return mName;
+        }
+
+        /** UTF-8 breed of the current pet */
+        byte[] getBreed() {
+            return mBreed;
+        }
+
+        int getGender() {
+            return mGender;
+        }
+
+        int getWeight() {
+            return mWeight;
+        }
+    }
+
+    /** Writes pets in the binary format to a stream */
+    public static final class Writer {
+
+        private final OutputStream mOutput;
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(8192).order(ByteOrder.BIG_ENDIAN);
+
+        /** Write the header, the pets follow with {@link #writePet} */
+        public Writer(OutputStream output) throws IOException {
+            mOutput = output;
+            mBuffer.putInt(MAGIC);
+            mBuffer.putShort(VERSION);
+        }
+
+        public void writePet(String name, String breed, int gender, int weight)
+                throws IOException {
+            final byte[] nameBytes = name.getBytes(UTF_8);
+            final byte[] breedBytes = breed.getBytes(UTF_8);
+            writePet(nameBytes, 0, nameBytes.length, breedBytes, 0, breedBytes.length, gender,
+                    weight);
+        }
+
+        /** Write a pet whose name and breed are UTF-8 ranges of byte arrays */
+        public void writePet(byte[] name, int nameOffset, int nameLength,
+                             byte[] breed, int breedOffset, int breedLength,
+                             int gender, int weight) throws IOException {
+            if (nameLength > MAX_TEXT_LENGTH || breedLength > MAX_TEXT_LENGTH) {
+                throw new IllegalArgumentException("Pet name or breed is too long");
+            }
+
+            writeText(name, nameOffset, nameLength);
+            writeText(breed, breedOffset, breedLength);
+            ensureRemaining(5);
+            mBuffer.put((byte) gender);
+            mBuffer.putInt(weight);
+        }
+
+        private void writeText(byte[] text, int offset, int length) throws IOException {
+            ensureRemaining(2);
+            mBuffer.putShort((short) length);
+
+            while (length > 0) {
+                ensureRemaining(1);
+                final int chunk = Math.min(length, mBuffer.remaining());
+                mBuffer.put(text, offset, chunk);
+                offset += chunk;
+                length -= chunk;
+            }
+        }
+
+        private void ensureRemaining(int size) throws IOException {
+            if (mBuffer.remaining() < size) {
+                flush();
+            }
+        }
+
+        /** Write the buffered pets to the stream */
+        public void flush() throws IOException {
+            mOutput.write(mBuffer.array(), 0, mBuffer.position());
+            mBuffer.clear();
+            mOutput.flush();
+        }
+
+        /** Write the buffered pets and close the stream */
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                mOutput.close();
+            }
+        }
+    }
+}
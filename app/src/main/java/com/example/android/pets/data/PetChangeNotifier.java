@@ -0,0 +1,122 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * {@link PetChangeNotifier} sends the change notifications of {@link PetProvider} on a
+ * background thread, coalesced within a window.
+ *
+ * The first change after a flush schedules the next flush one window later, and every change
+ * made until then is sent with it. A URI is only sent once per flush, the item URIs are dropped
+ * when the list URI is sent since observers of an item are notified for a change of the list,
+ * and too many item URIs are collapsed into the list URI. A burst of writes therefore reaches
+ * the observers of the catalog as a single notification.
+ */
+final class PetChangeNotifier {
+
+    /** Default time during which changes are collected before being sent */
+    static final long DEFAULT_WINDOW_MILLIS = 50;
+
+    /** Above this number of changed pets, the list URI is sent instead of the item URIs */
+    private static final int MAX_ITEM_URIS = 32;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+
+    /** Changes waiting for the next flush, guarded by {@link #mLock} */
+    private Set<Uri> mPendingUris = new LinkedHashSet<>();
+
+    /** True if the list URI is waiting for the next flush, guarded by {@link #mLock} */
+    private boolean mListChanged;
+
+    private volatile long mWindowMillis = DEFAULT_WINDOW_MILLIS;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    PetChangeNotifier(ContentResolver resolver) {
+        mResolver = resolver;
+
+        HandlerThread thread = new HandlerThread("PetChangeNotifier",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Set the time during which changes are collected before being sent. A window of 0 sends
+     * the changes as soon as the notifier thread runs, only coalescing the ones made until then.
+     */
+    void setWindowMillis(long windowMillis) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Invalid notification window " + windowMillis);
+        }
+        mWindowMillis = windowMillis;
+    }
+
+    long getWindowMillis() {
+        return mWindowMillis;
+    }
+
+    /** Stop the thread of the flushes, the changes waiting for a flush are dropped */
+    void quit() {
+        mHandler.getLooper().quit();
+    }
+
+    /** Send a change of the given URI with the next flush */
+    void notifyChange(Uri uri) {
+        synchronized (mLock) {
+            final boolean idle = !mListChanged && mPendingUris.isEmpty();
+
+            if (PetEntry.CONTENT_URI.equals(uri)) {
+                mListChanged = true;
+                mPendingUris.clear();
+            } else if (!mListChanged) {
+                mPendingUris.add(uri);
+                if (mPendingUris.size() > MAX_ITEM_URIS) {
+                    mListChanged = true;
+                    mPendingUris.clear();
+                }
+            }
+
+            if (idle) {
+                mHandler.postDelayed(mFlush, mWindowMillis);
+            }
+        }
+    }
+
+    private void flush() {
+        final Set<Uri> uris;
+        final boolean listChanged;
+        synchronized (mLock) {
+            uris = mPendingUris;
+            listChanged = mListChanged;
+            mPendingUris = new LinkedHashSet<>();
+            mListChanged = false;
+        }
+
+        if (listChanged) {
+            mResolver.notifyChange(PetEntry.CONTENT_URI, null);
+            return;
+        }
+
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+}
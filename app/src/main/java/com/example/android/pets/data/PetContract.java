@@ -19,11 +19,306 @@ public final class PetContract {
 
     public static final String PATH_PETS = "pets";
 
+    public static final String PATH_SEARCH = "search";
+
+    public static final String PATH_STATS = "stats";
+
+    public static final String PATH_BREEDS = "breeds";
+
+    public static final String PATH_EXPORT = "export";
+
+    public static final String PATH_CHANGES = "changes";
+
+    /** Query parameter of {@link PetEntry#CONTENT_SEARCH_URI} with the text to search for */
+    public static final String QUERY_PARAMETER_SEARCH = "q";
+
+    /**
+     * Query parameter of {@link PetEntry#CONTENT_URI}, only pets with an {@link PetEntry#_ID}
+     * greater than this value are returned. Used together with {@link #QUERY_PARAMETER_LIMIT}.
+     */
+    public static final String QUERY_PARAMETER_AFTER = "after";
+
+    /**
+     * Query parameter of {@link PetEntry#CONTENT_URI} for a page of pets in one of the sort
+     * orders of {@link PetEntry}: the value of the sort column of the last pet of the previous
+     * page, next to its {@link PetEntry#_ID} in {@link #QUERY_PARAMETER_AFTER}. Missing when
+     * that value is null.
+     */
+    public static final String QUERY_PARAMETER_AFTER_VALUE = "after_value";
+
+    /**
+     * Query parameter of {@link PetEntry#CONTENT_URI}, the maximum number of pets to return.
+     * A query with a limit is ordered by its sort order, then by {@link PetEntry#_ID}.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+    /** Query parameter of {@link PetEntry#CONTENT_URI}, only pets of this gender are returned */
+    public static final String QUERY_PARAMETER_GENDER = "gender";
+
+    /**
+     * Query parameter of {@link PetEntry#CONTENT_URI}, only pets that weigh at least this much
+     * are returned
+     */
+    public static final String QUERY_PARAMETER_MIN_WEIGHT = "min_weight";
+
+    /**
+     * Query parameter of {@link PetEntry#CONTENT_URI}, only pets that weigh at most this much
+     * are returned
+     */
+    public static final String QUERY_PARAMETER_MAX_WEIGHT = "max_weight";
+
+    /**
+     * Query parameter of {@link PetEntry#CONTENT_CHANGES_URI}, only pets changed after this
+     * {@link PetEntry#COLUMN_CHANGE_SEQ} are returned.
+     */
+    public static final String QUERY_PARAMETER_SINCE = "since";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} that returns the statistics of the
+     * pet row cache of the provider in {@link #EXTRA_CACHE_HITS}, {@link #EXTRA_CACHE_MISSES}
+     * and {@link #EXTRA_CACHE_SIZE}, and of its cache of list results in
+     * {@link #EXTRA_QUERY_CACHE_HITS}, {@link #EXTRA_QUERY_CACHE_MISSES} and
+     * {@link #EXTRA_QUERY_CACHE_BYTES}.
+     */
+    public static final String METHOD_GET_PET_CACHE_STATS = "get_pet_cache_stats";
+
+    /** Number of single pet queries served from the row cache */
+    public static final String EXTRA_CACHE_HITS = "cache_hits";
+
+    /** Number of single pet queries that had to read the database */
+    public static final String EXTRA_CACHE_MISSES = "cache_misses";
+
+    /** Number of pets in the row cache */
+    public static final String EXTRA_CACHE_SIZE = "cache_size";
+
+    /** Number of queries of {@link PetEntry#CONTENT_URI} served from the result cache */
+    public static final String EXTRA_QUERY_CACHE_HITS = "query_cache_hits";
+
+    /** Number of queries of {@link PetEntry#CONTENT_URI} that had to read the database */
+    public static final String EXTRA_QUERY_CACHE_MISSES = "query_cache_misses";
+
+    /** Estimated size in bytes of the results in the result cache */
+    public static final String EXTRA_QUERY_CACHE_BYTES = "query_cache_bytes";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} that sets how long the provider
+     * collects changes before notifying them, in {@link #EXTRA_NOTIFY_WINDOW_MILLIS}.
+     */
+    public static final String METHOD_SET_NOTIFY_WINDOW = "set_notify_window";
+
+    /** Time in milliseconds during which change notifications are coalesced */
+    public static final String EXTRA_NOTIFY_WINDOW_MILLIS = "notify_window_millis";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} that returns the latency and row
+     * counts of the provider calls since the previous one, and resets them. The result has a
+     * bundle per URI and operation, e.g. "pets/# query", with {@link #EXTRA_METRICS_CALLS},
+     * {@link #EXTRA_METRICS_ROWS}, the mean and percentile latencies in microseconds and the
+     * latency histogram.
+     */
+    public static final String METHOD_GET_METRICS = "get_metrics";
+
+    /** Number of calls */
+    public static final String EXTRA_METRICS_CALLS = "calls";
+
+    /** Number of rows returned or written by the calls */
+    public static final String EXTRA_METRICS_ROWS = "rows";
+
+    /** Mean latency of the calls in microseconds */
+    public static final String EXTRA_METRICS_MEAN_MICROS = "mean_us";
+
+    /** Latency under which 50% of the calls completed, rounded up to a power of two */
+    public static final String EXTRA_METRICS_P50_MICROS = "p50_us";
+
+    /** Latency under which 90% of the calls completed, rounded up to a power of two */
+    public static final String EXTRA_METRICS_P90_MICROS = "p90_us";
+
+    /** Latency under which 99% of the calls completed, rounded up to a power of two */
+    public static final String EXTRA_METRICS_P99_MICROS = "p99_us";
+
+    /**
+     * Number of calls per latency bucket, bucket i holds the calls that took less than 2^i
+     * microseconds and more than the previous bucket
+     */
+    public static final String EXTRA_METRICS_HISTOGRAM = "histogram";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} that inserts the pets of data in
+     * {@link PetBinaryFormat}, given either as a byte array in {@link #EXTRA_PETS_DATA} or as a
+     * file in {@link #EXTRA_PETS_FILE}. All the pets are checked with the rules of an insert
+     * before any is inserted, then they are inserted in one transaction. The result has the
+     * number of inserted pets in {@link #EXTRA_INSERTED_ROWS}.
+     */
+    public static final String METHOD_BULK_INSERT_BINARY = "bulk_insert_binary";
+
+    /** Byte array of pets in {@link PetBinaryFormat} */
+    public static final String EXTRA_PETS_DATA = "pets_data";
+
+    /** {@link android.os.ParcelFileDescriptor} of a file of pets in {@link PetBinaryFormat} */
+    public static final String EXTRA_PETS_FILE = "pets_file";
+
+    /** Number of inserted pets */
+    public static final String EXTRA_INSERTED_ROWS = "inserted_rows";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} that restores the pets of the last
+     * delete, if it happened less than {@link #UNDO_WINDOW_MILLIS} ago. The result has the
+     * number of restored pets in {@link #EXTRA_RESTORED_ROWS}.
+     */
+    public static final String METHOD_UNDO_DELETE = "undo_delete";
+
+    /** Number of restored pets */
+    public static final String EXTRA_RESTORED_ROWS = "restored_rows";
+
+    /** Time after a delete during which it can be undone */
+    public static final long UNDO_WINDOW_MILLIS = 10000;
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} that removes every deleted pet now,
+     * without waiting for the background purge. The deleted pets can no longer be restored. The
+     * result has the number of removed pets in {@link #EXTRA_PURGED_ROWS}.
+     */
+    public static final String METHOD_PURGE_DELETED = "purge_deleted";
+
+    /** Number of removed pets */
+    public static final String EXTRA_PURGED_ROWS = "purged_rows";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} that returns the last change
+     * sequence given to a pet in {@link #EXTRA_CHANGE_SEQ}. The pets read after it reflect every
+     * change up to it, the next changes are read from {@link PetEntry#CONTENT_CHANGES_URI}.
+     */
+    public static final String METHOD_GET_CHANGE_SEQ = "get_change_seq";
+
+    /** Last change sequence given to a pet */
+    public static final String EXTRA_CHANGE_SEQ = "change_seq";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} that turns the group commit of the
+     * provider on with the window in {@link #EXTRA_GROUP_COMMIT_WINDOW_MILLIS}, or off with 0.
+     * With group commit, the inserts, updates and deletes of concurrent callers are queued and
+     * committed in one transaction per window, instead of one transaction and one journal sync
+     * each. Every caller still gets the result of its own write, once it is committed.
+     */
+    public static final String METHOD_SET_GROUP_COMMIT = "set_group_commit";
+
+    /** Time during which the writes of a group are collected, 0 to turn group commit off */
+    public static final String EXTRA_GROUP_COMMIT_WINDOW_MILLIS = "group_commit_window_millis";
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} that sets the query plan watchdog
+     * of the provider to the mode in {@link #EXTRA_WATCHDOG_MODE}, with the number of pets in
+     * {@link #EXTRA_WATCHDOG_ROW_THRESHOLD} above which a full scan of the pets table or a
+     * temporary B-tree is reported. Only available in debug builds.
+     */
+    public static final String METHOD_SET_QUERY_WATCHDOG = "set_query_watchdog";
+
+    /**
+     * One of {@link #WATCHDOG_MODE_OFF}, {@link #WATCHDOG_MODE_LOG} or
+     * {@link #WATCHDOG_MODE_THROW}
+     */
+    public static final String EXTRA_WATCHDOG_MODE = "watchdog_mode";
+
+    /** Number of pets above which a slow plan is reported, 1000 if missing */
+    public static final String EXTRA_WATCHDOG_ROW_THRESHOLD = "watchdog_row_threshold";
+
+    /** The query plans are not checked */
+    public static final int WATCHDOG_MODE_OFF = 0;
+
+    /** A slow query plan is logged the first time its statement runs */
+    public static final int WATCHDOG_MODE_LOG = 1;
+
+    /** A statement with a slow query plan fails with an IllegalArgumentException */
+    public static final int WATCHDOG_MODE_THROW = 2;
+
+    /**
+     * Method of {@link android.content.ContentResolver#call} that returns the statements checked
+     * by the query plan watchdog with the highest mean time, slowest first, in
+     * {@link #EXTRA_QUERY_PLANS}. Only available in debug builds.
+     */
+    public static final String METHOD_GET_QUERY_PLANS = "get_query_plans";
+
+    /**
+     * List of bundles, one per statement with {@link #EXTRA_PLAN_STATEMENT},
+     * {@link #EXTRA_PLAN_DETAIL}, {@link #EXTRA_PLAN_SLOW}, {@link #EXTRA_METRICS_CALLS},
+     * {@link #EXTRA_METRICS_MEAN_MICROS} and {@link #EXTRA_PLAN_MAX_MICROS}
+     */
+    public static final String EXTRA_QUERY_PLANS = "query_plans";
+
+    /** SQL of a statement, with "?" for the arguments */
+    public static final String EXTRA_PLAN_STATEMENT = "statement";
+
+    /** Steps of the query plan of a statement, separated by "; " */
+    public static final String EXTRA_PLAN_DETAIL = "plan";
+
+    /** True if the plan scans the pets table or uses a temporary B-tree above the threshold */
+    public static final String EXTRA_PLAN_SLOW = "slow";
+
+    /** Longest time of a statement */
+    public static final String EXTRA_PLAN_MAX_MICROS = "max_us";
+
     /** Inner class that defines the table structure of the pets table */
     public static final class PetEntry implements BaseColumns {
 
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_PETS);
 
+        /**
+         * Full-text search over the name and breed of the pets. Pets whose name matches come
+         * first, followed by pets that only match on breed. Use {@link #buildSearchUri} to
+         * build a query.
+         */
+        public static final Uri CONTENT_SEARCH_URI = Uri.withAppendedPath(CONTENT_URI,
+                PATH_SEARCH);
+
+        /**
+         * The pets inserted, updated, deleted or restored after the change sequence of
+         * {@link PetContract#QUERY_PARAMETER_SINCE}, in {@link #COLUMN_CHANGE_SEQ} order. A
+         * deleted pet comes with its {@link #COLUMN_DELETED} time. At most
+         * {@link PetContract#QUERY_PARAMETER_LIMIT} pets are returned, 1000 by default, the
+         * next ones are read since the change sequence of the last pet. Use
+         * {@link #buildChangesUri} to build a query.
+         *
+         * Deleted pets are removed for good a while after their delete, so the changes since an
+         * old sequence may miss deletes. Such a query throws an
+         * {@link IllegalArgumentException}, the pets have to be read again since 0, which
+         * returns every pet that exists.
+         */
+        public static final Uri CONTENT_CHANGES_URI = Uri.withAppendedPath(CONTENT_URI,
+                PATH_CHANGES);
+
+        /** Name of the export of all the pets in CSV */
+        public static final String EXPORT_CSV_FILE = "pets.csv";
+
+        /** Name of the export of all the pets in {@link PetBinaryFormat} */
+        public static final String EXPORT_BINARY_FILE = "pets.bin";
+
+        /**
+         * All the pets in CSV in _ID order, with a header line and the columns _ID, name,
+         * breed, gender and weight. Open it with
+         * {@link ContentResolver#openInputStream}, the pets are streamed as they are read so
+         * they can be read while the export runs. The same stream is returned by
+         * {@link ContentResolver#openTypedAssetFileDescriptor} of {@link #CONTENT_URI} for
+         * {@link #CONTENT_CSV_TYPE}.
+         */
+        public static final Uri CONTENT_EXPORT_CSV_URI = CONTENT_URI.buildUpon()
+                .appendPath(PATH_EXPORT).appendPath(EXPORT_CSV_FILE).build();
+
+        /**
+         * All the pets in {@link PetBinaryFormat} in _ID order, without their _ID, so the
+         * export can be inserted again with {@link PetContract#METHOD_BULK_INSERT_BINARY}.
+         * Streamed like {@link #CONTENT_EXPORT_CSV_URI}, also for
+         * {@link #CONTENT_BINARY_TYPE}.
+         */
+        public static final Uri CONTENT_EXPORT_BINARY_URI = CONTENT_URI.buildUpon()
+                .appendPath(PATH_EXPORT).appendPath(EXPORT_BINARY_FILE).build();
+
+        /** The MIME type of {@link #CONTENT_EXPORT_CSV_URI} */
+        public static final String CONTENT_CSV_TYPE = "text/csv";
+
+        /** The MIME type of {@link #CONTENT_EXPORT_BINARY_URI} */
+        public static final String CONTENT_BINARY_TYPE = "application/vnd." + CONTENT_AUTHORITY
+                + "." + PATH_PETS;
+
         /**
          * The MIME type of the {@link #CONTENT_URI} for a list of pets.
          */
@@ -39,6 +334,84 @@ public final class PetContract {
         /** Prevent creating instance of this class */
         private PetEntry() {}
 
+        /**
+         * Sort orders of {@link #CONTENT_URI}, no other sort order is accepted. Pets with the
+         * same value are ordered by {@link #_ID}. Without a sort order the pets are in
+         * {@link #_ID} order.
+         */
+        public static final String SORT_BY_NAME = "name ASC";
+        public static final String SORT_BY_BREED = "breed ASC";
+        public static final String SORT_BY_WEIGHT = "weight ASC";
+
+        /**
+         * Build the URI of the page of at most {@code limit} pets that come right after the pet
+         * with the given ID. Use 0 as {@code afterId} for the first page, and the last ID of a
+         * page for the page that follows it.
+         */
+        public static Uri buildPageUri(long afterId, int limit) {
+            return buildPageUri(CONTENT_URI, null, afterId, limit);
+        }
+
+        /**
+         * Build the URI of a page of at most {@code limit} pets of a list URI, e.g. of
+         * {@link #buildFilterUri}, queried with a sort order. The page comes right after the
+         * pet with the given ID and the given value of the sort column, null for the
+         * {@link #_ID} order. Use 0 as {@code afterId} for the first page.
+         */
+        public static Uri buildPageUri(Uri listUri, String afterValue, long afterId, int limit) {
+            Uri.Builder builder = listUri.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_AFTER, String.valueOf(afterId));
+            if (afterValue != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_AFTER_VALUE, afterValue);
+            }
+            return builder.appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Build the URI of the pets of a gender and a weight range. A null filter matches every
+         * pet, the weight range includes its bounds.
+         */
+        public static Uri buildFilterUri(Integer gender, Integer minWeight, Integer maxWeight) {
+            Uri.Builder builder = CONTENT_URI.buildUpon();
+            if (gender != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_GENDER, String.valueOf(gender));
+            }
+            if (minWeight != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_MIN_WEIGHT,
+                        String.valueOf(minWeight));
+            }
+            if (maxWeight != null) {
+                builder.appendQueryParameter(QUERY_PARAMETER_MAX_WEIGHT,
+                        String.valueOf(maxWeight));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Build the URI of the at most {@code limit} pets changed after the given change
+         * sequence. Use 0 for every pet, and the change sequence of the last pet read for the
+         * changes that follow.
+         */
+        public static Uri buildChangesUri(long since, int limit) {
+            return CONTENT_CHANGES_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SINCE, String.valueOf(since))
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Build the URI that searches for the pets matching the given text, returning at most
+         * {@code limit} pets. Every word of the text must match the start of a word in the
+         * name or the breed.
+         */
+        public static Uri buildSearchUri(String query, int limit) {
+            return CONTENT_SEARCH_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_SEARCH, query)
+                    .appendQueryParameter(QUERY_PARAMETER_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
         public static final String TABLE_NAME = "pets";
 
         public static final String COLUMN_PET_NAME = "name";
@@ -49,9 +422,81 @@ public final class PetContract {
 
         public static final String COLUMN_PET_WEIGHT = "weight";
 
+        /**
+         * Read only, in {@link #CONTENT_CHANGES_URI}: 0 for a pet that exists, the time of its
+         * delete in milliseconds for a deleted pet
+         */
+        public static final String COLUMN_DELETED = "deleted";
+
+        /**
+         * Read only: increasing number given to a pet each time it is inserted, updated,
+         * deleted or restored
+         */
+        public static final String COLUMN_CHANGE_SEQ = "change_seq";
+
         public static final int GENDER_MALE = 1;
         public static final int GENDER_FEMALE = 2;
         public static final int GENDER_UNKNOWN = 0;
 
+        /** True if the gender is one of the GENDER constants */
+        public static boolean isValidGender(int gender) {
+            return gender == GENDER_UNKNOWN || gender == GENDER_MALE || gender == GENDER_FEMALE;
+        }
+
+    }
+
+    /**
+     * Statistics of the pets, kept up to date by the database on every write so they are read
+     * without going through the pets. They always equal a GROUP BY over the pets table, where a
+     * pet without gender counts as {@link PetEntry#GENDER_UNKNOWN} and a pet without breed as an
+     * empty breed.
+     */
+    public static final class PetStatsEntry {
+
+        /**
+         * One row per gender that has pets, with {@link #COLUMN_GENDER},
+         * {@link #COLUMN_PET_COUNT}, {@link #COLUMN_WEIGHT_SUM}, {@link #COLUMN_WEIGHT_COUNT}
+         * and {@link #COLUMN_AVERAGE_WEIGHT}.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(PetEntry.CONTENT_URI,
+                PATH_STATS);
+
+        /**
+         * One row per breed that has pets, with {@link #COLUMN_BREED} and
+         * {@link #COLUMN_PET_COUNT}, the most common breeds first. Accepts
+         * {@link #QUERY_PARAMETER_LIMIT} for the top breeds.
+         */
+        public static final Uri CONTENT_BREEDS_URI = Uri.withAppendedPath(CONTENT_URI,
+                PATH_BREEDS);
+
+        public static final String CONTENT_GENDER_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS + "." + PATH_STATS;
+
+        public static final String CONTENT_BREED_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE
+                + "/" + CONTENT_AUTHORITY + "/" + PATH_PETS + "." + PATH_STATS + "."
+                + PATH_BREEDS;
+
+        /** Prevent creating instance of this class */
+        private PetStatsEntry() {}
+
+        public static final String GENDER_TABLE_NAME = "pet_gender_stats";
+
+        public static final String BREED_TABLE_NAME = "pet_breed_stats";
+
+        public static final String COLUMN_GENDER = "gender";
+
+        public static final String COLUMN_BREED = "breed";
+
+        /** Number of pets */
+        public static final String COLUMN_PET_COUNT = "pet_count";
+
+        /** Sum of the weights of the pets that have one */
+        public static final String COLUMN_WEIGHT_SUM = "weight_sum";
+
+        /** Number of pets that have a weight */
+        public static final String COLUMN_WEIGHT_COUNT = "weight_count";
+
+        /** Average weight of the pets that have one, null if none has */
+        public static final String COLUMN_AVERAGE_WEIGHT = "average_weight";
     }
 }
@@ -0,0 +1,508 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * {@link PetCsvImporter} inserts the pets of a CSV file, e.g. the dump of a shelter or an export
+ * of {@link PetEntry#CONTENT_EXPORT_CSV_URI}.
+ *
+ * The first line is the header, it must name the columns name, breed, gender and weight in any
+ * order, other columns are ignored. Fields may be quoted as in RFC 4180, lines end with LF or
+ * CRLF. The file is mapped in memory and parsed as bytes: names and breeds are copied as UTF-8
+ * into the batch without becoming Strings, genders and weights are parsed in place. A row that
+ * would not pass the validation of {@link PetProvider} is rejected and reported, the others are
+ * inserted in batches through {@link PetContract#METHOD_BULK_INSERT_BINARY}, one transaction
+ * per batch. {@link #importPets} blocks, it must be called on a background thread.
+ */
+public final class PetCsvImporter {
+
+    /** Receives the progress of {@link #importPets} on the importing thread */
+    public interface Listener {
+        /**
+         * Called after every batch.
+         *
+         * @param readBytes     The number of bytes of the file parsed so far
+         * @param totalBytes    The size of the file
+         * @param insertedRows  The number of pets inserted so far
+         * @param rejectedRows  The number of rows rejected so far
+         * @param rowsPerSecond The average insert throughput since the start
+         */
+        void onProgress(long readBytes, long totalBytes, long insertedRows, long rejectedRows,
+                        double rowsPerSecond);
+
+        /**
+         * Called for every row that is not inserted.
+         *
+         * @param line   The line of the file where the row starts, the header is line 1
+         * @param reason Why the row is rejected
+         */
+        void onRowRejected(long line, String reason);
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Size of the part of the file mapped at a time, a row must fit in it */
+    private static final int MAP_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Maximum size of the data of a batch, so it fits in a binder transaction when the
+     * provider runs in another process
+     */
+    private static final int MAX_BATCH_BYTES = 512 * 1024;
+
+    /** Size of a pet in {@link PetBinaryFormat} besides its name and breed */
+    private static final int PET_FIXED_BYTES = 2 + 2 + 1 + 4;
+
+    /** Returned by {@link #parseRow} when the row goes past the mapped part of the file */
+    private static final int INCOMPLETE = -1;
+
+    /** Columns that must be in the header, in the order of {@link #mColumnFields} */
+    private static final String[] COLUMNS = {
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+    private static final int NAME = 0;
+    private static final int BREED = 1;
+    private static final int GENDER = 2;
+    private static final int WEIGHT = 3;
+
+    private final int mBatchSize;
+
+    private volatile boolean mCancelled;
+
+    /** Field of each column of {@link #COLUMNS}, null until the header is read */
+    private int[] mColumnFields;
+
+    /** Start and end of each field of the current row, and whether it has doubled quotes */
+    private int[] mFieldBounds = new int[2 * 8];
+    private boolean[] mFieldEscaped = new boolean[8];
+    private int mFieldCount;
+
+    /** True if the current row has text after the closing quote of a field */
+    private boolean mRowMalformed;
+
+    /** Number of line breaks inside the quoted fields of the current row */
+    private int mRowLineBreaks;
+
+    /** The name and breed of the current row without their quotes */
+    private final byte[] mName = new byte[PetBinaryFormat.MAX_TEXT_LENGTH];
+    private final byte[] mBreed = new byte[PetBinaryFormat.MAX_TEXT_LENGTH];
+    private final ByteBuffer mNameBuffer = ByteBuffer.wrap(mName);
+    private final ByteBuffer mBreedBuffer = ByteBuffer.wrap(mBreed);
+
+    /** Value parsed by {@link #parseInt} */
+    private int mParsedInt;
+
+    /** Pets of the current batch in {@link PetBinaryFormat} */
+    private final ByteArrayOutputStream mBatch = new ByteArrayOutputStream();
+    private PetBinaryFormat.Writer mBatchWriter;
+    private int mBatchRows;
+    private int mBatchBytes;
+
+    private ContentResolver mResolver;
+    private Listener mListener;
+    private long mStartNanos;
+    private long mTotalBytes;
+    private long mInsertedRows;
+    private long mRejectedRows;
+
+    private PetCsvImporter(Builder builder) {
+        mBatchSize = builder.mBatchSize;
+    }
+
+    /** Stop {@link #importPets} after the batch that is being inserted */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Insert the valid pets of a CSV file.
+     *
+     * @param resolver The resolver of the pets provider
+     * @param file     The CSV file, it must be a file and not a pipe so it can be mapped. It is
+     *                 not closed.
+     * @param listener Notified of the progress and of the rejected rows, may be null
+     * @return the number of pets that were inserted
+     * @throws IllegalArgumentException if the file cannot be mapped, its header misses a column
+     *                                  or it has a row longer than the mapped part
+     */
+    public synchronized long importPets(ContentResolver resolver, ParcelFileDescriptor file,
+                                        Listener listener) throws IOException {
+        mTotalBytes = file.getStatSize();
+        if (mTotalBytes < 0) {
+            throw new IllegalArgumentException("CSV must be a file to be mapped in memory");
+        }
+
+        mResolver = resolver;
+        mListener = listener;
+        mStartNanos = System.nanoTime();
+        mInsertedRows = 0;
+        mRejectedRows = 0;
+        mColumnFields = null;
+        startBatch();
+
+        FileChannel channel = new FileInputStream(file.getFileDescriptor()).getChannel();
+        long position = 0;
+        long line = 1;
+        while (position < mTotalBytes && !mCancelled) {
+            final int size = (int) Math.min(MAP_SIZE, mTotalBytes - position);
+            final boolean lastPart = position + size == mTotalBytes;
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+
+            int start = (position == 0) ? skipByteOrderMark(buffer) : 0;
+            while (start < size && !mCancelled) {
+                final int end = parseRow(buffer, start, size, lastPart);
+                if (end == INCOMPLETE) {
+                    break;
+                }
+
+                if (mColumnFields == null) {
+                    readHeader(buffer);
+                } else if (addRow(buffer, line)
+                        && (mBatchRows == mBatchSize || mBatchBytes >= MAX_BATCH_BYTES)) {
+                    insertBatch(position + end);
+                }
+                line += 1 + mRowLineBreaks;
+                start = end;
+            }
+
+            if (start == 0 && !mCancelled) {
+                throw new IllegalArgumentException("CSV row at line " + line + " is longer than "
+                        + MAP_SIZE + " bytes");
+            }
+            position += start;
+        }
+
+        if (mCancelled) {
+            return mInsertedRows;
+        }
+        if (mColumnFields == null) {
+            throw new IllegalArgumentException("CSV has no header");
+        }
+        insertBatch(position);
+        return mInsertedRows;
+    }
+
+    /** Return the position after the UTF-8 byte order mark at the start of the file, if any */
+    private static int skipByteOrderMark(ByteBuffer buffer) {
+        if (buffer.limit() >= 3 && (buffer.get(0) & 0xFF) == 0xEF
+                && (buffer.get(1) & 0xFF) == 0xBB && (buffer.get(2) & 0xFF) == 0xBF) {
+            return 3;
+        }
+        return 0;
+    }
+
+    /**
+     * Find the bounds of the fields of the row that starts at {@code start}. The bounds of a
+     * quoted field exclude its quotes, and a CR before the LF is not part of the last field.
+     *
+     * @return the position after the end of the row, or {@link #INCOMPLETE} if the row goes
+     *         past {@code limit} and this is not the last part of the file
+     */
+    private int parseRow(ByteBuffer buffer, int start, int limit, boolean lastPart) {
+        mFieldCount = 0;
+        mRowMalformed = false;
+        mRowLineBreaks = 0;
+
+        int position = start;
+        while (true) {
+            final int fieldStart;
+            final int fieldEnd;
+            boolean escaped = false;
+
+            if (position < limit && buffer.get(position) == '"') {
+                // A quoted field ends at a quote that is not doubled
+                fieldStart = ++position;
+                while (true) {
+                    if (position >= limit) {
+                        if (!lastPart) {
+                            return INCOMPLETE;
+                        }
+                        mRowMalformed = true;
+                        break;
+                    }
+                    final byte b = buffer.get(position);
+                    if (b == '"') {
+                        if (position + 1 < limit && buffer.get(position + 1) == '"') {
+                            escaped = true;
+                            position += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    if (b == '\n') {
+                        mRowLineBreaks++;
+                    }
+                    position++;
+                }
+                fieldEnd = position++;
+
+                // Only the separator or the end of the row may follow the closing quote
+                while (position < limit) {
+                    final byte b = buffer.get(position);
+                    if (b == ',' || b == '\n') {
+                        break;
+                    }
+                    if (b != '\r') {
+                        mRowMalformed = true;
+                    }
+                    position++;
+                }
+            } else {
+                fieldStart = position;
+                while (position < limit) {
+                    final byte b = buffer.get(position);
+                    if (b == ',' || b == '\n') {
+                        break;
+                    }
+                    position++;
+                }
+                fieldEnd = (position > fieldStart && buffer.get(position - 1) == '\r'
+                        && (position == limit || buffer.get(position) == '\n'))
+                        ? position - 1 : position;
+            }
+
+            if (position >= limit && !lastPart) {
+                return INCOMPLETE;
+            }
+            addField(fieldStart, fieldEnd, escaped);
+
+            if (position >= limit) {
+                return limit;
+            }
+            if (buffer.get(position) == '\n') {
+                return position + 1;
+            }
+            position++;
+        }
+    }
+
+    private void addField(int start, int end, boolean escaped) {
+        if (mFieldEscaped.length == mFieldCount) {
+            mFieldBounds = Arrays.copyOf(mFieldBounds, 4 * mFieldCount);
+            mFieldEscaped = Arrays.copyOf(mFieldEscaped, 2 * mFieldCount);
+        }
+        mFieldBounds[2 * mFieldCount] = start;
+        mFieldBounds[2 * mFieldCount + 1] = end;
+        mFieldEscaped[mFieldCount] = escaped;
+        mFieldCount++;
+    }
+
+    /** Find the field of every imported column in the header row */
+    private void readHeader(ByteBuffer buffer) {
+        mColumnFields = new int[COLUMNS.length];
+        Arrays.fill(mColumnFields, -1);
+
+        for (int field = 0; field < mFieldCount; field++) {
+            final int length = copyField(buffer, field, mName);
+            final String name = (length < 0) ? ""
+                    : new String(mName, 0, length, UTF_8).trim().toLowerCase(Locale.US);
+            for (int column = 0; column < COLUMNS.length; column++) {
+                if (COLUMNS[column].equals(name) && mColumnFields[column] == -1) {
+                    mColumnFields[column] = field;
+                }
+            }
+        }
+
+        for (int column = 0; column < COLUMNS.length; column++) {
+            if (mColumnFields[column] == -1) {
+                throw new IllegalArgumentException("CSV header has no " + COLUMNS[column]
+                        + " column");
+            }
+        }
+    }
+
+    /**
+     * Add the current row to the batch if it is valid, otherwise report it. Empty lines are
+     * skipped.
+     *
+     * @return true if the row was added
+     */
+    private boolean addRow(ByteBuffer buffer, long line) throws IOException {
+        if (mFieldCount == 1 && mFieldBounds[0] == mFieldBounds[1]) {
+            return false;
+        }
+        if (mRowMalformed) {
+            return reject(line, "Malformed quotes");
+        }
+        for (int column = 0; column < COLUMNS.length; column++) {
+            if (mColumnFields[column] >= mFieldCount) {
+                return reject(line, "Missing " + COLUMNS[column]);
+            }
+        }
+
+        // Same rules as the insert of the provider
+        if (!parseInt(buffer, mColumnFields[GENDER])
+                || !PetEntry.isValidGender(mParsedInt)) {
+            return reject(line, "Invalid gender");
+        }
+        final int gender = mParsedInt;
+        if (!parseInt(buffer, mColumnFields[WEIGHT])) {
+            return reject(line, "Invalid weight");
+        }
+        final int weight = mParsedInt;
+
+        final int nameLength = copyField(buffer, mColumnFields[NAME], mName);
+        if (nameLength < 0 || !PetBinaryFormat.isValidUtf8(mNameBuffer, 0, nameLength)) {
+            return reject(line, "Invalid name");
+        }
+        final int breedLength = copyField(buffer, mColumnFields[BREED], mBreed);
+        if (breedLength < 0 || !PetBinaryFormat.isValidUtf8(mBreedBuffer, 0, breedLength)) {
+            return reject(line, "Invalid breed");
+        }
+
+        mBatchWriter.writePet(mName, 0, nameLength, mBreed, 0, breedLength, gender, weight);
+        mBatchRows++;
+        mBatchBytes += PET_FIXED_BYTES + nameLength + breedLength;
+        return true;
+    }
+
+    private boolean reject(long line, String reason) {
+        mRejectedRows++;
+        if (mListener != null) {
+            mListener.onRowRejected(line, reason);
+        }
+        return false;
+    }
+
+    /**
+     * Copy a field without its doubled quotes.
+     *
+     * @return the length of the copy, or -1 if it is longer than the array
+     */
+    private int copyField(ByteBuffer buffer, int field, byte[] copy) {
+        final int start = mFieldBounds[2 * field];
+        final int end = mFieldBounds[2 * field + 1];
+
+        if (!mFieldEscaped[field]) {
+            if (end - start > copy.length) {
+                return -1;
+            }
+            buffer.position(start);
+            buffer.get(copy, 0, end - start);
+            return end - start;
+        }
+
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            if (length == copy.length) {
+                return -1;
+            }
+            final byte b = buffer.get(i);
+            copy[length++] = b;
+            if (b == '"') {
+                // Skip the second quote
+                i++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Parse a field as a decimal int, surrounded by optional spaces, into {@link #mParsedInt}.
+     *
+     * @return false if the field is empty, not a number or out of the int range
+     */
+    private boolean parseInt(ByteBuffer buffer, int field) {
+        int start = mFieldBounds[2 * field];
+        int end = mFieldBounds[2 * field + 1];
+        while (start < end && buffer.get(start) == ' ') {
+            start++;
+        }
+        while (end > start && buffer.get(end - 1) == ' ') {
+            end--;
+        }
+
+        final boolean negative = start < end && buffer.get(start) == '-';
+        if (negative) {
+            start++;
+        }
+        if (start == end) {
+            return false;
+        }
+
+        // Accumulate as a negative number, its range includes Integer.MIN_VALUE
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            final int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return false;
+            }
+            value = value * 10 - digit;
+            if (value < Integer.MIN_VALUE) {
+                return false;
+            }
+        }
+        if (!negative && value == Integer.MIN_VALUE) {
+            return false;
+        }
+
+        mParsedInt = (int) (negative ? value : -value);
+        return true;
+    }
+
+    private void startBatch() throws IOException {
+        mBatch.reset();
+        mBatchWriter = new PetBinaryFormat.Writer(mBatch);
+        mBatchRows = 0;
+        mBatchBytes = 0;
+    }
+
+    /** Insert the pets of the batch in one transaction and report the progress */
+    private void insertBatch(long readBytes) throws IOException {
+        if (mBatchRows > 0) {
+            mBatchWriter.flush();
+            Bundle extras = new Bundle();
+            extras.putByteArray(PetContract.EXTRA_PETS_DATA, mBatch.toByteArray());
+            Bundle result = mResolver.call(PetEntry.CONTENT_URI,
+                    PetContract.METHOD_BULK_INSERT_BINARY, null, extras);
+            if (result != null) {
+                mInsertedRows += result.getInt(PetContract.EXTRA_INSERTED_ROWS);
+            }
+            startBatch();
+        }
+
+        if (mListener != null) {
+            final double seconds = (System.nanoTime() - mStartNanos) / 1e9;
+            mListener.onProgress(readBytes, mTotalBytes, mInsertedRows, mRejectedRows,
+                    (seconds > 0) ? mInsertedRows / seconds : 0);
+        }
+    }
+
+    /** Configures a {@link PetCsvImporter}, every setting has a default */
+    public static final class Builder {
+
+        private int mBatchSize = 5000;
+
+        /**
+         * Number of pets inserted by one transaction. A batch is also inserted early when its
+         * data would not fit in a binder transaction.
+         */
+        public Builder setBatchSize(int batchSize) {
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("Invalid batch size " + batchSize);
+            }
+            mBatchSize = batchSize;
+            return this;
+        }
+
+        public PetCsvImporter build() {
+            return new PetCsvImporter(this);
+        }
+    }
+}
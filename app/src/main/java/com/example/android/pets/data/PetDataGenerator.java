@@ -0,0 +1,241 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * {@link PetDataGenerator} fills the pets table with generated pets, to reproduce large data
+ * sets when profiling the app.
+ *
+ * The pets are random but deterministic: the same configuration and seed always produce the
+ * same pets in the same order. They are written through {@link ContentResolver#bulkInsert} in
+ * batches, so they go through the validation of the provider, and the content values of a batch
+ * are reused for the next one. {@link #generate} blocks, it must be called on a background
+ * thread, e.g. by a debug menu or an instrumented test.
+ */
+public final class PetDataGenerator {
+
+    /** Receives the progress of {@link #generate} on the generating thread */
+    public interface ProgressListener {
+        /**
+         * @param insertedRows  The number of pets inserted so far
+         * @param totalRows     The number of pets to insert
+         * @param rowsPerSecond The average insert throughput since the start
+         */
+        void onProgress(long insertedRows, long totalRows, double rowsPerSecond);
+    }
+
+    /** Breeds and relative frequencies used by default, the most common breeds come first */
+    private static final String[] DEFAULT_BREEDS = {
+            "Labrador Retriever", "German Shepherd", "Golden Retriever", "French Bulldog",
+            "Bulldog", "Beagle", "Poodle", "Rottweiler", "Terrier", "Siamese", "Persian",
+            "Maine Coon", "Tabby", ""
+    };
+    private static final int[] DEFAULT_BREED_WEIGHTS = {
+            20, 14, 12, 10, 8, 8, 6, 5, 5, 4, 3, 2, 2, 1
+    };
+
+    /** Syllables the names are made of */
+    private static final String[] NAME_SYLLABLES = {
+            "ba", "be", "bo", "da", "di", "fi", "ga", "ki", "la", "lu", "ma", "mi", "mo", "na",
+            "no", "pi", "po", "ra", "ri", "sa", "si", "ta", "to", "zu"
+    };
+
+    private static final int[] GENDERS = {
+            PetEntry.GENDER_UNKNOWN, PetEntry.GENDER_MALE, PetEntry.GENDER_FEMALE
+    };
+
+    private final long mRowCount;
+    private final long mSeed;
+    private final String[] mBreeds;
+    private final int[] mCumulativeBreedWeights;
+    private final int mNameCount;
+    private final int mMinWeight;
+    private final int mMaxWeight;
+    private final int mBatchSize;
+
+    private volatile boolean mCancelled;
+
+    private PetDataGenerator(Builder builder) {
+        mRowCount = builder.mRowCount;
+        mSeed = builder.mSeed;
+        mBreeds = builder.mBreeds;
+        mNameCount = builder.mNameCount;
+        mMinWeight = builder.mMinWeight;
+        mMaxWeight = builder.mMaxWeight;
+        mBatchSize = builder.mBatchSize;
+
+        mCumulativeBreedWeights = new int[builder.mBreedWeights.length];
+        int total = 0;
+        for (int i = 0; i < mCumulativeBreedWeights.length; i++) {
+            total += builder.mBreedWeights[i];
+            mCumulativeBreedWeights[i] = total;
+        }
+    }
+
+    /** Stop {@link #generate} after the batch that is being inserted */
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    /**
+     * Insert the generated pets.
+     *
+     * @param resolver The resolver of the pets provider
+     * @param listener Notified after every batch, may be null
+     * @return the number of pets that were inserted
+     */
+    public long generate(ContentResolver resolver, ProgressListener listener) {
+        final Random random = new Random(mSeed);
+        final String[] names = createNames();
+        final int totalBreedWeight = mCumulativeBreedWeights[mCumulativeBreedWeights.length - 1];
+
+        ContentValues[] batch = new ContentValues[(int) Math.min(mBatchSize, mRowCount)];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new ContentValues(4);
+        }
+
+        final long startNanos = System.nanoTime();
+        long insertedRows = 0;
+        long remainingRows = mRowCount;
+
+        while (remainingRows > 0 && !mCancelled) {
+            final int batchSize = (int) Math.min(batch.length, remainingRows);
+            if (batchSize < batch.length) {
+                batch = Arrays.copyOf(batch, batchSize);
+            }
+
+            for (ContentValues values : batch) {
+                values.put(PetEntry.COLUMN_PET_NAME, names[random.nextInt(names.length)]);
+                values.put(PetEntry.COLUMN_PET_BREED,
+                        mBreeds[pickBreed(random.nextInt(totalBreedWeight))]);
+                values.put(PetEntry.COLUMN_PET_GENDER, GENDERS[random.nextInt(GENDERS.length)]);
+                values.put(PetEntry.COLUMN_PET_WEIGHT,
+                        mMinWeight + random.nextInt(mMaxWeight - mMinWeight + 1));
+            }
+
+            insertedRows += resolver.bulkInsert(PetEntry.CONTENT_URI, batch);
+            remainingRows -= batchSize;
+
+            if (listener != null) {
+                final double seconds = (System.nanoTime() - startNanos) / 1e9;
+                listener.onProgress(insertedRows, mRowCount,
+                        (seconds > 0) ? insertedRows / seconds : 0);
+            }
+        }
+
+        return insertedRows;
+    }
+
+    /** Index of the breed for a random value between 0 and the total weight of the breeds */
+    private int pickBreed(int value) {
+        int index = Arrays.binarySearch(mCumulativeBreedWeights, value + 1);
+        return (index >= 0) ? index : -index - 1;
+    }
+
+    /** The distinct names of the pets, made of syllables so they look like names */
+    private String[] createNames() {
+        final String[] names = new String[mNameCount];
+        final StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < mNameCount; i++) {
+            builder.setLength(0);
+
+            // Write the index in base NAME_SYLLABLES.length, at least two syllables long
+            int value = i;
+            do {
+                builder.append(NAME_SYLLABLES[value % NAME_SYLLABLES.length]);
+                value /= NAME_SYLLABLES.length;
+            } while (value > 0 || builder.length() < 4);
+
+            builder.setCharAt(0, Character.toUpperCase(builder.charAt(0)));
+            names[i] = builder.toString();
+        }
+        return names;
+    }
+
+    /** Configures a {@link PetDataGenerator}, every setting has a default */
+    public static final class Builder {
+
+        private long mRowCount = 100000;
+        private long mSeed = 42;
+        private String[] mBreeds = DEFAULT_BREEDS;
+        private int[] mBreedWeights = DEFAULT_BREED_WEIGHTS;
+        private int mNameCount = 5000;
+        private int mMinWeight = 1;
+        private int mMaxWeight = 60;
+        private int mBatchSize = 1000;
+
+        /** Number of pets to insert */
+        public Builder setRowCount(long rowCount) {
+            if (rowCount < 0) {
+                throw new IllegalArgumentException("Invalid row count " + rowCount);
+            }
+            mRowCount = rowCount;
+            return this;
+        }
+
+        /** Seed of the random generator, the same seed produces the same pets */
+        public Builder setSeed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+
+        /**
+         * Breeds of the pets, each one is picked in proportion to its weight.
+         * An empty breed is stored as an unknown breed.
+         */
+        public Builder setBreeds(String[] breeds, int[] weights) {
+            if (breeds.length == 0 || breeds.length != weights.length) {
+                throw new IllegalArgumentException("Breeds require one weight per breed");
+            }
+            for (int i = 0; i < weights.length; i++) {
+                if (breeds[i] == null || weights[i] <= 0) {
+                    throw new IllegalArgumentException("Invalid breed " + breeds[i]
+                            + " with weight " + weights[i]);
+                }
+            }
+            mBreeds = breeds.clone();
+            mBreedWeights = weights.clone();
+            return this;
+        }
+
+        /** Number of distinct names, the names are picked uniformly */
+        public Builder setNameCount(int nameCount) {
+            if (nameCount <= 0) {
+                throw new IllegalArgumentException("Invalid name count " + nameCount);
+            }
+            mNameCount = nameCount;
+            return this;
+        }
+
+        /** Range of the weights of the pets in kg, both bounds included */
+        public Builder setWeightRange(int minWeight, int maxWeight) {
+            if (minWeight <= 0 || maxWeight < minWeight) {
+                throw new IllegalArgumentException("Invalid weight range " + minWeight + " to "
+                        + maxWeight);
+            }
+            mMinWeight = minWeight;
+            mMaxWeight = maxWeight;
+            return this;
+        }
+
+        /** Number of pets inserted by one bulk insert */
+        public Builder setBatchSize(int batchSize) {
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("Invalid batch size " + batchSize);
+            }
+            mBatchSize = batchSize;
+            return this;
+        }
+
+        public PetDataGenerator build() {
+            return new PetDataGenerator(this);
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.example.android.pets.data;
 
 import android.content.Context;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.util.Log;
 
 import com.example.android.pets.data.PetContract.PetEntry;
@@ -16,9 +18,70 @@ public final class PetDbHelper extends SQLiteOpenHelper {
 
     private static final String LOG_TAG = PetDbHelper.class.getSimpleName();
 
-    private static final int DATABASE_VERSION = 1;
+    /** Schema version, every version above 1 has a step in {@link PetMigrations} */
+    private static final int DATABASE_VERSION = 8;
     private static final String DATABASE_NAME = "pets.db";
 
+    /** Value of "PRAGMA auto_vacuum" in incremental mode, see {@link #onConfigure} */
+    static final long AUTO_VACUUM_INCREMENTAL = 2;
+
+    /** Full-text index of the name and breed of the pets, the docid is the _ID of the pet */
+    static final String FTS_TABLE_NAME = "pets_fts";
+
+    /**
+     * Tombstone of a pet: 0 while the pet exists, the time of its deletion in milliseconds once
+     * it is deleted. A deleted pet is hidden from every read until {@link PetPurger} removes it.
+     */
+    static final String COLUMN_DELETED = PetEntry.COLUMN_DELETED;
+
+    /**
+     * Single row table with the last change sequence given to a pet, and the highest change
+     * sequence of the deleted pets that were purged.
+     */
+    static final String CHANGE_STATE_TABLE_NAME = "pet_change_state";
+
+    /** Last change sequence given to a pet, in {@link #CHANGE_STATE_TABLE_NAME} */
+    static final String COLUMN_LAST_CHANGE_SEQ = "last_change_seq";
+
+    /**
+     * Highest change sequence of a purged pet, in {@link #CHANGE_STATE_TABLE_NAME}. The changes
+     * since an earlier sequence are incomplete, their deletes may be gone.
+     */
+    static final String COLUMN_PURGED_CHANGE_SEQ = "purged_change_seq";
+
+    /**
+     * Single row table with the delete watermark: deleting all the pets records the highest _ID
+     * there instead of writing every pet, and the pets up to it are hidden until
+     * {@link PetPurger} removes them. It also keeps the watermark before the last one, which an
+     * undo restores.
+     */
+    static final String DELETE_STATE_TABLE_NAME = "pet_delete_state";
+
+    /** Highest _ID of the pets deleted all at once, in {@link #DELETE_STATE_TABLE_NAME} */
+    static final String COLUMN_WATERMARK_ID = "watermark_id";
+
+    /** Time of the delete of {@link #COLUMN_WATERMARK_ID}, 0 if there was none */
+    static final String COLUMN_WATERMARK_TIME = "watermark_time";
+
+    /** {@link #COLUMN_WATERMARK_ID} before the last delete of all the pets */
+    static final String COLUMN_PREVIOUS_WATERMARK_ID = "previous_watermark_id";
+
+    /** {@link #COLUMN_WATERMARK_TIME} before the last delete of all the pets */
+    static final String COLUMN_PREVIOUS_WATERMARK_TIME = "previous_watermark_time";
+
+    /** The delete watermark, SQLite reads it once per statement */
+    static final String SELECT_WATERMARK_ID = "(SELECT " + COLUMN_WATERMARK_ID + " FROM "
+            + DELETE_STATE_TABLE_NAME + ")";
+
+    /**
+     * Selection of the pets that are not deleted, one by one or all at once. The unary + keeps
+     * SQLite from reading the live pets through the index of the tombstones, which is only
+     * meant to find the deleted ones, or through a range of _IDs instead of the index of the
+     * order of the query.
+     */
+    static final String SELECTION_LIVE = "+" + COLUMN_DELETED + " = 0 AND +" + PetEntry._ID
+            + " > " + SELECT_WATERMARK_ID;
+
     private static final String CREATE_PETS_TABLE = "CREATE TABLE " + PetEntry.TABLE_NAME + " (" +
             PetEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
             PetEntry.COLUMN_PET_NAME + " TEXT," +
@@ -26,10 +89,80 @@ public final class PetDbHelper extends SQLiteOpenHelper {
             PetEntry.COLUMN_PET_GENDER + " INTEGER," +
             PetEntry.COLUMN_PET_WEIGHT + " INTEGER);";
 
-    private static final String DROP_PETS_TABLE = "DROP TABLE " + PetEntry.TABLE_NAME + ";";
+    /** Synchronous modes that can be passed to {@link #PetDbHelper(Context, String, int)} */
+    public static final String SYNCHRONOUS_OFF = "OFF";
+    public static final String SYNCHRONOUS_NORMAL = "NORMAL";
+    public static final String SYNCHRONOUS_FULL = "FULL";
+
+    /**
+     * In WAL mode NORMAL only syncs on checkpoint, a commit can be rolled back by a power loss
+     * but the database is never corrupted.
+     */
+    static final String DEFAULT_SYNCHRONOUS = SYNCHRONOUS_NORMAL;
+
+    /** Number of WAL pages after which SQLite runs an automatic checkpoint (SQLite default) */
+    static final int DEFAULT_WAL_AUTOCHECKPOINT = 1000;
+
+    private final String mSynchronous;
+    private final int mWalAutoCheckpoint;
 
     public PetDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DEFAULT_SYNCHRONOUS, DEFAULT_WAL_AUTOCHECKPOINT);
+    }
+
+    /**
+     * Open the pets database in write-ahead logging mode, so long writes from the editor or the
+     * catalog do not block the readers of {@link PetProvider}. With WAL enabled the framework
+     * keeps a pool of read-only connections next to the single writer connection.
+     * {@link PetProvider} takes both settings from its meta-data in the manifest.
+     *
+     * @param synchronous       one of {@link #SYNCHRONOUS_OFF}, {@link #SYNCHRONOUS_NORMAL}
+     *                          or {@link #SYNCHRONOUS_FULL}
+     * @param walAutoCheckpoint number of WAL pages before an automatic checkpoint,
+     *                          0 disables automatic checkpoints
+     */
+    public PetDbHelper(Context context, String synchronous, int walAutoCheckpoint) {
+        this(context, DATABASE_NAME, synchronous, walAutoCheckpoint);
+    }
+
+    /** Open the pets database in the given file instead of the one of the app, e.g. in tests */
+    PetDbHelper(Context context, String name, String synchronous, int walAutoCheckpoint) {
+        super(context, name, null, DATABASE_VERSION);
+        PetMigrations.checkVersions(DATABASE_VERSION);
+
+        if (!SYNCHRONOUS_OFF.equals(synchronous) && !SYNCHRONOUS_NORMAL.equals(synchronous)
+                && !SYNCHRONOUS_FULL.equals(synchronous)) {
+            throw new IllegalArgumentException("Unknown synchronous mode " + synchronous);
+        }
+        if (walAutoCheckpoint < 0) {
+            throw new IllegalArgumentException("WAL auto checkpoint must not be negative");
+        }
+
+        mSynchronous = synchronous;
+        mWalAutoCheckpoint = walAutoCheckpoint;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * Turn on incremental auto vacuum in a new database, so {@link PetPurger} can return the
+     * pages of the purged pets to the file system. The mode must be set before the first table,
+     * and the WAL mode has already written the header of the file, so it takes a VACUUM, which
+     * is instant while the database is empty. A new database is told by its version 0, it is
+     * not empty since the framework creates android_metadata before this runs. A database that
+     * already has a version keeps its mode, its free pages are reused by the next pets.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+
+        if (db.getVersion() == 0 && DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                != AUTO_VACUUM_INCREMENTAL) {
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+        }
     }
 
     @Override
@@ -40,16 +173,41 @@ public final class PetDbHelper extends SQLiteOpenHelper {
             Log.e(LOG_TAG, "There's a problem in creating the " + PetEntry.TABLE_NAME + " table.");
             Log.e(LOG_TAG, Log.getStackTraceString(e));
         }
+
+        // Bring the version 1 schema up to date through the same steps as an upgrade
+        PetMigrations.migrate(db, 1, DATABASE_VERSION);
     }
 
     @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+
+        // These pragmas apply to the primary connection, which is the one that performs writes
+        db.execSQL("PRAGMA synchronous = " + mSynchronous);
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint = " + mWalAutoCheckpoint, null);
+
         try {
-            db.execSQL(DROP_PETS_TABLE);
-            onCreate(db);
+            PetMigrations.createIndexes(db, DATABASE_VERSION);
         } catch (SQLException e) {
-            Log.e(LOG_TAG, "There's a problem in dropping the " + PetEntry.TABLE_NAME + " table.");
+            // The pets are still readable without the index, it is built again on the next open
+            Log.e(LOG_TAG, "There's a problem in creating the indexes of the " + PetEntry.TABLE_NAME
+                    + " table.");
             Log.e(LOG_TAG, Log.getStackTraceString(e));
         }
     }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        try {
+            PetMigrations.migrate(db, oldVersion, newVersion);
+        } catch (SQLException e) {
+            Log.e(LOG_TAG, "There's a problem in upgrading the " + PetEntry.TABLE_NAME
+                    + " table from version " + oldVersion + " to " + newVersion + ".");
+            throw e;
+        }
+    }
 }
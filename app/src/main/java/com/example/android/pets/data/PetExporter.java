@@ -0,0 +1,202 @@
+package com.example.android.pets.data;
+
+import android.content.ContentProvider;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Writes all the pets to the pipe of an export of {@link PetProvider}, in CSV or in
+ * {@link PetBinaryFormat} depending on the MIME type.
+ *
+ * The pets are read in chunks of {@link #CHUNK_SIZE} in _ID order, each chunk starting after the
+ * last _ID of the previous one, and written through a buffer of {@link #BUFFER_SIZE} bytes. The
+ * writes block while the reader has not read the pipe, so an export of any size uses the same
+ * memory and no read holds the database between chunks. Pets written during the export are
+ * exported if their _ID is after the chunks already read.
+ */
+final class PetExporter implements ContentProvider.PipeDataWriter<PetStatements> {
+
+    private static final String LOG_TAG = PetExporter.class.getSimpleName();
+
+    /** Number of pets read by each query */
+    private static final int CHUNK_SIZE = 1000;
+
+    /** Size of the buffer between the cursor and the pipe */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String CSV_HEADER = PetEntry._ID + ","
+            + PetEntry.COLUMN_PET_NAME + ","
+            + PetEntry.COLUMN_PET_BREED + ","
+            + PetEntry.COLUMN_PET_GENDER + ","
+            + PetEntry.COLUMN_PET_WEIGHT;
+
+    /** Lines end with CRLF, as in RFC 4180 */
+    private static final String CSV_LINE_END = "\r\n";
+
+    /** Indexes of the columns in {@link PetStatements#QUERY_COLUMNS} */
+    private static final int ID = 0;
+    private static final int NAME = 1;
+    private static final int BREED = 2;
+    private static final int GENDER = 3;
+    private static final int WEIGHT = 4;
+
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                                Bundle opts, PetStatements statements) {
+        OutputStream stream = new BufferedOutputStream(
+                new ParcelFileDescriptor.AutoCloseOutputStream(output), BUFFER_SIZE);
+        try {
+            if (PetEntry.CONTENT_BINARY_TYPE.equals(mimeType)) {
+                writeBinary(statements, stream);
+            } else {
+                writeCsv(statements, stream);
+            }
+            stream.close();
+        } catch (IOException | RuntimeException e) {
+            // Also when the reader closed the pipe before the end, or a query failed
+            Log.e(LOG_TAG, "Failed to export the pets to " + uri, e);
+            closeWithError(output, e);
+        }
+    }
+
+    /**
+     * Close the pipe without the buffered data. From KitKat the pipe is reliable, see
+     * {@link PetProvider#openFile}, and the reader gets the error instead of a truncated export.
+     */
+    private static void closeWithError(ParcelFileDescriptor output, Exception error) {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                output.closeWithError(error.toString());
+            } else {
+                output.close();
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to close the export", e);
+        }
+    }
+
+    private static void writeCsv(PetStatements statements, OutputStream stream)
+            throws IOException {
+        Writer writer = new OutputStreamWriter(stream, "UTF-8");
+        writer.write(CSV_HEADER);
+        writer.write(CSV_LINE_END);
+
+        long afterId = 0;
+        int count;
+        do {
+            Cursor cursor = statements.queryAfterId(afterId, CHUNK_SIZE);
+            try {
+                count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    afterId = cursor.getLong(ID);
+                    writer.write(Long.toString(afterId));
+                    writer.write(',');
+                    writeCsvText(writer, cursor.getString(NAME));
+                    writer.write(',');
+                    writeCsvText(writer, cursor.getString(BREED));
+                    writer.write(',');
+                    if (!cursor.isNull(GENDER)) {
+                        writer.write(Integer.toString(cursor.getInt(GENDER)));
+                    }
+                    writer.write(',');
+                    if (!cursor.isNull(WEIGHT)) {
+                        writer.write(Integer.toString(cursor.getInt(WEIGHT)));
+                    }
+                    writer.write(CSV_LINE_END);
+                }
+            } finally {
+                cursor.close();
+            }
+        } while (count == CHUNK_SIZE);
+
+        writer.flush();
+    }
+
+    /**
+     * Write a text field, in quotes with its quotes doubled if it has a comma, a quote or a line
+     * break. A null text is an empty field.
+     */
+    private static void writeCsvText(Writer writer, String text) throws IOException {
+        if (text == null) {
+            return;
+        }
+
+        boolean quoted = false;
+        for (int i = 0; i < text.length() && !quoted; i++) {
+            final char c = text.charAt(i);
+            quoted = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quoted) {
+            writer.write(text);
+            return;
+        }
+
+        writer.write('"');
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            if (c == '"') {
+                writer.write('"');
+            }
+            writer.write(c);
+        }
+        writer.write('"');
+    }
+
+    /**
+     * Write the pets without their _ID, missing values are written as empty or 0. A pet whose
+     * name or breed is longer than {@link PetBinaryFormat#MAX_TEXT_LENGTH} bytes cannot be
+     * written in the format, it is left out with a warning.
+     */
+    private static void writeBinary(PetStatements statements, OutputStream stream)
+            throws IOException {
+        PetBinaryFormat.Writer writer = new PetBinaryFormat.Writer(stream);
+        int skipped = 0;
+
+        long afterId = 0;
+        int count;
+        do {
+            Cursor cursor = statements.queryAfterId(afterId, CHUNK_SIZE);
+            try {
+                count = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    afterId = cursor.getLong(ID);
+                    final byte[] name = toUtf8(cursor.getString(NAME));
+                    final byte[] breed = toUtf8(cursor.getString(BREED));
+                    if (name.length > PetBinaryFormat.MAX_TEXT_LENGTH
+                            || breed.length > PetBinaryFormat.MAX_TEXT_LENGTH) {
+                        Log.w(LOG_TAG, "Pet " + afterId + " has a name or breed too long for"
+                                + " the binary export, it is left out");
+                        skipped++;
+                        continue;
+                    }
+                    writer.writePet(name, 0, name.length, breed, 0, breed.length,
+                            cursor.isNull(GENDER) ? PetEntry.GENDER_UNKNOWN : cursor.getInt(GENDER),
+                            cursor.getInt(WEIGHT));
+                }
+            } finally {
+                cursor.close();
+            }
+        } while (count == CHUNK_SIZE);
+
+        writer.flush();
+        if (skipped > 0) {
+            Log.w(LOG_TAG, "Left " + skipped + " pets out of the binary export");
+        }
+    }
+
+    private static byte[] toUtf8(String text) throws IOException {
+        return (text == null) ? new byte[0] : text.getBytes("UTF-8");
+    }
+}
@@ -0,0 +1,249 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * {@link PetGroupCommitter} runs the writes of concurrent callers of {@link PetProvider} on a
+ * single writer thread and commits them together, once per window (group commit).
+ *
+ * The first write of a group opens a window of {@link #setWindowMillis} milliseconds; the writes
+ * submitted until it closes, at most {@link #MAX_GROUP_SIZE}, run in one transaction and share
+ * one journal sync. A caller waits until the transaction of its write has committed and gets the
+ * result of its own write, or the exception it threw.
+ *
+ * A write that throws fails on its own and the rest of its group still commits. Savepoints
+ * cannot be rolled back through {@link SQLiteDatabase}, which takes "ROLLBACK TO" for the end of
+ * its transaction, and a write that failed in a nested transaction marks the whole transaction
+ * as failed. So the transaction of the group is rolled back instead, and the other writes run
+ * again in a new one without the failed write. An exception of the commit itself, e.g. a full
+ * disk or a busy database, fails every write left in the group.
+ */
+final class PetGroupCommitter {
+
+    private static final String LOG_TAG = PetGroupCommitter.class.getSimpleName();
+
+    /** Maximum number of writes in one transaction, a full group commits without waiting */
+    private static final int MAX_GROUP_SIZE = 256;
+
+    /** A write of the provider, run on the writer thread */
+    interface Operation<T> {
+        T run();
+    }
+
+    /** Told about the transactions of the groups, on the writer thread */
+    interface Listener {
+        /** Called before the writes of a group run */
+        void onGroupStart();
+
+        /** Called after the transaction of a group ended, committed or not */
+        void onGroupEnd(boolean committed);
+    }
+
+    private final PetDbHelper mDbHelper;
+    private final Listener mListener;
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+
+    /** Writes of the next group, guarded by {@link #mLock} */
+    private final ArrayDeque<Write<?>> mPendingWrites = new ArrayDeque<>();
+
+    /** True while a commit of the pending writes is posted, guarded by {@link #mLock} */
+    private boolean mCommitPosted;
+
+    /** Length of the window of a group, 0 when the writes run on the threads of the callers */
+    private volatile long mWindowMillis;
+
+    private final Runnable mCommitGroup = new Runnable() {
+        @Override
+        public void run() {
+            commitGroup();
+        }
+    };
+
+    PetGroupCommitter(PetDbHelper dbHelper, Listener listener) {
+        mDbHelper = dbHelper;
+        mListener = listener;
+
+        HandlerThread thread = new HandlerThread("PetGroupCommitter");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /** Set the length of the window of a group, 0 to turn group commit off */
+    void setWindowMillis(long windowMillis) {
+        if (windowMillis < 0) {
+            throw new IllegalArgumentException("Group commit window must not be negative");
+        }
+        mWindowMillis = windowMillis;
+    }
+
+    /** True if writes submitted on the current thread should go through {@link #submit} */
+    boolean isEnabled() {
+        return mWindowMillis > 0 && Looper.myLooper() != mHandler.getLooper();
+    }
+
+    /** Stop the writer thread, group commit must be off and no write may be pending */
+    void quit() {
+        mHandler.getLooper().quit();
+    }
+
+    /**
+     * Run a write in the next group and wait until its group has committed.
+     *
+     * @return the result of the write
+     * @throws RuntimeException the exception thrown by the write, or by the commit of its group
+     */
+    <T> T submit(Operation<T> operation) {
+        Write<T> write = new Write<>(operation);
+        synchronized (mLock) {
+            mPendingWrites.add(write);
+            if (mPendingWrites.size() >= MAX_GROUP_SIZE) {
+                mHandler.removeCallbacks(mCommitGroup);
+                mHandler.post(mCommitGroup);
+                mCommitPosted = true;
+            } else if (!mCommitPosted) {
+                mHandler.postDelayed(mCommitGroup, mWindowMillis);
+                mCommitPosted = true;
+            }
+        }
+        return write.await();
+    }
+
+    /** Run the pending writes in one transaction, then release their callers */
+    private void commitGroup() {
+        final List<Write<?>> group = new ArrayList<>();
+        synchronized (mLock) {
+            while (group.size() < MAX_GROUP_SIZE && !mPendingWrites.isEmpty()) {
+                group.add(mPendingWrites.poll());
+            }
+
+            // The writes left over have waited for a whole window already
+            mCommitPosted = !mPendingWrites.isEmpty();
+            if (mCommitPosted) {
+                mHandler.post(mCommitGroup);
+            }
+        }
+        if (group.isEmpty()) {
+            return;
+        }
+
+        boolean committed = false;
+        final List<Write<?>> remaining = new ArrayList<>(group);
+        mListener.onGroupStart();
+        try {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            while (!remaining.isEmpty()) {
+                if (commit(db, remaining)) {
+                    committed = true;
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to commit a group of " + remaining.size() + " writes", e);
+            for (Write<?> write : remaining) {
+                write.fail(e);
+            }
+        } finally {
+            mListener.onGroupEnd(committed);
+        }
+
+        for (Write<?> write : group) {
+            write.complete();
+        }
+    }
+
+    /**
+     * Run the writes in one transaction and commit it. At the first write that throws, the
+     * transaction is rolled back and the write is removed from the list, with its exception.
+     *
+     * @return true if the writes committed, false if the others have to run again
+     */
+    private static boolean commit(SQLiteDatabase db, List<Write<?>> writes) {
+        db.beginTransaction();
+        try {
+            for (Iterator<Write<?>> iterator = writes.iterator(); iterator.hasNext(); ) {
+                if (!iterator.next().run()) {
+                    iterator.remove();
+                    return false;
+                }
+            }
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /** A write waiting for its group, with its result once the group has run */
+    private static final class Write<T> {
+
+        private final Operation<T> mOperation;
+        private final CountDownLatch mDone = new CountDownLatch(1);
+
+        private T mResult;
+        private RuntimeException mError;
+
+        Write(Operation<T> operation) {
+            mOperation = operation;
+        }
+
+        /**
+         * Run the write, keeping its result or its exception.
+         *
+         * @return true if the write ran without an exception
+         */
+        boolean run() {
+            try {
+                mResult = mOperation.run();
+                mError = null;
+                return true;
+            } catch (RuntimeException e) {
+                mResult = null;
+                mError = e;
+                return false;
+            }
+        }
+
+        void fail(RuntimeException e) {
+            mResult = null;
+            mError = e;
+        }
+
+        /** Release the caller, the latch publishes the result to its thread */
+        void complete() {
+            mDone.countDown();
+        }
+
+        T await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mDone.await();
+                    break;
+                } catch (InterruptedException e) {
+                    // The write is queued and will run, its caller must know the result
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (mError != null) {
+                throw mError;
+            }
+            return mResult;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package com.example.android.pets.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+import java.util.Arrays;
+
+/**
+ * Ordered, non-destructive schema migrations of the pets database.
+ *
+ * Version 1 is the schema created by {@link PetDbHelper}. Every later version has exactly one
+ * {@link Migration} in {@link #MIGRATIONS}, in ascending order, and the last one must match
+ * {@link PetDbHelper#DATABASE_VERSION}. A new database is created at version 1 and then goes
+ * through the same steps as an upgraded one, so both always end up with the same schema.
+ */
+final class PetMigrations {
+
+    private static final String LOG_TAG = PetMigrations.class.getSimpleName();
+
+    /** Prevent creating instance of this class */
+    private PetMigrations() {}
+
+    /**
+     * Gender statistics computed from the pets table, in the columns of
+     * {@link PetStatsEntry#GENDER_TABLE_NAME}. A pet without gender counts as unknown gender.
+     */
+    static final String SELECT_GENDER_STATS = selectGenderStats("");
+
+    /**
+     * Breed statistics computed from the pets table, in the columns of
+     * {@link PetStatsEntry#BREED_TABLE_NAME}. A pet without breed counts as an empty breed.
+     */
+    static final String SELECT_BREED_STATS = selectBreedStats("");
+
+    /** {@link #SELECT_GENDER_STATS} of the pets that are not deleted, from version 8 */
+    static final String SELECT_LIVE_GENDER_STATS = selectGenderStats(
+            " WHERE " + PetDbHelper.SELECTION_LIVE);
+
+    /** {@link #SELECT_BREED_STATS} of the pets that are not deleted, from version 8 */
+    static final String SELECT_LIVE_BREED_STATS = selectBreedStats(
+            " WHERE " + PetDbHelper.SELECTION_LIVE);
+
+    private static String selectGenderStats(String where) {
+        return "SELECT IFNULL(" + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.GENDER_UNKNOWN
+                + "), COUNT(*), IFNULL(SUM(" + PetEntry.COLUMN_PET_WEIGHT + "), 0), COUNT("
+                + PetEntry.COLUMN_PET_WEIGHT + ") FROM " + PetEntry.TABLE_NAME + where
+                + " GROUP BY 1";
+    }
+
+    private static String selectBreedStats(String where) {
+        return "SELECT IFNULL(" + PetEntry.COLUMN_PET_BREED + ", ''), COUNT(*) FROM "
+                + PetEntry.TABLE_NAME + where + " GROUP BY 1";
+    }
+
+    /** Statements of a stats trigger that count a pet in the statistics of its gender and breed */
+    private static String addToStats(String row) {
+        final String gender = "IFNULL(" + row + "." + PetEntry.COLUMN_PET_GENDER + ", "
+                + PetEntry.GENDER_UNKNOWN + ")";
+        final String breed = "IFNULL(" + row + "." + PetEntry.COLUMN_PET_BREED + ", '')";
+        final String weight = row + "." + PetEntry.COLUMN_PET_WEIGHT;
+
+        return " INSERT OR IGNORE INTO " + PetStatsEntry.GENDER_TABLE_NAME + " ("
+                + PetStatsEntry.COLUMN_GENDER + ", " + PetStatsEntry.COLUMN_PET_COUNT + ", "
+                + PetStatsEntry.COLUMN_WEIGHT_SUM + ", " + PetStatsEntry.COLUMN_WEIGHT_COUNT + ")"
+                + " VALUES (" + gender + ", 0, 0, 0);"
+                + " UPDATE " + PetStatsEntry.GENDER_TABLE_NAME + " SET "
+                + PetStatsEntry.COLUMN_PET_COUNT + " = " + PetStatsEntry.COLUMN_PET_COUNT + " + 1, "
+                + PetStatsEntry.COLUMN_WEIGHT_SUM + " = " + PetStatsEntry.COLUMN_WEIGHT_SUM
+                + " + IFNULL(" + weight + ", 0), "
+                + PetStatsEntry.COLUMN_WEIGHT_COUNT + " = " + PetStatsEntry.COLUMN_WEIGHT_COUNT
+                + " + (" + weight + " IS NOT NULL)"
+                + " WHERE " + PetStatsEntry.COLUMN_GENDER + " = " + gender + ";"
+                + " INSERT OR IGNORE INTO " + PetStatsEntry.BREED_TABLE_NAME + " ("
+                + PetStatsEntry.COLUMN_BREED + ", " + PetStatsEntry.COLUMN_PET_COUNT + ")"
+                + " VALUES (" + breed + ", 0);"
+                + " UPDATE " + PetStatsEntry.BREED_TABLE_NAME + " SET "
+                + PetStatsEntry.COLUMN_PET_COUNT + " = " + PetStatsEntry.COLUMN_PET_COUNT + " + 1"
+                + " WHERE " + PetStatsEntry.COLUMN_BREED + " = " + breed + ";";
+    }
+
+    /**
+     * Statements of a stats trigger that remove a pet from the statistics of its gender and
+     * breed. A gender or breed without pets is removed, as it would be from a GROUP BY.
+     */
+    private static String removeFromStats(String row) {
+        final String gender = "IFNULL(" + row + "." + PetEntry.COLUMN_PET_GENDER + ", "
+                + PetEntry.GENDER_UNKNOWN + ")";
+        final String breed = "IFNULL(" + row + "." + PetEntry.COLUMN_PET_BREED + ", '')";
+        final String weight = row + "." + PetEntry.COLUMN_PET_WEIGHT;
+
+        return " UPDATE " + PetStatsEntry.GENDER_TABLE_NAME + " SET "
+                + PetStatsEntry.COLUMN_PET_COUNT + " = " + PetStatsEntry.COLUMN_PET_COUNT + " - 1, "
+                + PetStatsEntry.COLUMN_WEIGHT_SUM + " = " + PetStatsEntry.COLUMN_WEIGHT_SUM
+                + " - IFNULL(" + weight + ", 0), "
+                + PetStatsEntry.COLUMN_WEIGHT_COUNT + " = " + PetStatsEntry.COLUMN_WEIGHT_COUNT
+                + " - (" + weight + " IS NOT NULL)"
+                + " WHERE " + PetStatsEntry.COLUMN_GENDER + " = " + gender + ";"
+                + " DELETE FROM " + PetStatsEntry.GENDER_TABLE_NAME
+                + " WHERE " + PetStatsEntry.COLUMN_GENDER + " = " + gender
+                + " AND " + PetStatsEntry.COLUMN_PET_COUNT + " = 0;"
+                + " UPDATE " + PetStatsEntry.BREED_TABLE_NAME + " SET "
+                + PetStatsEntry.COLUMN_PET_COUNT + " = " + PetStatsEntry.COLUMN_PET_COUNT + " - 1"
+                + " WHERE " + PetStatsEntry.COLUMN_BREED + " = " + breed + ";"
+                + " DELETE FROM " + PetStatsEntry.BREED_TABLE_NAME
+                + " WHERE " + PetStatsEntry.COLUMN_BREED + " = " + breed
+                + " AND " + PetStatsEntry.COLUMN_PET_COUNT + " = 0;";
+    }
+
+    /** A single schema step from {@code version - 1} to {@code version} */
+    abstract static class Migration {
+
+        final int version;
+
+        Migration(int version) {
+            this.version = version;
+        }
+
+        /** Change the schema and carry the existing rows over, inside the upgrade transaction */
+        abstract void migrate(SQLiteDatabase db);
+
+        /**
+         * "CREATE INDEX IF NOT EXISTS" statements of this step. They are built after the
+         * database is open instead of inside the upgrade, so a long index build does not hold
+         * the upgrade transaction and is retried on the next open if it fails.
+         */
+        String[] indexes() {
+            return new String[0];
+        }
+    }
+
+    private static final Migration[] MIGRATIONS = {
+
+            // Full-text index over name and breed, kept in sync with the pets table by triggers
+            new Migration(2) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE VIRTUAL TABLE " + PetDbHelper.FTS_TABLE_NAME
+                            + " USING fts4(" + PetEntry.COLUMN_PET_NAME + ", "
+                            + PetEntry.COLUMN_PET_BREED + ")");
+
+                    db.execSQL("INSERT INTO " + PetDbHelper.FTS_TABLE_NAME + " (docid, "
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ")"
+                            + " SELECT " + PetEntry._ID + ", " + PetEntry.COLUMN_PET_NAME + ", "
+                            + PetEntry.COLUMN_PET_BREED + " FROM " + PetEntry.TABLE_NAME);
+
+                    db.execSQL("CREATE TRIGGER pets_fts_insert AFTER INSERT ON "
+                            + PetEntry.TABLE_NAME + " BEGIN"
+                            + " INSERT INTO " + PetDbHelper.FTS_TABLE_NAME + " (docid, "
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ")"
+                            + " VALUES (new." + PetEntry._ID + ", new." + PetEntry.COLUMN_PET_NAME
+                            + ", new." + PetEntry.COLUMN_PET_BREED + "); END");
+
+                    db.execSQL("CREATE TRIGGER pets_fts_update AFTER UPDATE OF "
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED
+                            + " ON " + PetEntry.TABLE_NAME + " BEGIN"
+                            + " UPDATE " + PetDbHelper.FTS_TABLE_NAME + " SET "
+                            + PetEntry.COLUMN_PET_NAME + " = new." + PetEntry.COLUMN_PET_NAME + ", "
+                            + PetEntry.COLUMN_PET_BREED + " = new." + PetEntry.COLUMN_PET_BREED
+                            + " WHERE docid = old." + PetEntry._ID + "; END");
+
+                    db.execSQL("CREATE TRIGGER pets_fts_delete AFTER DELETE ON "
+                            + PetEntry.TABLE_NAME + " BEGIN"
+                            + " DELETE FROM " + PetDbHelper.FTS_TABLE_NAME
+                            + " WHERE docid = old." + PetEntry._ID + "; END");
+                }
+            },
+
+            // Pet count and weight per gender and pet count per breed, kept up to date by
+            // triggers so the statistics are read without scanning the pets table
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + PetStatsEntry.GENDER_TABLE_NAME + " ("
+                            + PetStatsEntry.COLUMN_GENDER + " INTEGER PRIMARY KEY, "
+                            + PetStatsEntry.COLUMN_PET_COUNT + " INTEGER NOT NULL, "
+                            + PetStatsEntry.COLUMN_WEIGHT_SUM + " INTEGER NOT NULL, "
+                            + PetStatsEntry.COLUMN_WEIGHT_COUNT + " INTEGER NOT NULL)");
+
+                    db.execSQL("CREATE TABLE " + PetStatsEntry.BREED_TABLE_NAME + " ("
+                            + PetStatsEntry.COLUMN_BREED + " TEXT PRIMARY KEY NOT NULL, "
+                            + PetStatsEntry.COLUMN_PET_COUNT + " INTEGER NOT NULL)");
+
+                    db.execSQL("INSERT INTO " + PetStatsEntry.GENDER_TABLE_NAME + " "
+                            + SELECT_GENDER_STATS);
+                    db.execSQL("INSERT INTO " + PetStatsEntry.BREED_TABLE_NAME + " "
+                            + SELECT_BREED_STATS);
+
+                    db.execSQL("CREATE TRIGGER pets_stats_insert AFTER INSERT ON "
+                            + PetEntry.TABLE_NAME + " BEGIN" + addToStats("new") + " END");
+
+                    // Only an update of a counted column moves the pet between statistics
+                    db.execSQL("CREATE TRIGGER pets_stats_update AFTER UPDATE OF "
+                            + PetEntry.COLUMN_PET_BREED + ", " + PetEntry.COLUMN_PET_GENDER + ", "
+                            + PetEntry.COLUMN_PET_WEIGHT + " ON " + PetEntry.TABLE_NAME + " BEGIN"
+                            + removeFromStats("old") + addToStats("new") + " END");
+
+                    db.execSQL("CREATE TRIGGER pets_stats_delete AFTER DELETE ON "
+                            + PetEntry.TABLE_NAME + " BEGIN" + removeFromStats("old") + " END");
+                }
+
+                @Override
+                String[] indexes() {
+                    return new String[] {
+                            "CREATE INDEX IF NOT EXISTS pet_breed_stats_count ON "
+                                    + PetStatsEntry.BREED_TABLE_NAME + " ("
+                                    + PetStatsEntry.COLUMN_PET_COUNT + ")"
+                    };
+                }
+            },
+
+            // Tombstones: a delete only marks the pets, they are hidden from every read and
+            // removed later by PetPurger. Only the pets that are not deleted are counted in the
+            // statistics, so marking or restoring a pet moves it out of or into them.
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    final String deleted = PetDbHelper.COLUMN_DELETED;
+
+                    db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " + deleted
+                            + " INTEGER NOT NULL DEFAULT 0");
+
+                    db.execSQL("DROP TRIGGER pets_stats_insert");
+                    db.execSQL("DROP TRIGGER pets_stats_update");
+                    db.execSQL("DROP TRIGGER pets_stats_delete");
+
+                    db.execSQL("CREATE TRIGGER pets_stats_insert AFTER INSERT ON "
+                            + PetEntry.TABLE_NAME + " WHEN new." + deleted + " = 0 BEGIN"
+                            + addToStats("new") + " END");
+
+                    final String updateOf = " AFTER UPDATE OF " + PetEntry.COLUMN_PET_BREED + ", "
+                            + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ", "
+                            + deleted + " ON " + PetEntry.TABLE_NAME;
+                    db.execSQL("CREATE TRIGGER pets_stats_update_old" + updateOf
+                            + " WHEN old." + deleted + " = 0 BEGIN" + removeFromStats("old")
+                            + " END");
+                    db.execSQL("CREATE TRIGGER pets_stats_update_new" + updateOf
+                            + " WHEN new." + deleted + " = 0 BEGIN" + addToStats("new")
+                            + " END");
+
+                    // Purging a deleted pet does not change the statistics
+                    db.execSQL("CREATE TRIGGER pets_stats_delete AFTER DELETE ON "
+                            + PetEntry.TABLE_NAME + " WHEN old." + deleted + " = 0 BEGIN"
+                            + removeFromStats("old") + " END");
+                }
+
+                @Override
+                String[] indexes() {
+                    return new String[] {
+                            "CREATE INDEX IF NOT EXISTS pets_deleted ON " + PetEntry.TABLE_NAME
+                                    + " (" + PetDbHelper.COLUMN_DELETED + ")"
+                    };
+                }
+            },
+
+            // Change feed: every insert, update, delete or restore of a pet gives it the next
+            // change sequence, so the pets changed since a sequence are read through its index.
+            // Existing pets get their _ID, which is in the order they were inserted.
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    final String changeSeq = PetEntry.COLUMN_CHANGE_SEQ;
+                    final String state = PetDbHelper.CHANGE_STATE_TABLE_NAME;
+                    final String lastSeq = PetDbHelper.COLUMN_LAST_CHANGE_SEQ;
+                    final String purgedSeq = PetDbHelper.COLUMN_PURGED_CHANGE_SEQ;
+
+                    db.execSQL("ALTER TABLE " + PetEntry.TABLE_NAME + " ADD COLUMN " + changeSeq
+                            + " INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("UPDATE " + PetEntry.TABLE_NAME + " SET " + changeSeq + " = "
+                            + PetEntry._ID);
+
+                    db.execSQL("CREATE TABLE " + state + " (" + lastSeq + " INTEGER NOT NULL, "
+                            + purgedSeq + " INTEGER NOT NULL)");
+                    db.execSQL("INSERT INTO " + state + " SELECT IFNULL(MAX(" + changeSeq
+                            + "), 0), 0 FROM " + PetEntry.TABLE_NAME);
+
+                    final String nextSeq = " UPDATE " + state + " SET " + lastSeq + " = "
+                            + lastSeq + " + 1;"
+                            + " UPDATE " + PetEntry.TABLE_NAME + " SET " + changeSeq
+                            + " = (SELECT " + lastSeq + " FROM " + state + ")"
+                            + " WHERE " + PetEntry._ID + " = new." + PetEntry._ID + ";";
+
+                    db.execSQL("CREATE TRIGGER pets_change_insert AFTER INSERT ON "
+                            + PetEntry.TABLE_NAME + " BEGIN" + nextSeq + " END");
+
+                    // Setting the change sequence itself does not fire the trigger again
+                    db.execSQL("CREATE TRIGGER pets_change_update AFTER UPDATE OF "
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ", "
+                            + PetEntry.COLUMN_PET_GENDER + ", " + PetEntry.COLUMN_PET_WEIGHT + ", "
+                            + PetDbHelper.COLUMN_DELETED + " ON " + PetEntry.TABLE_NAME
+                            + " BEGIN" + nextSeq + " END");
+
+                    db.execSQL("CREATE TRIGGER pets_change_purge AFTER DELETE ON "
+                            + PetEntry.TABLE_NAME + " BEGIN UPDATE " + state + " SET " + purgedSeq
+                            + " = MAX(" + purgedSeq + ", old." + changeSeq + "); END");
+                }
+
+                @Override
+                String[] indexes() {
+                    return new String[] {
+                            "CREATE INDEX IF NOT EXISTS pets_change_seq ON " + PetEntry.TABLE_NAME
+                                    + " (" + PetEntry.COLUMN_CHANGE_SEQ + ")"
+                    };
+                }
+            },
+
+            // Sorted and filtered catalog: one index per sort order, and one per sort order
+            // after the gender, so every page is read from an index in its order without a sort.
+            // The _ID follows the sort column so the index is in the order of the pages, and the
+            // other columns of the catalog, the filters and the tombstone come after it so the
+            // pages are read from the index alone.
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Only indexes
+                }
+
+                @Override
+                String[] indexes() {
+                    return new String[] {
+                            createCatalogIndex("pets_name", PetEntry.COLUMN_PET_NAME),
+                            createCatalogIndex("pets_breed", PetEntry.COLUMN_PET_BREED),
+                            createCatalogIndex("pets_weight", PetEntry.COLUMN_PET_WEIGHT),
+                            createCatalogIndex("pets_gender", PetEntry.COLUMN_PET_GENDER),
+                            createCatalogIndex("pets_gender_name", PetEntry.COLUMN_PET_GENDER,
+                                    PetEntry.COLUMN_PET_NAME),
+                            createCatalogIndex("pets_gender_breed", PetEntry.COLUMN_PET_GENDER,
+                                    PetEntry.COLUMN_PET_BREED),
+                            createCatalogIndex("pets_gender_weight", PetEntry.COLUMN_PET_GENDER,
+                                    PetEntry.COLUMN_PET_WEIGHT)
+                    };
+                }
+            },
+
+            // Prefix indexes of 1 to 3 characters in the full-text index, so the prefix query of
+            // a short search reads one range of the index instead of merging the doclists of
+            // every term that starts with it. The triggers of version 2 keep the new table in
+            // sync, they only name it. SQLite before 3.7.7 (Android 4.0) has no prefix option,
+            // the table is rebuilt there without it.
+            new Migration(7) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    final String prefix = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+                            ? ", prefix=\"1,2,3\"" : "";
+
+                    db.execSQL("DROP TABLE " + PetDbHelper.FTS_TABLE_NAME);
+                    db.execSQL("CREATE VIRTUAL TABLE " + PetDbHelper.FTS_TABLE_NAME
+                            + " USING fts4(" + PetEntry.COLUMN_PET_NAME + ", "
+                            + PetEntry.COLUMN_PET_BREED + prefix + ")");
+                    db.execSQL("INSERT INTO " + PetDbHelper.FTS_TABLE_NAME + " (docid, "
+                            + PetEntry.COLUMN_PET_NAME + ", " + PetEntry.COLUMN_PET_BREED + ")"
+                            + " SELECT " + PetEntry._ID + ", " + PetEntry.COLUMN_PET_NAME + ", "
+                            + PetEntry.COLUMN_PET_BREED + " FROM " + PetEntry.TABLE_NAME);
+                }
+            },
+
+            // Delete watermark: deleting all the pets records the highest _ID in one row and
+            // hides the pets up to it, instead of writing the tombstone of every pet. The
+            // statistics are emptied by the delete, so removing the hidden pets later must not
+            // count them out again.
+            new Migration(8) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + PetDbHelper.DELETE_STATE_TABLE_NAME + " ("
+                            + PetDbHelper.COLUMN_WATERMARK_ID + " INTEGER NOT NULL, "
+                            + PetDbHelper.COLUMN_WATERMARK_TIME + " INTEGER NOT NULL, "
+                            + PetDbHelper.COLUMN_PREVIOUS_WATERMARK_ID + " INTEGER NOT NULL, "
+                            + PetDbHelper.COLUMN_PREVIOUS_WATERMARK_TIME + " INTEGER NOT NULL)");
+                    db.execSQL("INSERT INTO " + PetDbHelper.DELETE_STATE_TABLE_NAME
+                            + " VALUES (0, 0, 0, 0)");
+
+                    db.execSQL("DROP TRIGGER pets_stats_delete");
+                    db.execSQL("CREATE TRIGGER pets_stats_delete AFTER DELETE ON "
+                            + PetEntry.TABLE_NAME + " WHEN old." + PetDbHelper.COLUMN_DELETED
+                            + " = 0 AND old." + PetEntry._ID + " > "
+                            + PetDbHelper.SELECT_WATERMARK_ID + " BEGIN"
+                            + removeFromStats("old") + " END");
+                }
+            },
+    };
+
+    /**
+     * Index on the given leading columns, then _ID, then the other catalog columns that are not
+     * leading: name, breed, weight and gender, and the tombstone.
+     */
+    private static String createCatalogIndex(String name, String... leadingColumns) {
+        final StringBuilder columns = new StringBuilder();
+        for (String column : leadingColumns) {
+            columns.append(column).append(", ");
+        }
+        columns.append(PetEntry._ID);
+        for (String column : new String[] { PetEntry.COLUMN_PET_NAME, PetEntry.COLUMN_PET_BREED,
+                PetEntry.COLUMN_PET_WEIGHT, PetEntry.COLUMN_PET_GENDER }) {
+            if (!Arrays.asList(leadingColumns).contains(column)) {
+                columns.append(", ").append(column);
+            }
+        }
+        columns.append(", ").append(PetDbHelper.COLUMN_DELETED);
+
+        return "CREATE INDEX IF NOT EXISTS " + name + " ON " + PetEntry.TABLE_NAME + " ("
+                + columns + ")";
+    }
+
+    /** Check that there is one migration per version, up to the given latest version */
+    static void checkVersions(int latestVersion) {
+        int expectedVersion = 2;
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version != expectedVersion) {
+                throw new IllegalStateException("Missing migration to version " + expectedVersion);
+            }
+            expectedVersion++;
+        }
+
+        if (expectedVersion - 1 != latestVersion) {
+            throw new IllegalStateException("Migrations end at version " + (expectedVersion - 1)
+                    + " but the database version is " + latestVersion);
+        }
+    }
+
+    /**
+     * Apply every migration after {@code oldVersion} up to and including {@code newVersion}.
+     *
+     * {@link android.database.sqlite.SQLiteOpenHelper} calls onCreate and onUpgrade inside one
+     * transaction that also sets the new version, so the steps commit all together. A failing
+     * step rolls back every step and the database stays at {@code oldVersion}.
+     */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version <= oldVersion || migration.version > newVersion) {
+                continue;
+            }
+
+            Log.i(LOG_TAG, "Migrating pets database to version " + migration.version);
+            migration.migrate(db);
+        }
+    }
+
+    /**
+     * Build the indexes of every migration up to the given version that do not exist yet.
+     * It runs outside of a transaction, every index is built and committed by its own statement.
+     */
+    static void createIndexes(SQLiteDatabase db, int version) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version > version) {
+                break;
+            }
+
+            for (String createIndex : migration.indexes()) {
+                db.execSQL(createIndex);
+            }
+        }
+    }
+}
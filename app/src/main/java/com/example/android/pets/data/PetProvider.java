@@ -1,15 +1,48 @@
 package com.example.android.pets.data;
 
+import android.content.ClipDescription;
+import android.content.ComponentName;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import com.example.android.pets.BuildConfig;
 import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * {@link ContentProvider} for Pets app
@@ -18,8 +51,89 @@ import android.util.Log;
 public class PetProvider extends ContentProvider {
 
     public static final String LOG_TAG = PetProvider.class.getSimpleName();
+
+    /** Name of the database file, null for the pets database of the app */
+    private final String mDatabaseName;
+
     private PetDbHelper mPetDbHelper;
+    private PetChangeNotifier mChangeNotifier;
+
+    /** Removes the deleted pets in the background once they can no longer be restored */
+    private PetPurger mPurger;
+
+    /** Commits the writes of concurrent callers together when group commit is on */
+    private PetGroupCommitter mGroupCommitter;
+
+    /**
+     * Tombstone of the last delete. Every delete gets a distinct tombstone, so an undo restores
+     * the pets of the last delete only.
+     */
+    private final AtomicLong mLastTombstone = new AtomicLong();
+
+    /** Compiled statements of the fixed-shape operations, created on first use */
+    private PetStatements mStatements;
+
+    /**
+     * URIs changed by the batch running on the current thread, or null when the thread is not
+     * inside {@link #applyBatch(ArrayList)}. Notifications are held here until the batch commits.
+     */
+    private final ThreadLocal<Set<Uri>> mBatchChanges = new ThreadLocal<>();
+
+    /** Names of the URIs in the metrics, indexed by match code minus {@link #PETS} */
+    private static final String[] METRICS_URI_NAMES = {
+            PetContract.PATH_PETS,
+            PetContract.PATH_PETS + "/#",
+            PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH,
+            PetContract.PATH_PETS + "/" + PetContract.PATH_STATS,
+            PetContract.PATH_PETS + "/" + PetContract.PATH_STATS + "/" + PetContract.PATH_BREEDS,
+            PetContract.PATH_PETS + "/" + PetContract.PATH_EXPORT + "/*",
+            PetContract.PATH_PETS + "/" + PetContract.PATH_CHANGES
+    };
+
+    /** Latency and row counts of the calls, always on */
+    private final PetProviderMetrics mMetrics = new PetProviderMetrics(METRICS_URI_NAMES);
 
+    /** Checks the plans of the statements with a selection of the caller, off by default */
+    private final PetQueryWatchdog mQueryWatchdog = new PetQueryWatchdog();
+
+    /** Number of pets above which the watchdog reports a slow plan when no threshold is given */
+    private static final long DEFAULT_WATCHDOG_ROW_THRESHOLD = 1000;
+
+    /** Maximum number of pets kept in {@link #mPetCache} */
+    private static final int PET_CACHE_SIZE = 256;
+
+    /** Columns of a pet kept in {@link #mPetCache}, in this order */
+    private static final String[] PET_CACHE_COLUMNS = PetStatements.QUERY_COLUMNS;
+
+    /** Recently read pets by _ID, serves the PET_ID queries of the editor */
+    private final LruCache<Long, Object[]> mPetCache = new LruCache<>(PET_CACHE_SIZE);
+
+    /**
+     * Incremented after every committed write. A pet read from the database is only cached if
+     * no write committed while it was read, otherwise the cache could keep a stale row.
+     */
+    private final AtomicLong mWriteGeneration = new AtomicLong();
+
+    /** Maximum estimated size in bytes of the results kept in {@link #mQueryCache} */
+    private static final int QUERY_CACHE_BYTES = 1024 * 1024;
+
+    /** Recent results of the list URI, valid until the next write */
+    private final PetQueryCache mQueryCache = new PetQueryCache(mWriteGeneration,
+            QUERY_CACHE_BYTES);
+
+
+    /**
+     * Name of the meta-data of the provider in the manifest with the synchronous mode of the
+     * database, one of the SYNCHRONOUS_ constants of {@link PetDbHelper}
+     */
+    private static final String META_DATA_SYNCHRONOUS = "com.example.android.pets.SYNCHRONOUS";
+
+    /**
+     * Name of the meta-data of the provider in the manifest with the number of WAL pages before
+     * an automatic checkpoint, 0 disables automatic checkpoints
+     */
+    private static final String META_DATA_WAL_AUTOCHECKPOINT =
+            "com.example.android.pets.WAL_AUTOCHECKPOINT";
 
     /** URI matcher code for the content URI for the pets table */
     private static final int PETS = 100;
@@ -27,6 +141,58 @@ public class PetProvider extends ContentProvider {
     /** URI matcher code for the content URI for a single pet in the pets table */
     private static final int PET_ID = 101;
 
+    /** URI matcher code for the full-text search of the pets table */
+    private static final int PET_SEARCH = 102;
+
+    /** URI matcher code for the statistics per gender */
+    private static final int PET_STATS = 103;
+
+    /** URI matcher code for the statistics per breed */
+    private static final int PET_BREED_STATS = 104;
+
+    /** URI matcher code for the exports of all the pets to a file */
+    private static final int PET_EXPORT = 105;
+
+    /** URI matcher code for the pets changed since a change sequence */
+    private static final int PET_CHANGES = 106;
+
+    /** Types of the exports of the pets, in order of preference */
+    private static final String[] EXPORT_TYPES = {
+            PetEntry.CONTENT_CSV_TYPE,
+            PetEntry.CONTENT_BINARY_TYPE
+    };
+
+    /** Writes the pets to the pipe of an export */
+    private final PetExporter mExporter = new PetExporter();
+
+    /** Number of changed pets when the changes URI does not have a limit */
+    private static final int DEFAULT_CHANGES_LIMIT = 1000;
+
+    /** Columns of the changed pets when the query has no projection */
+    private static final String[] CHANGES_COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT,
+            PetEntry.COLUMN_DELETED,
+            PetEntry.COLUMN_CHANGE_SEQ
+    };
+
+    /** Number of search results when the search URI does not have a limit */
+    private static final int DEFAULT_SEARCH_LIMIT = 100;
+
+    /** Join of the pets table with its full-text index, used by searches */
+    private static final String SEARCH_TABLES = PetEntry.TABLE_NAME + " JOIN "
+            + PetDbHelper.FTS_TABLE_NAME + " ON " + PetEntry.TABLE_NAME + "." + PetEntry._ID
+            + " = " + PetDbHelper.FTS_TABLE_NAME + ".docid";
+
+    /** Columns of a search result, they come from the pets table and not from the index */
+    private static final Map<String, String> sSearchProjectionMap = new HashMap<>();
+
+    /** Columns of the statistics per gender, the average weight is computed when read */
+    private static final Map<String, String> sGenderStatsProjectionMap = new HashMap<>();
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -44,28 +210,161 @@ public class PetProvider extends ContentProvider {
         // to its corresponding code (PETS and PET_ID) for pets table
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS, PETS);
         sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/#", PET_ID);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_SEARCH, PET_SEARCH);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_STATS, PET_STATS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY, PetContract.PATH_PETS + "/"
+                + PetContract.PATH_STATS + "/" + PetContract.PATH_BREEDS, PET_BREED_STATS);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_EXPORT + "/*", PET_EXPORT);
+        sUriMatcher.addURI(PetContract.CONTENT_AUTHORITY,
+                PetContract.PATH_PETS + "/" + PetContract.PATH_CHANGES, PET_CHANGES);
+
+        for (String column : new String[] { PetEntry._ID, PetEntry.COLUMN_PET_NAME,
+                PetEntry.COLUMN_PET_BREED, PetEntry.COLUMN_PET_GENDER,
+                PetEntry.COLUMN_PET_WEIGHT }) {
+            sSearchProjectionMap.put(column, PetEntry.TABLE_NAME + "." + column + " AS " + column);
+        }
+
+        for (String column : new String[] { PetStatsEntry.COLUMN_GENDER,
+                PetStatsEntry.COLUMN_PET_COUNT, PetStatsEntry.COLUMN_WEIGHT_SUM,
+                PetStatsEntry.COLUMN_WEIGHT_COUNT }) {
+            sGenderStatsProjectionMap.put(column, column);
+        }
+        sGenderStatsProjectionMap.put(PetStatsEntry.COLUMN_AVERAGE_WEIGHT, "CASE WHEN "
+                + PetStatsEntry.COLUMN_WEIGHT_COUNT + " > 0 THEN CAST("
+                + PetStatsEntry.COLUMN_WEIGHT_SUM + " AS REAL) / "
+                + PetStatsEntry.COLUMN_WEIGHT_COUNT + " END AS "
+                + PetStatsEntry.COLUMN_AVERAGE_WEIGHT);
+    }
+
+    public PetProvider() {
+        this(null);
+    }
+
+    /**
+     * Keep the pets in the given database file instead of the one of the app, so tests and
+     * benchmarks can attach their own provider without touching the pets of the user.
+     */
+    PetProvider(String databaseName) {
+        mDatabaseName = databaseName;
     }
 
     @Override
     public boolean onCreate() {
-        mPetDbHelper = new PetDbHelper( getContext() );
+        mPetDbHelper = createDbHelper();
+        mChangeNotifier = new PetChangeNotifier(getContext().getContentResolver());
+
+        // Purge the pets deleted before the provider was stopped
+        mPurger = new PetPurger(mPetDbHelper);
+        mPurger.schedule();
+
+        // The changes of a group are held like the changes of a batch, until it commits
+        mGroupCommitter = new PetGroupCommitter(mPetDbHelper, new PetGroupCommitter.Listener() {
+            @Override
+            public void onGroupStart() {
+                mBatchChanges.set(new LinkedHashSet<Uri>());
+            }
+
+            @Override
+            public void onGroupEnd(boolean committed) {
+                final Set<Uri> changes = mBatchChanges.get();
+                mBatchChanges.remove();
+                if (committed) {
+                    for (Uri uri : changes) {
+                        notifyChange(uri);
+                    }
+                }
+            }
+        });
         return true;
     }
 
+    /**
+     * Open the pets database with the synchronous mode and the WAL checkpoint interval of the
+     * meta-data of the provider, or with the defaults of {@link PetDbHelper} when they are not
+     * set.
+     */
+    private PetDbHelper createDbHelper() {
+        String synchronous = PetDbHelper.DEFAULT_SYNCHRONOUS;
+        int walAutoCheckpoint = PetDbHelper.DEFAULT_WAL_AUTOCHECKPOINT;
+
+        try {
+            final Bundle metaData = getContext().getPackageManager().getProviderInfo(
+                    new ComponentName(getContext(), PetProvider.class),
+                    PackageManager.GET_META_DATA).metaData;
+            if (metaData != null) {
+                synchronous = metaData.getString(META_DATA_SYNCHRONOUS, synchronous);
+                walAutoCheckpoint = metaData.getInt(META_DATA_WAL_AUTOCHECKPOINT,
+                        walAutoCheckpoint);
+            }
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(LOG_TAG, "The provider is not in the manifest, the database uses the defaults");
+        }
+
+        if (mDatabaseName != null) {
+            return new PetDbHelper(getContext(), mDatabaseName, synchronous, walAutoCheckpoint);
+        }
+        return new PetDbHelper(getContext(), synchronous, walAutoCheckpoint);
+    }
+
+    /** Stop the background threads, close the statements and the database, only for tests */
+    @Override
+    public void shutdown() {
+        mPurger.quit();
+        mGroupCommitter.quit();
+        mChangeNotifier.quit();
+        synchronized (this) {
+            if (mStatements != null) {
+                mStatements.close();
+                mStatements = null;
+            }
+        }
+        mPetDbHelper.close();
+    }
+
     @Nullable
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+        final int matchCode = sUriMatcher.match(uri);
+        final long startNanos = System.nanoTime();
+        Cursor cursor = null;
+        int rows = 0;
+        try {
+            cursor = queryUri(matchCode, uri, projection, selection, selectionArgs, sortOrder);
+
+            // Counting the rows runs the query, so the time includes reading the results
+            rows = (cursor != null) ? cursor.getCount() : 0;
+            return cursor;
+        } finally {
+            final long nanos = System.nanoTime() - startNanos;
+            mMetrics.record(matchCode - PETS, PetProviderMetrics.QUERY, nanos, rows);
+            mQueryWatchdog.record(nanos);
+        }
+    }
+
+    private Cursor queryUri(int matchCode, Uri uri, String[] projection, String selection,
+                            String[] selectionArgs, String sortOrder) {
         SQLiteDatabase db = mPetDbHelper.getReadableDatabase();
 
         Cursor cursor = null;
-        int matchCode = sUriMatcher.match(uri);
         switch (matchCode) {
             case PETS:
-                // For the PETS code, query the pets table directly with the given
-                // projection, selection, selection arguments, and sort order. The cursor
-                // could contain multiple rows of the pets table.
-                cursor = db.query(PetEntry.TABLE_NAME,
-                        projection, selection, selectionArgs, null, null, sortOrder);
+                // Reads inside a batch may see its uncommitted writes, they are not cached
+                if (mBatchChanges.get() != null) {
+                    cursor = queryPets(db, uri, projection, selection, selectionArgs, sortOrder);
+                    break;
+                }
+
+                final PetQueryCache.Key cacheKey = new PetQueryCache.Key(uri, projection,
+                        selection, selectionArgs, sortOrder);
+                cursor = mQueryCache.get(cacheKey);
+                if (cursor == null) {
+                    final long generation = mWriteGeneration.get();
+                    cursor = mQueryCache.put(cacheKey, generation,
+                            queryPets(db, uri, projection, selection, selectionArgs, sortOrder));
+                }
                 break;
             case PET_ID:
                 // For the PET_ID code, extract out the ID from the URI.
@@ -76,9 +375,20 @@ public class PetProvider extends ContentProvider {
                 // For every "?" in the selection, we need to have an element in the selection
                 // arguments that will fill in the "?". Since we have 1 question mark in the
                 // selection, we have 1 String in the selection arguments' String array.
-                selection = PetEntry._ID+"=?";
+                selection = PetEntry._ID + "=? AND " + PetDbHelper.SELECTION_LIVE;
                 selectionArgs = new String [] { String.valueOf(ContentUris.parseId(uri)) };
 
+                // Serve the pet from the row cache when the projection only has pet columns.
+                // Inside a batch the cache is skipped: the batch may have changed the pet, and
+                // its uncommitted row must not be cached.
+                final int[] cacheColumns = (mBatchChanges.get() == null)
+                        ? getPetCacheColumns(projection) : null;
+                if (cacheColumns != null) {
+                    cursor = queryCachedPet(db, ContentUris.parseId(uri), projection,
+                            cacheColumns);
+                    break;
+                }
+
                 cursor = db.query(PetEntry.TABLE_NAME,
                             projection,
                             selection,
@@ -87,17 +397,573 @@ public class PetProvider extends ContentProvider {
                             null,
                             sortOrder);
                 break;
+            case PET_SEARCH:
+                cursor = querySearch(db, uri, projection, selection, selectionArgs, sortOrder);
+                break;
+            case PET_STATS:
+                cursor = queryGenderStats(db, projection, selection, selectionArgs, sortOrder);
+                break;
+            case PET_BREED_STATS:
+                cursor = queryBreedStats(db, uri, projection, selection, selectionArgs,
+                        sortOrder);
+                break;
+            case PET_CHANGES:
+                cursor = queryChanges(db, uri, projection, selection, selectionArgs, sortOrder);
+                break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
 
+        // Search results, statistics and changes are watched on the list URI, so they are
+        // notified for changed pets too
         if (cursor != null) {
-            cursor.setNotificationUri(getContext().getContentResolver(), uri);
+            cursor.setNotificationUri(getContext().getContentResolver(),
+                    (matchCode == PETS || matchCode == PET_ID) ? uri : PetEntry.CONTENT_URI);
         }
 
         return cursor;
     }
 
+    /**
+     * Query the pets of the list URI with its filters, in a sort order of {@link PetEntry}, and
+     * a page of them if the URI has a limit.
+     */
+    private Cursor queryPets(SQLiteDatabase db, Uri uri, String[] projection, String selection,
+                             String[] selectionArgs, String sortOrder) {
+        final String sortColumn = getSortColumn(uri, sortOrder);
+        final boolean paged = uri.getQueryParameter(PetContract.QUERY_PARAMETER_LIMIT) != null;
+        final List<String> filterArgs = new ArrayList<>();
+        selection = DatabaseUtils.concatenateWhere(getFilterSelection(uri, filterArgs,
+                PetEntry.COLUMN_PET_WEIGHT.equals(sortColumn)
+                        || (sortColumn == null && !paged)), selection);
+        selectionArgs = DatabaseUtils.appendSelectionArgs(
+                filterArgs.toArray(new String[filterArgs.size()]), selectionArgs);
+
+        // A limit turns the query into a page of the pets table
+        if (paged) {
+            return queryPage(db, uri, projection, selection, selectionArgs, sortColumn);
+        }
+
+        // For the PETS code, query the pets table directly with the given
+        // projection, selection, selection arguments, and sort order. The cursor
+        // could contain multiple rows of the pets table.
+        final String orderBy = (sortColumn != null) ? getOrderBy(sortColumn) : null;
+        mQueryWatchdog.checkQuery(db, projection, selection, selectionArgs, orderBy, null);
+        return db.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs, null, null,
+                orderBy);
+    }
+
+    /** Return the compiled statements, compiling them on first use */
+    private synchronized PetStatements getStatements() {
+        if (mStatements == null) {
+            mStatements = new PetStatements(mPetDbHelper.getWritableDatabase());
+        }
+        return mStatements;
+    }
+
+    /**
+     * Map the columns of a projection to their index in {@link #PET_CACHE_COLUMNS}.
+     * Returns null if a column is not kept in the cache, e.g. an expression.
+     */
+    private static int[] getPetCacheColumns(String[] projection) {
+        if (projection == null) {
+            projection = PET_CACHE_COLUMNS;
+        }
+
+        final int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = -1;
+            for (int j = 0; j < PET_CACHE_COLUMNS.length; j++) {
+                if (PET_CACHE_COLUMNS[j].equals(projection[i])) {
+                    columns[i] = j;
+                    break;
+                }
+            }
+            if (columns[i] == -1) {
+                return null;
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Return a single pet from the row cache, reading it from the database on a miss.
+     * The returned cursor has the requested columns and no row if the pet does not exist.
+     */
+    private Cursor queryCachedPet(SQLiteDatabase db, long id, String[] projection,
+                                  int[] columns) {
+        Object[] pet = mPetCache.get(id);
+
+        if (pet == null) {
+            final long generation = mWriteGeneration.get();
+
+            Cursor cursor = getStatements().queryById(id);
+            try {
+                if (cursor.moveToFirst()) {
+                    pet = new Object[PET_CACHE_COLUMNS.length];
+                    for (int i = 0; i < pet.length; i++) {
+                        pet[i] = getCursorValue(cursor, i);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+
+            if (pet != null && generation == mWriteGeneration.get()) {
+                mPetCache.put(id, pet);
+            }
+        }
+
+        MatrixCursor result = new MatrixCursor(
+                (projection != null) ? projection : PET_CACHE_COLUMNS, 1);
+        if (pet != null) {
+            final Object[] row = new Object[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                row[i] = pet[columns[i]];
+            }
+            result.addRow(row);
+        }
+        return result;
+    }
+
+    /** Read a column of the current row of a cursor with its SQLite type */
+    static Object getCursorValue(Cursor cursor, int column) {
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_NULL:
+                return null;
+            case Cursor.FIELD_TYPE_INTEGER:
+                return cursor.getLong(column);
+            case Cursor.FIELD_TYPE_FLOAT:
+                return cursor.getDouble(column);
+            case Cursor.FIELD_TYPE_BLOB:
+                return cursor.getBlob(column);
+            default:
+                return cursor.getString(column);
+        }
+    }
+
+    /**
+     * Drop the cached pets that a committed write to the given URI may have changed: the pet of
+     * an item URI, or every pet for the list URI.
+     */
+    private void invalidateCachedPets(Uri uri) {
+        mWriteGeneration.incrementAndGet();
+        if (sUriMatcher.match(uri) == PET_ID) {
+            mPetCache.remove(ContentUris.parseId(uri));
+        } else {
+            mPetCache.evictAll();
+        }
+    }
+
+    /**
+     * Return the hits and misses of the row cache for
+     * {@link PetContract#METHOD_GET_PET_CACHE_STATS}, or set the window of the change
+     * notifications for {@link PetContract#METHOD_SET_NOTIFY_WINDOW}, or return and reset the
+     * call metrics for {@link PetContract#METHOD_GET_METRICS}, or insert binary pets for
+     * {@link PetContract#METHOD_BULK_INSERT_BINARY}, or restore or remove the deleted pets for
+     * {@link PetContract#METHOD_UNDO_DELETE} and {@link PetContract#METHOD_PURGE_DELETED}, or
+     * return the last change sequence for {@link PetContract#METHOD_GET_CHANGE_SEQ}, or set and
+     * report the query plan watchdog for {@link PetContract#METHOD_SET_QUERY_WATCHDOG} and
+     * {@link PetContract#METHOD_GET_QUERY_PLANS} in debug builds, or set the window of the group
+     * commit for {@link PetContract#METHOD_SET_GROUP_COMMIT}.
+     */
+    @Nullable
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (PetContract.METHOD_GET_PET_CACHE_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putInt(PetContract.EXTRA_CACHE_HITS, mPetCache.hitCount());
+            stats.putInt(PetContract.EXTRA_CACHE_MISSES, mPetCache.missCount());
+            stats.putInt(PetContract.EXTRA_CACHE_SIZE, mPetCache.size());
+            stats.putInt(PetContract.EXTRA_QUERY_CACHE_HITS, mQueryCache.hitCount());
+            stats.putInt(PetContract.EXTRA_QUERY_CACHE_MISSES, mQueryCache.missCount());
+            stats.putInt(PetContract.EXTRA_QUERY_CACHE_BYTES, mQueryCache.size());
+            return stats;
+        }
+
+        if (PetContract.METHOD_GET_METRICS.equals(method)) {
+            return mMetrics.snapshotAndReset();
+        }
+
+        if (PetContract.METHOD_BULK_INSERT_BINARY.equals(method)) {
+            final long startNanos = System.nanoTime();
+            int rows = 0;
+            try {
+                rows = bulkInsertBinary(readPetData(extras));
+                Bundle result = new Bundle();
+                result.putInt(PetContract.EXTRA_INSERTED_ROWS, rows);
+                return result;
+            } finally {
+                // Recorded with the bulk inserts of the list URI, index 0 of the metrics
+                mMetrics.record(0, PetProviderMetrics.BULK_INSERT,
+                        System.nanoTime() - startNanos, rows);
+            }
+        }
+
+        if (PetContract.METHOD_UNDO_DELETE.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(PetContract.EXTRA_RESTORED_ROWS, undoDelete());
+            return result;
+        }
+
+        if (PetContract.METHOD_GET_CHANGE_SEQ.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(PetContract.EXTRA_CHANGE_SEQ, DatabaseUtils.longForQuery(
+                    mPetDbHelper.getReadableDatabase(), "SELECT "
+                            + PetDbHelper.COLUMN_LAST_CHANGE_SEQ + " FROM "
+                            + PetDbHelper.CHANGE_STATE_TABLE_NAME, null));
+            return result;
+        }
+
+        if (PetContract.METHOD_PURGE_DELETED.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(PetContract.EXTRA_PURGED_ROWS, mPurger.purgeAll());
+            return result;
+        }
+
+        if (BuildConfig.DEBUG && PetContract.METHOD_SET_QUERY_WATCHDOG.equals(method)) {
+            if (extras == null || !extras.containsKey(PetContract.EXTRA_WATCHDOG_MODE)) {
+                throw new IllegalArgumentException("Query watchdog requires "
+                        + PetContract.EXTRA_WATCHDOG_MODE);
+            }
+            mQueryWatchdog.setMode(extras.getInt(PetContract.EXTRA_WATCHDOG_MODE),
+                    extras.getLong(PetContract.EXTRA_WATCHDOG_ROW_THRESHOLD,
+                            DEFAULT_WATCHDOG_ROW_THRESHOLD));
+            return null;
+        }
+
+        if (BuildConfig.DEBUG && PetContract.METHOD_GET_QUERY_PLANS.equals(method)) {
+            return mQueryWatchdog.getReport();
+        }
+
+        if (PetContract.METHOD_SET_GROUP_COMMIT.equals(method)) {
+            if (extras == null
+                    || !extras.containsKey(PetContract.EXTRA_GROUP_COMMIT_WINDOW_MILLIS)) {
+                throw new IllegalArgumentException("Group commit requires "
+                        + PetContract.EXTRA_GROUP_COMMIT_WINDOW_MILLIS);
+            }
+            mGroupCommitter.setWindowMillis(
+                    extras.getLong(PetContract.EXTRA_GROUP_COMMIT_WINDOW_MILLIS));
+            return null;
+        }
+
+        if (PetContract.METHOD_SET_NOTIFY_WINDOW.equals(method)) {
+            if (extras == null || !extras.containsKey(PetContract.EXTRA_NOTIFY_WINDOW_MILLIS)) {
+                throw new IllegalArgumentException("Notification window requires "
+                        + PetContract.EXTRA_NOTIFY_WINDOW_MILLIS);
+            }
+            mChangeNotifier.setWindowMillis(
+                    extras.getLong(PetContract.EXTRA_NOTIFY_WINDOW_MILLIS));
+            return null;
+        }
+
+        return super.call(method, arg, extras);
+    }
+
+    /**
+     * Return the column of a sort order of {@link PetEntry}, or null for the _ID order.
+     *
+     * @throws IllegalArgumentException for any other sort order, it could not be read from an
+     *                                  index
+     */
+    private static String getSortColumn(Uri uri, String sortOrder) {
+        if (sortOrder == null) {
+            return null;
+        } else if (PetEntry.SORT_BY_NAME.equals(sortOrder)) {
+            return PetEntry.COLUMN_PET_NAME;
+        } else if (PetEntry.SORT_BY_BREED.equals(sortOrder)) {
+            return PetEntry.COLUMN_PET_BREED;
+        } else if (PetEntry.SORT_BY_WEIGHT.equals(sortOrder)) {
+            return PetEntry.COLUMN_PET_WEIGHT;
+        }
+        throw new IllegalArgumentException("Unsupported sort order " + sortOrder + " for " + uri);
+    }
+
+    /** ORDER BY of a sort column, pets with the same value are in _ID order */
+    private static String getOrderBy(String sortColumn) {
+        return sortColumn + " ASC, " + PetEntry._ID + " ASC";
+    }
+
+    /**
+     * Return the selection of the pets that are not deleted and match the gender and weight
+     * filters of the URI, and add its arguments to {@code filterArgs}.
+     *
+     * The filter values come as text, the weight bounds are cast to integers: a unary + removes
+     * the affinity of the weight column, and SQLite sorts every integer before any text.
+     *
+     * @param weightIndexed false if the pets are read in an order other than the weight: the
+     *                      weight range is then written with a unary + so SQLite reads the
+     *                      index of that order, filtering as it goes, rather than the weight
+     *                      index followed by a sort of every pet in the range
+     */
+    private static String getFilterSelection(Uri uri, List<String> filterArgs,
+                                             boolean weightIndexed) {
+        final StringBuilder selection = new StringBuilder(PetDbHelper.SELECTION_LIVE);
+        final String weight = (weightIndexed ? "" : "+") + PetEntry.COLUMN_PET_WEIGHT;
+        final String[][] filters = {
+                { PetContract.QUERY_PARAMETER_GENDER, PetEntry.COLUMN_PET_GENDER + " = ?" },
+                { PetContract.QUERY_PARAMETER_MIN_WEIGHT, weight + " >= CAST(? AS INTEGER)" },
+                { PetContract.QUERY_PARAMETER_MAX_WEIGHT, weight + " <= CAST(? AS INTEGER)" }
+        };
+
+        for (String[] filter : filters) {
+            final String value = uri.getQueryParameter(filter[0]);
+            if (value == null) {
+                continue;
+            }
+            try {
+                Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid " + filter[0] + " in " + uri);
+            }
+            selection.append(" AND ").append(filter[1]);
+            filterArgs.add(value);
+        }
+        return selection.toString();
+    }
+
+    /**
+     * Query a page of pets with keyset pagination: the page starts right after the
+     * {@link PetContract#QUERY_PARAMETER_AFTER} ID and follows the _ID order, or right after the
+     * {@link PetContract#QUERY_PARAMETER_AFTER_VALUE} and ID in the order of the sort column.
+     * SQLite seeks directly to the first row through the primary key or the index of the sort
+     * order instead of skipping an OFFSET.
+     */
+    private Cursor queryPage(SQLiteDatabase db, Uri uri, String[] projection, String selection,
+                             String[] selectionArgs, String sortColumn) {
+        final String limit = uri.getQueryParameter(PetContract.QUERY_PARAMETER_LIMIT);
+        final String after = uri.getQueryParameter(PetContract.QUERY_PARAMETER_AFTER);
+        final String afterValue = uri.getQueryParameter(PetContract.QUERY_PARAMETER_AFTER_VALUE);
+        if (afterValue != null && (after == null || sortColumn == null)) {
+            throw new IllegalArgumentException("Page value requires a sort order and an ID in "
+                    + uri);
+        }
+        try {
+            if (Integer.parseInt(limit) <= 0) {
+                throw new IllegalArgumentException("Page limit must be positive in " + uri);
+            }
+            if (after != null) {
+                Long.parseLong(after);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page parameters in " + uri);
+        }
+
+        if (sortColumn == null) {
+            if (after != null) {
+                selection = DatabaseUtils.concatenateWhere(PetEntry._ID + ">?", selection);
+                selectionArgs = DatabaseUtils.appendSelectionArgs(new String[] { after },
+                        selectionArgs);
+            }
+            mQueryWatchdog.checkQuery(db, projection, selection, selectionArgs,
+                    PetEntry._ID + " ASC", limit);
+            return db.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
+                    null, null, PetEntry._ID + " ASC", limit);
+        }
+
+        // Null values come first, a page after a null value also has the non null values.
+        // IDs start at 1, so a page after 0 without a value is the first page.
+        if (afterValue != null) {
+            selection = DatabaseUtils.concatenateWhere(sortColumn + ">=? AND (" + sortColumn
+                    + ">? OR " + PetEntry._ID + ">?)", selection);
+            selectionArgs = DatabaseUtils.appendSelectionArgs(
+                    new String[] { afterValue, afterValue, after }, selectionArgs);
+        } else if (after != null && Long.parseLong(after) > 0) {
+            selection = DatabaseUtils.concatenateWhere("(" + sortColumn + " IS NULL AND "
+                    + PetEntry._ID + ">?) OR " + sortColumn + " IS NOT NULL", selection);
+            selectionArgs = DatabaseUtils.appendSelectionArgs(new String[] { after },
+                    selectionArgs);
+        }
+        mQueryWatchdog.checkQuery(db, projection, selection, selectionArgs,
+                getOrderBy(sortColumn), limit);
+        return db.query(PetEntry.TABLE_NAME, projection, selection, selectionArgs,
+                null, null, getOrderBy(sortColumn), limit);
+    }
+
+    /**
+     * Query the pets changed after the {@link PetContract#QUERY_PARAMETER_SINCE} change
+     * sequence, deleted pets included, through the index of the change sequences.
+     *
+     * The purged change sequence is read after the pets: if a purge removed a pet changed after
+     * the sequence before the pets were read, it is seen and the query fails. The limit keeps
+     * the pets in the first window of the cursor, so they are all read at once.
+     */
+    private Cursor queryChanges(SQLiteDatabase db, Uri uri, String[] projection,
+                                String selection, String[] selectionArgs, String sortOrder) {
+        if (sortOrder != null) {
+            throw new IllegalArgumentException("Changes of " + uri + " are ordered by "
+                    + PetEntry.COLUMN_CHANGE_SEQ);
+        }
+
+        final String sinceParameter = uri.getQueryParameter(PetContract.QUERY_PARAMETER_SINCE);
+        final String limitParameter = uri.getQueryParameter(PetContract.QUERY_PARAMETER_LIMIT);
+        final long since;
+        int limit = DEFAULT_CHANGES_LIMIT;
+        try {
+            since = Long.parseLong(sinceParameter);
+            if (limitParameter != null) {
+                limit = Integer.parseInt(limitParameter);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid change parameters in " + uri);
+        }
+        if (since < 0 || limit <= 0) {
+            throw new IllegalArgumentException("Invalid change parameters in " + uri);
+        }
+
+        Cursor cursor = db.query(PetEntry.TABLE_NAME,
+                (projection != null) ? projection : CHANGES_COLUMNS,
+                DatabaseUtils.concatenateWhere(PetEntry.COLUMN_CHANGE_SEQ + ">?", selection),
+                DatabaseUtils.appendSelectionArgs(new String[] { sinceParameter },
+                        selectionArgs),
+                null, null, PetEntry.COLUMN_CHANGE_SEQ + " ASC", String.valueOf(limit));
+        cursor.getCount();
+
+        // Every pet exists or is deleted in the changes since 0, the purged ones do not matter
+        final long purgedSeq = DatabaseUtils.longForQuery(db, "SELECT "
+                + PetDbHelper.COLUMN_PURGED_CHANGE_SEQ + " FROM "
+                + PetDbHelper.CHANGE_STATE_TABLE_NAME, null);
+        if (since > 0 && since < purgedSeq) {
+            cursor.close();
+            throw new IllegalArgumentException("Changes since " + since + " were purged, read "
+                    + "the changes since 0 instead");
+        }
+        return cursor;
+    }
+
+    /**
+     * Search the full-text index for the {@link PetContract#QUERY_PARAMETER_SEARCH} text.
+     *
+     * Results are ranked in two tiers: pets whose name matches every word, then pets that only
+     * match with their breed. Each tier is read in _ID order straight from the index with its
+     * own LIMIT, so no sort over all the matches is needed, and the breed tier is only queried
+     * when the name tier did not fill the limit. The breed tier leaves out the pets of the name
+     * tier through the same query with the same LIMIT, so it never reads more than a page of
+     * name matches.
+     */
+    private Cursor querySearch(SQLiteDatabase db, Uri uri, String[] projection, String selection,
+                               String[] selectionArgs, String sortOrder) {
+        if (sortOrder != null) {
+            throw new IllegalArgumentException("Results of " + uri + " are ordered by rank");
+        }
+
+        int limit = DEFAULT_SEARCH_LIMIT;
+        final String limitParameter = uri.getQueryParameter(PetContract.QUERY_PARAMETER_LIMIT);
+        if (limitParameter != null) {
+            try {
+                limit = Integer.parseInt(limitParameter);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid search limit in " + uri);
+            }
+            if (limit <= 0) {
+                throw new IllegalArgumentException("Search limit must be positive in " + uri);
+            }
+        }
+
+        final List<String> terms = getSearchTerms(
+                uri.getQueryParameter(PetContract.QUERY_PARAMETER_SEARCH));
+        if (terms.isEmpty()) {
+            return new MatrixCursor(projection != null ? projection
+                    : sSearchProjectionMap.keySet().toArray(new String[0]));
+        }
+
+        // Every term must match the start of a word, in the name only or in any column
+        final StringBuilder nameMatch = new StringBuilder();
+        final StringBuilder anyMatch = new StringBuilder();
+        for (String term : terms) {
+            nameMatch.append(PetEntry.COLUMN_PET_NAME).append(':').append(term).append("* ");
+            anyMatch.append(term).append("* ");
+        }
+
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(SEARCH_TABLES);
+        builder.setProjectionMap(sSearchProjectionMap);
+
+        final String match = PetDbHelper.FTS_TABLE_NAME + " MATCH ?";
+        final String order = PetDbHelper.FTS_TABLE_NAME + ".docid";
+
+        // The index still has the deleted pets until they are purged
+        selection = DatabaseUtils.concatenateWhere(PetDbHelper.SELECTION_LIVE, selection);
+
+        final String nameSelection = DatabaseUtils.concatenateWhere(match, selection);
+        final String[] nameSelectionArgs = DatabaseUtils.appendSelectionArgs(
+                new String[] { nameMatch.toString() }, selectionArgs);
+        Cursor nameMatches = builder.query(db, projection, nameSelection, nameSelectionArgs,
+                null, null, order, String.valueOf(limit));
+
+        final int nameMatchCount = nameMatches.getCount();
+        if (nameMatchCount >= limit) {
+            return nameMatches;
+        }
+
+        // The name tier has less than a full page of pets, excluding them is cheap
+        final String nameTier = builder.buildQuery(new String[] { PetEntry._ID }, nameSelection,
+                null, null, order, String.valueOf(limit));
+        final String[] breedSelectionArgs = DatabaseUtils.appendSelectionArgs(
+                new String[] { anyMatch.toString() }, nameSelectionArgs);
+        Cursor breedMatches = builder.query(db, projection,
+                DatabaseUtils.concatenateWhere(match + " AND " + PetDbHelper.FTS_TABLE_NAME
+                        + ".docid NOT IN (" + nameTier + ")", selection),
+                DatabaseUtils.appendSelectionArgs(breedSelectionArgs, selectionArgs),
+                null, null, order, String.valueOf(limit - nameMatchCount));
+
+        return new MergeCursor(new Cursor[] { nameMatches, breedMatches });
+    }
+
+    /** Read the statistics per gender, there is at most one row per gender */
+    private Cursor queryGenderStats(SQLiteDatabase db, String[] projection, String selection,
+                                    String[] selectionArgs, String sortOrder) {
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(PetStatsEntry.GENDER_TABLE_NAME);
+        builder.setProjectionMap(sGenderStatsProjectionMap);
+
+        return builder.query(db, projection, selection, selectionArgs, null, null,
+                (sortOrder != null) ? sortOrder : PetStatsEntry.COLUMN_GENDER + " ASC");
+    }
+
+    /** Read the statistics per breed, the most common breeds first unless sorted otherwise */
+    private Cursor queryBreedStats(SQLiteDatabase db, Uri uri, String[] projection,
+                                   String selection, String[] selectionArgs, String sortOrder) {
+        final String limit = uri.getQueryParameter(PetContract.QUERY_PARAMETER_LIMIT);
+        if (limit != null) {
+            try {
+                if (Integer.parseInt(limit) <= 0) {
+                    throw new IllegalArgumentException("Limit must be positive in " + uri);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid limit in " + uri);
+            }
+        }
+
+        return db.query(PetStatsEntry.BREED_TABLE_NAME, projection, selection, selectionArgs,
+                null, null, (sortOrder != null) ? sortOrder
+                        : PetStatsEntry.COLUMN_PET_COUNT + " DESC, "
+                        + PetStatsEntry.COLUMN_BREED + " ASC", limit);
+    }
+
+    /**
+     * Split the text of a search into lower case terms made of letters and digits, so the
+     * user input can never be read as full-text query syntax.
+     */
+    private static List<String> getSearchTerms(String query) {
+        final List<String> terms = new ArrayList<>();
+        if (query == null) {
+            return terms;
+        }
+
+        final StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= query.length(); i++) {
+            final char c = (i < query.length()) ? query.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                term.append(Character.toLowerCase(c));
+            } else if (term.length() > 0) {
+                terms.add(term.toString());
+                term.setLength(0);
+            }
+        }
+        return terms;
+    }
+
     @Nullable
     @Override
     public String getType(Uri uri) {
@@ -108,16 +974,284 @@ public class PetProvider extends ContentProvider {
                 return PetEntry.CONTENT_LIST_TYPE;
             case PET_ID:
                 return PetEntry.CONTENT_ITEM_TYPE;
+            case PET_SEARCH:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case PET_CHANGES:
+                return PetEntry.CONTENT_LIST_TYPE;
+            case PET_STATS:
+                return PetStatsEntry.CONTENT_GENDER_TYPE;
+            case PET_BREED_STATS:
+                return PetStatsEntry.CONTENT_BREED_TYPE;
+            case PET_EXPORT:
+                return getExportType(uri);
             default:
                 throw new IllegalStateException("Unknown URI " + uri + " with match " + matchCode);
 
         }
     }
 
+    /** The type of an export URI from its file name, or null if it is not an export */
+    private static String getExportType(Uri uri) {
+        final String file = uri.getLastPathSegment();
+        if (PetEntry.EXPORT_CSV_FILE.equals(file)) {
+            return PetEntry.CONTENT_CSV_TYPE;
+        } else if (PetEntry.EXPORT_BINARY_FILE.equals(file)) {
+            return PetEntry.CONTENT_BINARY_TYPE;
+        }
+        return null;
+    }
+
+    /** The pets can be read as a CSV or binary stream of the list URI and of the export URIs */
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        switch (sUriMatcher.match(uri)) {
+            case PETS:
+                List<String> types = new ArrayList<>();
+                for (String type : EXPORT_TYPES) {
+                    if (ClipDescription.compareMimeTypes(type, mimeTypeFilter)) {
+                        types.add(type);
+                    }
+                }
+                return types.isEmpty() ? null : types.toArray(new String[types.size()]);
+            case PET_EXPORT:
+                final String type = getExportType(uri);
+                return type != null && ClipDescription.compareMimeTypes(type, mimeTypeFilter)
+                        ? new String[] { type } : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Open an export URI for reading. The pets are written to a pipe by another thread as they
+     * are read from the database, see {@link PetExporter}. From KitKat the pipe is reliable, a
+     * reader finds out that an export failed with {@link ParcelFileDescriptor#checkError}.
+     */
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != PET_EXPORT) {
+            throw new FileNotFoundException("No file for URI " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Export " + uri + " can only be read");
+        }
+
+        final String type = getExportType(uri);
+        if (type == null) {
+            throw new FileNotFoundException("Unknown export " + uri);
+        }
+        return openExport(uri, type, null);
+    }
+
+    /** The list URI opened for a CSV or binary type streams the matching export */
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+        if (sUriMatcher.match(uri) == PETS) {
+            for (String type : EXPORT_TYPES) {
+                if (ClipDescription.compareMimeTypes(type, mimeTypeFilter)) {
+                    return new AssetFileDescriptor(openExport(uri, type, opts), 0,
+                            AssetFileDescriptor.UNKNOWN_LENGTH);
+                }
+            }
+        }
+        return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+    }
+
+    /**
+     * Start writing an export on a background thread, like {@link #openPipeHelper}, and return
+     * the end of the pipe to read it from. The pipe is reliable where the platform has one.
+     */
+    private ParcelFileDescriptor openExport(final Uri uri, final String type, final Bundle opts)
+            throws FileNotFoundException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return openPipeHelper(uri, type, opts, getStatements(), mExporter);
+        }
+
+        final ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createReliablePipe();
+        } catch (IOException e) {
+            throw new FileNotFoundException("Failed to create the pipe of " + uri);
+        }
+        final PetStatements statements = getStatements();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                mExporter.writeDataToPipe(pipe[1], uri, type, opts, statements);
+            }
+        });
+        return pipe[0];
+    }
+
     @Nullable
     @Override
-    public Uri insert(Uri uri, ContentValues values) {
+    public Uri insert(final Uri uri, final ContentValues values) {
         final int matchCode = sUriMatcher.match(uri);
+        final long startNanos = System.nanoTime();
+        Uri petUri = null;
+        try {
+            petUri = runWrite(new PetGroupCommitter.Operation<Uri>() {
+                @Override
+                public Uri run() {
+                    return insertUri(matchCode, uri, values);
+                }
+            });
+            return petUri;
+        } finally {
+            mMetrics.record(matchCode - PETS, PetProviderMetrics.INSERT,
+                    System.nanoTime() - startNanos, (petUri != null) ? 1 : 0);
+        }
+    }
+
+    private Uri insertUri(int matchCode, Uri uri, ContentValues values) {
+        validatePet(values);
+
+        switch (matchCode) {
+            case PETS:
+                return insertPet(uri, values);
+            default:
+                throw new IllegalArgumentException("Cannot query unknown URI " + uri);
+        }
+    }
+
+    /**
+     * Insert all the given pets in a single transaction. Every row is validated before anything
+     * is written, so an invalid row rejects the whole batch, and listeners are notified only once.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        final int matchCode = sUriMatcher.match(uri);
+        final long startNanos = System.nanoTime();
+        int rows = 0;
+        try {
+            rows = bulkInsertUri(matchCode, uri, values);
+            return rows;
+        } finally {
+            mMetrics.record(matchCode - PETS, PetProviderMetrics.BULK_INSERT,
+                    System.nanoTime() - startNanos, rows);
+        }
+    }
+
+    private int bulkInsertUri(int matchCode, Uri uri, ContentValues[] values) {
+        if (matchCode != PETS) {
+            throw new IllegalArgumentException("Cannot insert unknown URI " + uri);
+        }
+
+        for (ContentValues petValues : values) {
+            validatePet(petValues);
+        }
+
+        SQLiteDatabase db = mPetDbHelper.getWritableDatabase();
+        PetStatements statements = getStatements();
+
+        int insertedRows = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues petValues : values) {
+                if (statements.insert(petValues) != -1) {
+                    insertedRows++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // The new pets are not cached, only reads that started before them must not be cached
+        if (insertedRows > 0) {
+            mWriteGeneration.incrementAndGet();
+            mChangeNotifier.notifyChange(uri);
+        }
+
+        return insertedRows;
+    }
+
+    /**
+     * Return the pets in {@link PetBinaryFormat} of the extras of
+     * {@link PetContract#METHOD_BULK_INSERT_BINARY}. A file is mapped in memory rather than
+     * copied, a pipe is read whole.
+     */
+    private ByteBuffer readPetData(Bundle extras) {
+        if (extras != null && extras.containsKey(PetContract.EXTRA_PETS_DATA)) {
+            return ByteBuffer.wrap(extras.getByteArray(PetContract.EXTRA_PETS_DATA));
+        }
+
+        ParcelFileDescriptor file = extras == null ? null
+                : (ParcelFileDescriptor) extras.getParcelable(PetContract.EXTRA_PETS_FILE);
+        if (file == null) {
+            throw new IllegalArgumentException("Binary insert requires "
+                    + PetContract.EXTRA_PETS_DATA + " or " + PetContract.EXTRA_PETS_FILE);
+        }
+
+        FileInputStream input = new ParcelFileDescriptor.AutoCloseInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            final long size = file.getStatSize();
+            if (size >= 0) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = input.read(buffer)) != -1) {
+                data.write(buffer, 0, length);
+            }
+            return ByteBuffer.wrap(data.toByteArray());
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read the pets of " + file, e);
+            throw new IllegalArgumentException("Cannot read the pets of " + file);
+        } finally {
+            try {
+                input.close();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to close " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Insert the pets of data in {@link PetBinaryFormat} in a single transaction. Every pet is
+     * validated before anything is written, then the pets are read into reused arrays and bound
+     * to a compiled insert, so no String or ContentValues is created per pet. The bound gender
+     * and weight are still boxed by SQLiteStatement. Listeners are notified only once.
+     */
+    private int bulkInsertBinary(ByteBuffer data) {
+        PetBinaryFormat.Reader reader = PetBinaryFormat.validate(data);
+        if (reader.getCount() == 0) {
+            return 0;
+        }
+
+        SQLiteDatabase db = mPetDbHelper.getWritableDatabase();
+        PetStatements statements = getStatements();
+
+        int insertedRows = 0;
+        db.beginTransaction();
+        try {
+            while (reader.next()) {
+                if (statements.insert(reader.getName(), reader.getBreed(), reader.getGender(),
+                        reader.getWeight()) != -1) {
+                    insertedRows++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        // The new pets are not cached, only reads that started before them must not be cached
+        if (insertedRows > 0) {
+            mWriteGeneration.incrementAndGet();
+            mChangeNotifier.notifyChange(PetEntry.CONTENT_URI);
+        }
+
+        return insertedRows;
+    }
+
+    /** Validate the content values of a new pet, the same rules apply to single and bulk inserts */
+    private void validatePet(ContentValues values) {
+        checkWritableColumns(values);
 
         String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
         if (name == null) {
@@ -138,26 +1272,21 @@ public class PetProvider extends ContentProvider {
         if (weight == null) {
             throw new IllegalArgumentException("Pet requires a valid weight.");
         }
+    }
 
-        switch (matchCode) {
-            case PETS:
-                return insertPet(uri, values);
-            default:
-                throw new IllegalArgumentException("Cannot query unknown URI " + uri);
+    /** The tombstone and the change sequence of the pets are only written by the database */
+    private static void checkWritableColumns(ContentValues values) {
+        if (values.containsKey(PetDbHelper.COLUMN_DELETED)) {
+            throw new IllegalArgumentException("Pets are deleted through delete()");
+        }
+        if (values.containsKey(PetEntry.COLUMN_CHANGE_SEQ)) {
+            throw new IllegalArgumentException("Change sequence of a pet is read only");
         }
     }
 
     /** Validate if the input value for gender is valid */
     private boolean isGenderValid(Integer gender) {
-        switch (gender) {
-            case PetEntry.GENDER_MALE:
-            case PetEntry.GENDER_FEMALE:
-            case PetEntry.GENDER_UNKNOWN:
-                return true;
-            default:
-                return false;
-        }
-
+        return PetEntry.isValidGender(gender);
     }
 
     /**
@@ -165,9 +1294,14 @@ public class PetProvider extends ContentProvider {
      * for that specific row in the database.
      */
     private Uri insertPet(Uri uri, ContentValues values) {
-        SQLiteDatabase db = mPetDbHelper.getWritableDatabase();
-
-        long id = db.insert(PetEntry.TABLE_NAME, null, values);
+        // The usual insert has every column and goes through the compiled statement
+        long id;
+        if (PetStatements.hasAllColumns(values)) {
+            id = getStatements().insert(values);
+        } else {
+            SQLiteDatabase db = mPetDbHelper.getWritableDatabase();
+            id = db.insert(PetEntry.TABLE_NAME, null, values);
+        }
 
         // If the ID is -1, then the insertion failed. Log an error and return null.
         if (id == -1) {
@@ -175,62 +1309,349 @@ public class PetProvider extends ContentProvider {
             return null;
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
-
         // Once we know the ID of the new row in the table,
         // return the new URI with the ID appended to the end of it
-        return ContentUris.withAppendedId(uri, id);
+        Uri petUri = ContentUris.withAppendedId(uri, id);
+        notifyChange(petUri);
+        return petUri;
     }
 
+    /**
+     * Apply all operations in a single transaction. Change notifications raised by the operations
+     * are collected, de-duplicated and sent once after the transaction commits; nothing is sent
+     * if the batch fails.
+     *
+     * An operation that allows a yield splits the batch: if another thread is waiting, the
+     * operations before it are committed and their changes are sent right away. A failure then
+     * only rolls back the operations since the last yield.
+     */
     @Override
-    public int delete(Uri uri, String selection, String[] selectionArgs) {
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
         SQLiteDatabase db = mPetDbHelper.getWritableDatabase();
 
+        final int numOperations = operations.size();
+        final ContentProviderResult[] results = new ContentProviderResult[numOperations];
+        final Set<Uri> changes = new LinkedHashSet<>();
+
+        mBatchChanges.set(changes);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < numOperations; i++) {
+                final ContentProviderOperation operation = operations.get(i);
+
+                // Let readers in between operations of a long batch. The yield commits the
+                // operations so far, so the readers must not see them through stale caches.
+                if (i > 0 && operation.isYieldAllowed() && db.yieldIfContendedSafely()) {
+                    sendChanges(changes);
+                }
+
+                results[i] = operation.apply(this, results, i);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchChanges.remove();
+        }
+
+        sendChanges(changes);
+        return results;
+    }
+
+    /** Invalidate the cached pets of committed batch changes, notify them and clear them */
+    private void sendChanges(Set<Uri> changes) {
+        for (Uri uri : changes) {
+            invalidateCachedPets(uri);
+            mChangeNotifier.notifyChange(uri);
+        }
+        changes.clear();
+    }
+
+    /**
+     * Record a committed change of the given URI: a pet URI for a single pet, or the list URI
+     * when any pet may have changed. The cached pets are invalidated and the observers are
+     * notified through {@link PetChangeNotifier}. A change made by a batch is held until the
+     * batch commits.
+     */
+    private void notifyChange(Uri uri) {
+        Set<Uri> batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            batchChanges.add(uri);
+            return;
+        }
+
+        invalidateCachedPets(uri);
+        mChangeNotifier.notifyChange(uri);
+    }
+
+    /**
+     * True if a write of the current thread goes through the group commit. A write of a batch
+     * runs in the transaction of the batch, which the writer thread would wait for.
+     */
+    private boolean isGroupCommitEnabled() {
+        return mGroupCommitter.isEnabled() && mBatchChanges.get() == null;
+    }
+
+    /**
+     * Run a write on the current thread, or in the next group when group commit is on. The
+     * query watchdog times a statement on the thread that checked it, so a write of a group is
+     * timed on the writer thread, and the caller has nothing left to time.
+     */
+    private <T> T runWrite(final PetGroupCommitter.Operation<T> write) {
+        if (!isGroupCommitEnabled()) {
+            return write.run();
+        }
+
+        return mGroupCommitter.submit(new PetGroupCommitter.Operation<T>() {
+            @Override
+            public T run() {
+                final long startNanos = System.nanoTime();
+                try {
+                    return write.run();
+                } finally {
+                    mQueryWatchdog.record(System.nanoTime() - startNanos);
+                }
+            }
+        });
+    }
+
+    @Override
+    public int delete(final Uri uri, final String selection, final String[] selectionArgs) {
         final int matchCode = sUriMatcher.match(uri);
+        final long startNanos = System.nanoTime();
+        int rows = 0;
+        try {
+            rows = runWrite(new PetGroupCommitter.Operation<Integer>() {
+                @Override
+                public Integer run() {
+                    return deleteUri(matchCode, uri, selection, selectionArgs);
+                }
+            });
+            return rows;
+        } finally {
+            final long nanos = System.nanoTime() - startNanos;
+            mMetrics.record(matchCode - PETS, PetProviderMetrics.DELETE, nanos, rows);
+            mQueryWatchdog.record(nanos);
+        }
+    }
+
+    /**
+     * Delete the pets by setting their tombstone, one write per pet. Deleting all the pets only
+     * moves the delete watermark, see {@link #deleteAllPets}. They are hidden at once and removed
+     * by {@link PetPurger} once the undo window is over.
+     */
+    private int deleteUri(int matchCode, Uri uri, String selection, String[] selectionArgs) {
+        SQLiteDatabase db = mPetDbHelper.getWritableDatabase();
+
+        final long tombstone = nextTombstone();
         int affectedRow = 0;
 
         switch (matchCode) {
             case PETS:
-                affectedRow = db.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                if (TextUtils.isEmpty(selection)) {
+                    affectedRow = deleteAllPets(db, tombstone);
+                    break;
+                }
+                selection = DatabaseUtils.concatenateWhere(PetDbHelper.SELECTION_LIVE, selection);
+                mQueryWatchdog.checkWrite(db, selection, selectionArgs);
+
+                ContentValues values = new ContentValues();
+                values.put(PetDbHelper.COLUMN_DELETED, tombstone);
+                affectedRow = db.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
                 break;
             case PET_ID:
-                selection = PetEntry._ID + "=?";
-
-                long id = ContentUris.parseId(uri);
-                selectionArgs = new String[] {String.valueOf(id)};
-
-                affectedRow =  db.delete(PetEntry.TABLE_NAME, selection, selectionArgs);
+                affectedRow = getStatements().deleteById(ContentUris.parseId(uri), tombstone);
                 break;
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
 
         if (affectedRow > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
+            mPurger.schedule();
         }
 
         return affectedRow;
 
     }
 
+    /**
+     * Delete every pet in a few writes whatever the number of pets: the highest _ID becomes the
+     * delete watermark, which hides every pet up to it, and the statistics are emptied. The
+     * changes before it are marked as purged, so the consumers of the change feed read the pets
+     * again rather than miss the deletes.
+     *
+     * @return the number of deleted pets, read from the statistics
+     */
+    private int deleteAllPets(SQLiteDatabase db, long tombstone) {
+        db.beginTransaction();
+        try {
+            final int rows = (int) DatabaseUtils.longForQuery(db, "SELECT IFNULL(SUM("
+                    + PetStatsEntry.COLUMN_PET_COUNT + "), 0) FROM "
+                    + PetStatsEntry.GENDER_TABLE_NAME, null);
+            if (rows == 0) {
+                return 0;
+            }
+
+            db.execSQL("UPDATE " + PetDbHelper.DELETE_STATE_TABLE_NAME + " SET "
+                    + PetDbHelper.COLUMN_PREVIOUS_WATERMARK_ID + " = "
+                    + PetDbHelper.COLUMN_WATERMARK_ID + ", "
+                    + PetDbHelper.COLUMN_PREVIOUS_WATERMARK_TIME + " = "
+                    + PetDbHelper.COLUMN_WATERMARK_TIME + ", "
+                    + PetDbHelper.COLUMN_WATERMARK_ID + " = (SELECT MAX(" + PetEntry._ID
+                    + ") FROM " + PetEntry.TABLE_NAME + "), "
+                    + PetDbHelper.COLUMN_WATERMARK_TIME + " = ?",
+                    new Object[] { tombstone });
+            db.delete(PetStatsEntry.GENDER_TABLE_NAME, null, null);
+            db.delete(PetStatsEntry.BREED_TABLE_NAME, null, null);
+            invalidateChanges(db);
+
+            db.setTransactionSuccessful();
+            return rows;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Take the next change sequence and mark every change before it as purged, for the writes
+     * that change pets without giving each one a change sequence
+     */
+    private static void invalidateChanges(SQLiteDatabase db) {
+        db.execSQL("UPDATE " + PetDbHelper.CHANGE_STATE_TABLE_NAME + " SET "
+                + PetDbHelper.COLUMN_LAST_CHANGE_SEQ + " = "
+                + PetDbHelper.COLUMN_LAST_CHANGE_SEQ + " + 1, "
+                + PetDbHelper.COLUMN_PURGED_CHANGE_SEQ + " = "
+                + PetDbHelper.COLUMN_LAST_CHANGE_SEQ + " + 1");
+    }
+
+    /** Return a tombstone for a delete: the current time, after the tombstone of the last delete */
+    private long nextTombstone() {
+        final long now = System.currentTimeMillis();
+        while (true) {
+            final long last = mLastTombstone.get();
+            final long tombstone = Math.max(now, last + 1);
+            if (mLastTombstone.compareAndSet(last, tombstone)) {
+                return tombstone;
+            }
+        }
+    }
+
+    /**
+     * Restore the pets of the last delete if it is still in the undo window. The last delete
+     * has the highest tombstone, or moved the delete watermark at a later time.
+     *
+     * @return the number of restored pets
+     */
+    private int undoDelete() {
+        SQLiteDatabase db = mPetDbHelper.getWritableDatabase();
+
+        int restoredRows;
+        db.beginTransaction();
+        try {
+            final long tombstone = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX("
+                    + PetDbHelper.COLUMN_DELETED + "), 0) FROM " + PetEntry.TABLE_NAME, null);
+            // The watermark can be undone until an undo puts the previous one back
+            final long watermarkTime = DatabaseUtils.longForQuery(db, "SELECT CASE WHEN "
+                    + PetDbHelper.COLUMN_WATERMARK_ID + " > "
+                    + PetDbHelper.COLUMN_PREVIOUS_WATERMARK_ID + " THEN "
+                    + PetDbHelper.COLUMN_WATERMARK_TIME + " ELSE 0 END FROM "
+                    + PetDbHelper.DELETE_STATE_TABLE_NAME, null);
+            final long lastDelete = Math.max(tombstone, watermarkTime);
+            if (lastDelete == 0 || lastDelete
+                    < System.currentTimeMillis() - PetContract.UNDO_WINDOW_MILLIS) {
+                return 0;
+            }
+
+            if (watermarkTime > tombstone) {
+                restoredRows = undoDeleteAllPets(db);
+            } else {
+                ContentValues values = new ContentValues();
+                values.put(PetDbHelper.COLUMN_DELETED, 0);
+                restoredRows = db.update(PetEntry.TABLE_NAME, values,
+                        PetDbHelper.COLUMN_DELETED + " = ?",
+                        new String[] { String.valueOf(tombstone) });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (restoredRows > 0) {
+            notifyChange(PetEntry.CONTENT_URI);
+        }
+        return restoredRows;
+    }
+
+    /**
+     * Put the delete watermark back where it was before the last delete of all the pets, so it
+     * has nothing left to undo, and count the pets it shows again in the statistics. Unlike the
+     * delete, this reads every pet, an undo is rare.
+     *
+     * @return the number of restored pets
+     */
+    private int undoDeleteAllPets(SQLiteDatabase db) {
+        final int restoredRows = (int) DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM "
+                + PetEntry.TABLE_NAME + " WHERE " + PetDbHelper.COLUMN_DELETED + " = 0 AND "
+                + PetEntry._ID + " > (SELECT " + PetDbHelper.COLUMN_PREVIOUS_WATERMARK_ID
+                + " FROM " + PetDbHelper.DELETE_STATE_TABLE_NAME + ") AND " + PetEntry._ID
+                + " <= " + PetDbHelper.SELECT_WATERMARK_ID, null);
+
+        db.execSQL("UPDATE " + PetDbHelper.DELETE_STATE_TABLE_NAME + " SET "
+                + PetDbHelper.COLUMN_WATERMARK_ID + " = "
+                + PetDbHelper.COLUMN_PREVIOUS_WATERMARK_ID + ", "
+                + PetDbHelper.COLUMN_WATERMARK_TIME + " = "
+                + PetDbHelper.COLUMN_PREVIOUS_WATERMARK_TIME);
+        db.delete(PetStatsEntry.GENDER_TABLE_NAME, null, null);
+        db.delete(PetStatsEntry.BREED_TABLE_NAME, null, null);
+        db.execSQL("INSERT INTO " + PetStatsEntry.GENDER_TABLE_NAME + " "
+                + PetMigrations.SELECT_LIVE_GENDER_STATS);
+        db.execSQL("INSERT INTO " + PetStatsEntry.BREED_TABLE_NAME + " "
+                + PetMigrations.SELECT_LIVE_BREED_STATS);
+        invalidateChanges(db);
+        return restoredRows;
+    }
+
     @Override
-    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    public int update(final Uri uri, final ContentValues values, final String selection,
+                      final String[] selectionArgs) {
         final int matchCode = sUriMatcher.match(uri);
+        final long startNanos = System.nanoTime();
+        int rows = 0;
+        try {
+            rows = runWrite(new PetGroupCommitter.Operation<Integer>() {
+                @Override
+                public Integer run() {
+                    return updateUri(matchCode, uri, values, selection, selectionArgs);
+                }
+            });
+            return rows;
+        } finally {
+            final long nanos = System.nanoTime() - startNanos;
+            mMetrics.record(matchCode - PETS, PetProviderMetrics.UPDATE, nanos, rows);
+            mQueryWatchdog.record(nanos);
+        }
+    }
+
+    private int updateUri(int matchCode, Uri uri, ContentValues values, String selection,
+                          String[] selectionArgs) {
         switch (matchCode) {
             case PETS:
-                return updatePet(uri, values, selection, selectionArgs);
+                return updatePet(uri, values, selection, selectionArgs, -1);
             case PET_ID:
-                selection = PetEntry._ID + "=?";
-
-                long id = ContentUris.parseId(uri);
-                selectionArgs = new String[] { String.valueOf(id) };
-
-                return updatePet(uri, values, selection, selectionArgs);
+                return updatePet(uri, values, null, null, ContentUris.parseId(uri));
         }
         return 0;
     }
 
-    private int updatePet(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    /**
+     * Update the pets matching the selection, or the single pet with the given ID if it is not
+     * -1. A pet whose columns are all updated goes through the compiled update statement.
+     */
+    private int updatePet(Uri uri, ContentValues values, String selection, String[] selectionArgs,
+                          long id) {
+        checkWritableColumns(values);
+
         // name
         if (values.containsKey(PetEntry.COLUMN_PET_NAME)) {
             String name = values.getAsString(PetEntry.COLUMN_PET_NAME);
@@ -259,11 +1680,23 @@ public class PetProvider extends ContentProvider {
             return 0;
         }
 
-        SQLiteDatabase db = mPetDbHelper.getWritableDatabase();
-        int affectedRow = db.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
+        int affectedRow;
+        if (id != -1 && PetStatements.hasAllColumns(values)) {
+            affectedRow = getStatements().updateById(id, values);
+        } else {
+            if (id != -1) {
+                selection = PetEntry._ID + "=?";
+                selectionArgs = new String[] { String.valueOf(id) };
+            }
+            selection = DatabaseUtils.concatenateWhere(PetDbHelper.SELECTION_LIVE, selection);
+
+            SQLiteDatabase db = mPetDbHelper.getWritableDatabase();
+            mQueryWatchdog.checkWrite(db, selection, selectionArgs);
+            affectedRow = db.update(PetEntry.TABLE_NAME, values, selection, selectionArgs);
+        }
 
         if (affectedRow > 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         return affectedRow;
@@ -0,0 +1,133 @@
+package com.example.android.pets.data;
+
+import android.os.Bundle;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link PetProviderMetrics} records the latency and the row count of the calls of
+ * {@link PetProvider}, per URI and per operation.
+ *
+ * Latencies go into histograms with power of two buckets of microseconds. All the counters live
+ * in a single {@link AtomicLongArray}, so recording a call takes a few atomic additions and no
+ * lock or allocation, and is cheap enough for release builds. A snapshot reads and resets every
+ * counter; calls recorded while it is taken go either into it or into the next one.
+ */
+final class PetProviderMetrics {
+
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int BULK_INSERT = 2;
+    static final int UPDATE = 3;
+    static final int DELETE = 4;
+
+    private static final String[] OPERATION_NAMES = {
+            "query", "insert", "bulk_insert", "update", "delete"
+    };
+
+    /** Bucket i counts the calls that took less than 2^i microseconds, the last one the rest */
+    private static final int BUCKET_COUNT = 24;
+
+    /** Counters of a URI and operation: number of calls, total time, rows, then the buckets */
+    private static final int CALLS = 0;
+    private static final int TOTAL_NANOS = 1;
+    private static final int ROWS = 2;
+    private static final int FIRST_BUCKET = 3;
+    private static final int SLOT_SIZE = FIRST_BUCKET + BUCKET_COUNT;
+
+    private final String[] mUriNames;
+    private final AtomicLongArray mCounters;
+
+    /** @param uriNames Name of each recorded URI, the URIs are recorded by index */
+    PetProviderMetrics(String[] uriNames) {
+        mUriNames = uriNames.clone();
+        mCounters = new AtomicLongArray(mUriNames.length * OPERATION_NAMES.length * SLOT_SIZE);
+    }
+
+    /**
+     * Record a call.
+     *
+     * @param uriIndex  Index of the URI in the names given to the constructor, a call on any
+     *                  other index is ignored
+     * @param operation One of {@link #QUERY}, {@link #INSERT}, {@link #BULK_INSERT},
+     *                  {@link #UPDATE} or {@link #DELETE}
+     * @param nanos     Duration of the call
+     * @param rows      Number of rows returned or written
+     */
+    void record(int uriIndex, int operation, long nanos, int rows) {
+        if (uriIndex < 0 || uriIndex >= mUriNames.length) {
+            return;
+        }
+
+        final int slot = (uriIndex * OPERATION_NAMES.length + operation) * SLOT_SIZE;
+        mCounters.incrementAndGet(slot + CALLS);
+        mCounters.addAndGet(slot + TOTAL_NANOS, nanos);
+        mCounters.addAndGet(slot + ROWS, rows);
+        mCounters.incrementAndGet(slot + FIRST_BUCKET + getBucket(nanos / 1000));
+    }
+
+    /** Index of the bucket of a duration: the number of bits of the microseconds */
+    private static int getBucket(long micros) {
+        final int bits = 64 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bits, BUCKET_COUNT - 1);
+    }
+
+    /**
+     * Return the counters recorded since the last snapshot and reset them. The snapshot has a
+     * bundle per URI and operation that was called, under the key "uri operation", e.g.
+     * "pets/# query", with the keys of {@link PetContract#EXTRA_METRICS_CALLS} and the
+     * following ones.
+     */
+    Bundle snapshotAndReset() {
+        Bundle snapshot = new Bundle();
+        final long[] buckets = new long[BUCKET_COUNT];
+
+        for (int uriIndex = 0; uriIndex < mUriNames.length; uriIndex++) {
+            for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+                final int slot = (uriIndex * OPERATION_NAMES.length + operation) * SLOT_SIZE;
+
+                final long calls = mCounters.getAndSet(slot + CALLS, 0);
+                final long totalNanos = mCounters.getAndSet(slot + TOTAL_NANOS, 0);
+                final long rows = mCounters.getAndSet(slot + ROWS, 0);
+                long bucketCalls = 0;
+                for (int i = 0; i < BUCKET_COUNT; i++) {
+                    buckets[i] = mCounters.getAndSet(slot + FIRST_BUCKET + i, 0);
+                    bucketCalls += buckets[i];
+                }
+
+                if (calls == 0) {
+                    continue;
+                }
+
+                Bundle metrics = new Bundle();
+                metrics.putLong(PetContract.EXTRA_METRICS_CALLS, calls);
+                metrics.putLong(PetContract.EXTRA_METRICS_ROWS, rows);
+                metrics.putLong(PetContract.EXTRA_METRICS_MEAN_MICROS, totalNanos / calls / 1000);
+                metrics.putLong(PetContract.EXTRA_METRICS_P50_MICROS,
+                        getPercentile(buckets, bucketCalls, 50));
+                metrics.putLong(PetContract.EXTRA_METRICS_P90_MICROS,
+                        getPercentile(buckets, bucketCalls, 90));
+                metrics.putLong(PetContract.EXTRA_METRICS_P99_MICROS,
+                        getPercentile(buckets, bucketCalls, 99));
+                metrics.putLongArray(PetContract.EXTRA_METRICS_HISTOGRAM, buckets.clone());
+                snapshot.putBundle(mUriNames[uriIndex] + " " + OPERATION_NAMES[operation],
+                        metrics);
+            }
+        }
+        return snapshot;
+    }
+
+    /** Upper bound in microseconds of the bucket that holds the given percentile */
+    private static long getPercentile(long[] buckets, long calls, int percentile) {
+        final long rank = (long) Math.ceil(percentile / 100.0 * calls);
+
+        long count = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            count += buckets[i];
+            if (count >= rank && count > 0) {
+                return 1L << i;
+            }
+        }
+        return 1L << (buckets.length - 1);
+    }
+}
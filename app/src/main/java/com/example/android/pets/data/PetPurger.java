@@ -0,0 +1,176 @@
+package com.example.android.pets.data;
+
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+/**
+ * {@link PetPurger} removes the deleted pets of {@link PetProvider} on a background thread, once
+ * they can no longer be restored.
+ *
+ * A delete only sets the tombstone of the pets, see {@link PetDbHelper#COLUMN_DELETED}, so it is
+ * a short write and can be undone for {@link #UNDO_WINDOW_MILLIS}. A purge runs one window
+ * after the last delete and removes the expired tombstones in chunks of {@link #CHUNK_SIZE}
+ * pets, one transaction per chunk, so other writes go between the chunks of a long purge.
+ * Deleting all the pets moves the delete watermark, see
+ * {@link PetDbHelper#DELETE_STATE_TABLE_NAME}, and the pets up to it are removed in the same
+ * chunks once the window of the watermark is over. The freed pages are then returned to the file system with incremental vacuum, in the databases
+ * created with it.
+ */
+final class PetPurger {
+
+    private static final String LOG_TAG = PetPurger.class.getSimpleName();
+
+    /** Time during which a deleted pet can be restored */
+    private static final long UNDO_WINDOW_MILLIS = PetContract.UNDO_WINDOW_MILLIS;
+
+    /** Number of pets removed by one transaction */
+    private static final int CHUNK_SIZE = 500;
+
+    /** Number of free pages returned by one step of the incremental vacuum */
+    private static final int VACUUM_PAGES = 256;
+
+    private static final String PURGE_SELECTION = PetEntry._ID + " IN (SELECT " + PetEntry._ID
+            + " FROM " + PetEntry.TABLE_NAME + " WHERE " + PetDbHelper.COLUMN_DELETED + " > 0"
+            + " AND " + PetDbHelper.COLUMN_DELETED + " <= ? LIMIT " + CHUNK_SIZE + ")";
+
+    /** Pets up to the delete watermark, if it was set at or before the bound time */
+    private static final String HIDDEN_SELECTION = PetEntry._ID + " <= (SELECT "
+            + PetDbHelper.COLUMN_WATERMARK_ID + " FROM " + PetDbHelper.DELETE_STATE_TABLE_NAME
+            + " WHERE " + PetDbHelper.COLUMN_WATERMARK_TIME + " <= ?)";
+
+    /** Time of the delete watermark while pets up to it are left, or 0 */
+    private static final String SELECT_PENDING_WATERMARK_TIME = "SELECT CASE WHEN EXISTS (SELECT 1"
+            + " FROM " + PetEntry.TABLE_NAME + " WHERE " + PetEntry._ID + " <= "
+            + PetDbHelper.COLUMN_WATERMARK_ID + ") THEN " + PetDbHelper.COLUMN_WATERMARK_TIME
+            + " ELSE 0 END FROM " + PetDbHelper.DELETE_STATE_TABLE_NAME;
+
+    private final PetDbHelper mDbHelper;
+    private final Handler mHandler;
+
+    private final Runnable mPurge = new Runnable() {
+        @Override
+        public void run() {
+            purgeChunk();
+        }
+    };
+
+    PetPurger(PetDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+
+        HandlerThread thread = new HandlerThread("PetPurger", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /** Purge the pets deleted until now once they can no longer be restored */
+    void schedule() {
+        schedule(UNDO_WINDOW_MILLIS);
+    }
+
+    private void schedule(long delayMillis) {
+        mHandler.removeCallbacks(mPurge);
+        mHandler.postDelayed(mPurge, delayMillis);
+    }
+
+    /** Stop the thread of the purges, the pending purge is dropped */
+    void quit() {
+        mHandler.getLooper().quit();
+    }
+
+    /**
+     * Remove every deleted pet now on the calling thread, including the ones that can still be
+     * restored, and vacuum the database.
+     *
+     * @return the number of removed pets
+     */
+    int purgeAll() {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+
+        int purgedRows = 0;
+        int chunkRows;
+        do {
+            chunkRows = purge(db, Long.MAX_VALUE);
+            purgedRows += chunkRows;
+        } while (chunkRows == CHUNK_SIZE);
+
+        vacuum(db);
+        return purgedRows;
+    }
+
+    /**
+     * Remove a chunk of expired tombstones. The next chunk is posted behind the other work of
+     * the thread, after the last one the database is vacuumed and the next purge is scheduled
+     * for the tombstones that are not expired yet.
+     */
+    private void purgeChunk() {
+        try {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            final long now = System.currentTimeMillis();
+
+            if (purge(db, now - UNDO_WINDOW_MILLIS) == CHUNK_SIZE) {
+                mHandler.post(mPurge);
+                return;
+            }
+            vacuum(db);
+
+            long oldest = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MIN("
+                    + PetDbHelper.COLUMN_DELETED + "), 0) FROM " + PetEntry.TABLE_NAME
+                    + " WHERE " + PetDbHelper.COLUMN_DELETED + " > 0", null);
+            final long watermarkTime = DatabaseUtils.longForQuery(db,
+                    SELECT_PENDING_WATERMARK_TIME, null);
+            if (watermarkTime > 0 && (oldest == 0 || watermarkTime < oldest)) {
+                oldest = watermarkTime;
+            }
+            if (oldest > 0) {
+                schedule(Math.max(0, oldest + UNDO_WINDOW_MILLIS - now));
+            }
+        } catch (SQLException e) {
+            // The tombstones stay hidden, the purge runs again after the next delete
+            Log.e(LOG_TAG, "Failed to purge the deleted pets", e);
+        }
+    }
+
+    /**
+     * Remove at most {@link #CHUNK_SIZE} pets deleted at or before the given time, the pets with
+     * a tombstone first, then the pets up to the delete watermark
+     */
+    private static int purge(SQLiteDatabase db, long deletedBefore) {
+        final String[] args = { String.valueOf(deletedBefore) };
+
+        db.beginTransaction();
+        try {
+            int rows = db.delete(PetEntry.TABLE_NAME, PURGE_SELECTION, args);
+            if (rows < CHUNK_SIZE) {
+                rows += db.delete(PetEntry.TABLE_NAME, PetEntry._ID + " IN (SELECT "
+                        + PetEntry._ID + " FROM " + PetEntry.TABLE_NAME + " WHERE "
+                        + HIDDEN_SELECTION + " LIMIT " + (CHUNK_SIZE - rows) + ")", args);
+            }
+            db.setTransactionSuccessful();
+            return rows;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Return the free pages to the file system a few at a time. A database without incremental
+     * auto vacuum, see {@link PetDbHelper#onConfigure}, keeps them for the next pets instead.
+     */
+    private static void vacuum(SQLiteDatabase db) {
+        if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                != PetDbHelper.AUTO_VACUUM_INCREMENTAL) {
+            return;
+        }
+
+        while (DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null) > 0) {
+            db.execSQL("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")");
+        }
+    }
+}
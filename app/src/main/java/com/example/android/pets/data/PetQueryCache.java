@@ -0,0 +1,294 @@
+package com.example.android.pets.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.LruCache;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link PetQueryCache} keeps the results of recent queries of the pets list URI of
+ * {@link PetProvider}, so the screens that run the same query share one read of the database.
+ *
+ * A result is copied out of its SQLite cursor once and served as a read-only cursor over the
+ * shared rows, without a CursorWindow. Every result is tagged with the write generation of the
+ * provider when its query started, and is only served while no write has committed since. The
+ * cache is bounded by the estimated size in bytes of the results, a result larger than a quarter
+ * of the cache is not kept.
+ */
+final class PetQueryCache {
+
+    /** Estimated size of an object header and of a reference */
+    private static final int OBJECT_SIZE = 16;
+    private static final int REFERENCE_SIZE = 4;
+
+    private final AtomicLong mWriteGeneration;
+    private final int mMaxResultBytes;
+    private final LruCache<Key, Result> mResults;
+
+    /**
+     * Results served and not served by {@link #get}. The counts of the LruCache would count a
+     * result dropped by a write as a hit.
+     */
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+
+    /**
+     * @param writeGeneration Incremented by the provider after every committed write
+     * @param maxBytes        Maximum estimated size of the cached results
+     */
+    PetQueryCache(AtomicLong writeGeneration, int maxBytes) {
+        mWriteGeneration = writeGeneration;
+        mMaxResultBytes = maxBytes / 4;
+        mResults = new LruCache<Key, Result>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, Result result) {
+                return result.mBytes;
+            }
+        };
+    }
+
+    /** Arguments of a query, the results of equal keys are the same between two writes */
+    static final class Key {
+        private final String mUri;
+        private final String[] mProjection;
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+        private final String mSortOrder;
+        private final int mHashCode;
+
+        Key(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+            mUri = uri.toString();
+            mProjection = (projection != null) ? projection.clone() : null;
+            mSelection = selection;
+            mSelectionArgs = (selectionArgs != null) ? selectionArgs.clone() : null;
+            mSortOrder = sortOrder;
+            mHashCode = Arrays.hashCode(new Object[] { mUri, Arrays.hashCode(mProjection),
+                    mSelection, Arrays.hashCode(mSelectionArgs), mSortOrder });
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key other = (Key) o;
+            return mHashCode == other.mHashCode && mUri.equals(other.mUri)
+                    && Arrays.equals(mProjection, other.mProjection)
+                    && equal(mSelection, other.mSelection)
+                    && Arrays.equals(mSelectionArgs, other.mSelectionArgs)
+                    && equal(mSortOrder, other.mSortOrder);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        private static boolean equal(String a, String b) {
+            return (a == null) ? b == null : a.equals(b);
+        }
+    }
+
+    /** Rows of a query result, never modified once cached */
+    private static final class Result {
+        final long mGeneration;
+        final String[] mColumnNames;
+        final Object[][] mRows;
+        final int mBytes;
+
+        Result(long generation, String[] columnNames, Object[][] rows, int bytes) {
+            mGeneration = generation;
+            mColumnNames = columnNames;
+            mRows = rows;
+            mBytes = bytes;
+        }
+    }
+
+    /** Return a cursor over the cached result of the key, or null if there is none */
+    Cursor get(Key key) {
+        final Result result = mResults.get(key);
+        if (result == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+
+        if (result.mGeneration != mWriteGeneration.get()) {
+            mResults.remove(key);
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        return new ResultCursor(result);
+    }
+
+    /**
+     * Cache the result of a query that started at the given write generation, unless a write
+     * committed since or it is too large.
+     *
+     * @return a cursor over the result, the given cursor is closed if it was read, or the given
+     * cursor itself if its result is not cached
+     */
+    Cursor put(Key key, long generation, Cursor cursor) {
+        final int rowCount = cursor.getCount();
+        final String[] columnNames = cursor.getColumnNames();
+        final int columnCount = columnNames.length;
+
+        // Rows are counted before they are read, a large result is not copied at all
+        int bytes = OBJECT_SIZE + rowCount * (OBJECT_SIZE + REFERENCE_SIZE * (columnCount + 1));
+        if (bytes > mMaxResultBytes) {
+            return cursor;
+        }
+
+        final Object[][] rows = new Object[rowCount][];
+        try {
+            for (int i = 0; i < rowCount && cursor.moveToPosition(i); i++) {
+                final Object[] row = new Object[columnCount];
+                for (int column = 0; column < columnCount; column++) {
+                    row[column] = PetProvider.getCursorValue(cursor, column);
+                    bytes += getSize(row[column]);
+                }
+                rows[i] = row;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Result result = new Result(generation, columnNames, rows, bytes);
+        if (bytes <= mMaxResultBytes && generation == mWriteGeneration.get()) {
+            mResults.put(key, result);
+        }
+        return new ResultCursor(result);
+    }
+
+    /** Estimated size in bytes of a value of a row */
+    private static int getSize(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return OBJECT_SIZE * 2 + ((String) value).length() * 2;
+        } else if (value instanceof byte[]) {
+            return OBJECT_SIZE + ((byte[]) value).length;
+        }
+        return OBJECT_SIZE + 8;
+    }
+
+    int hitCount() {
+        return mHits.get();
+    }
+
+    int missCount() {
+        return mMisses.get();
+    }
+
+    /** Estimated size in bytes of the cached results */
+    int size() {
+        return mResults.size();
+    }
+
+    /**
+     * Read-only cursor over a cached result. The rows are shared by every cursor of the result,
+     * creating one only allocates the cursor.
+     */
+    private static final class ResultCursor extends AbstractCursor {
+
+        private final Result mResult;
+
+        ResultCursor(Result result) {
+            mResult = result;
+        }
+
+        @Override
+        public int getCount() {
+            return mResult.mRows.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mResult.mColumnNames;
+        }
+
+        private Object get(int column) {
+            if (column < 0 || column >= mResult.mColumnNames.length) {
+                throw new IllegalArgumentException("Invalid column " + column);
+            }
+            checkPosition();
+            return mResult.mRows[mPos][column];
+        }
+
+        @Override
+        public int getType(int column) {
+            final Object value = get(column);
+            if (value == null) {
+                return FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return FIELD_TYPE_BLOB;
+            }
+            return FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public String getString(int column) {
+            final Object value = get(column);
+            return (value != null) ? value.toString() : null;
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            final Object value = get(column);
+            if (value == null) {
+                return 0;
+            } else if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return Long.parseLong(value.toString());
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            final Object value = get(column);
+            if (value == null) {
+                return 0;
+            } else if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return Double.parseDouble(value.toString());
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            final Object value = get(column);
+            // The rows are shared, a caller gets its own copy of a blob
+            return (value instanceof byte[]) ? ((byte[]) value).clone() : null;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package com.example.android.pets.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+import com.example.android.pets.data.PetContract.PetStatsEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link PetQueryWatchdog} checks the query plans of the statements of {@link PetProvider} whose
+ * selection comes from the caller, while it is enabled in a debug build.
+ *
+ * The first statement of each shape, its SQL with the arguments left as "?", is run through
+ * EXPLAIN QUERY PLAN and whether it scans the whole pets table or sorts into a temporary B-tree
+ * is kept for the following ones. Such a shape is slow while the table has more than the row
+ * threshold, which is checked against the current number of pets at every statement, so a shape
+ * that was fast on a small table is caught once the table grows. A slow shape is logged, or
+ * rejected in {@link PetContract#WATCHDOG_MODE_THROW}. The time of every statement is added to
+ * its shape, for the report of the slowest shapes.
+ */
+final class PetQueryWatchdog {
+
+    private static final String LOG_TAG = PetQueryWatchdog.class.getSimpleName();
+
+    /** Number of shapes kept, the least recently used ones are dropped beyond it */
+    private static final int MAX_SHAPES = 256;
+
+    /** Number of shapes in a report */
+    private static final int REPORT_SIZE = 20;
+
+    /** Column of the readable step in the rows of EXPLAIN QUERY PLAN */
+    private static final int PLAN_DETAIL_COLUMN = 3;
+
+    /**
+     * Step of a full scan, "SCAN TABLE pets" before SQLite 3.24 and "SCAN pets" after, also when
+     * it reads every entry of an index rather than the table
+     */
+    private static final Pattern FULL_SCAN = Pattern.compile(
+            "^SCAN (TABLE )?" + PetEntry.TABLE_NAME
+                    + "( AS \\S+)?( USING (COVERING )?INDEX .*)?$");
+
+    /** Group of {@link #FULL_SCAN} matched by a scan of an index */
+    private static final int INDEX_SCAN_GROUP = 3;
+
+    private static final String TEMP_B_TREE = "USE TEMP B-TREE";
+
+    /** Shape, plan and timing of a statement */
+    private static final class Shape {
+        final String mSql;
+        final String mPlan;
+        final boolean mScansOrSorts;
+        boolean mSlowPlan;
+        long mCalls;
+        long mTotalNanos;
+        long mMaxNanos;
+
+        Shape(String sql, String plan, boolean scansOrSorts) {
+            mSql = sql;
+            mPlan = plan;
+            mScansOrSorts = scansOrSorts;
+        }
+    }
+
+    private volatile int mMode = PetContract.WATCHDOG_MODE_OFF;
+    private volatile long mRowThreshold;
+
+    /** Shapes by SQL, in access order. Guarded by itself. */
+    private final Map<String, Shape> mShapes =
+            new LinkedHashMap<String, Shape>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Shape> eldest) {
+                    return size() > MAX_SHAPES;
+                }
+            };
+
+    /**
+     * Shape of the statement the current thread is running, timed by {@link #record}. A shape
+     * checked on one thread is never recorded on another, whichever thread waits for the result.
+     */
+    private final ThreadLocal<Shape> mCurrentShape = new ThreadLocal<>();
+
+    /**
+     * Set the mode of the watchdog and forget the checked shapes.
+     *
+     * @param mode         One of the WATCHDOG_MODE constants of {@link PetContract}
+     * @param rowThreshold Number of pets above which a full scan or a temporary B-tree is slow
+     */
+    void setMode(int mode, long rowThreshold) {
+        if (mode != PetContract.WATCHDOG_MODE_OFF && mode != PetContract.WATCHDOG_MODE_LOG
+                && mode != PetContract.WATCHDOG_MODE_THROW) {
+            throw new IllegalArgumentException("Unknown watchdog mode " + mode);
+        }
+        if (rowThreshold < 0) {
+            throw new IllegalArgumentException("Row threshold must not be negative");
+        }
+
+        synchronized (mShapes) {
+            mShapes.clear();
+        }
+        mRowThreshold = rowThreshold;
+        mMode = mode;
+    }
+
+    /** Check a query of the pets table, before it runs */
+    void checkQuery(SQLiteDatabase db, String[] projection, String selection,
+                    String[] selectionArgs, String orderBy, String limit) {
+        if (mMode == PetContract.WATCHDOG_MODE_OFF) {
+            return;
+        }
+
+        check(db, SQLiteQueryBuilder.buildQueryString(false, PetEntry.TABLE_NAME, projection,
+                selection, null, null, orderBy, limit), selectionArgs, limit != null);
+    }
+
+    /**
+     * Check an update or a delete of the pets table, before it runs. The plan of the pets it
+     * writes is the plan of a query with the same selection.
+     */
+    void checkWrite(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        if (mMode == PetContract.WATCHDOG_MODE_OFF) {
+            return;
+        }
+
+        check(db, SQLiteQueryBuilder.buildQueryString(false, PetEntry.TABLE_NAME,
+                new String[] { PetEntry._ID }, selection, null, null, null, null), selectionArgs,
+                false);
+    }
+
+    private void check(SQLiteDatabase db, String sql, String[] selectionArgs, boolean limited) {
+        Shape shape;
+        synchronized (mShapes) {
+            shape = mShapes.get(sql);
+        }
+
+        if (shape == null) {
+            shape = explain(db, sql, selectionArgs, limited);
+            synchronized (mShapes) {
+                mShapes.put(sql, shape);
+            }
+        }
+
+        // The statistics hold the number of pets without reading the pets table
+        final boolean slowPlan = shape.mScansOrSorts && DatabaseUtils.longForQuery(db,
+                "SELECT IFNULL(SUM(" + PetStatsEntry.COLUMN_PET_COUNT + "), 0) FROM "
+                        + PetStatsEntry.GENDER_TABLE_NAME, null) > mRowThreshold;
+        final boolean becameSlow;
+        synchronized (mShapes) {
+            becameSlow = slowPlan && !shape.mSlowPlan;
+            shape.mSlowPlan = slowPlan;
+        }
+        if (becameSlow) {
+            Log.w(LOG_TAG, "Slow plan for " + sql + ": " + shape.mPlan);
+        }
+
+        mCurrentShape.set(shape);
+        if (slowPlan && mMode == PetContract.WATCHDOG_MODE_THROW) {
+            throw new IllegalArgumentException("Statement scans or sorts the pets table: " + sql
+                    + ", plan: " + shape.mPlan);
+        }
+    }
+
+    /**
+     * Read the plan of a statement and whether it scans or sorts the pets table. A scan of an
+     * index is not counted in a statement with a limit: it reads the pets in the order of the
+     * index and stops at the limit, like the first page of a sort order.
+     */
+    private Shape explain(SQLiteDatabase db, String sql, String[] selectionArgs,
+                          boolean limited) {
+        final StringBuilder plan = new StringBuilder();
+        boolean scansOrSorts = false;
+
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        try {
+            while (cursor.moveToNext()) {
+                final String detail = cursor.getString(PLAN_DETAIL_COLUMN);
+                if (plan.length() > 0) {
+                    plan.append("; ");
+                }
+                plan.append(detail);
+
+                final Matcher fullScan = FULL_SCAN.matcher(detail);
+                if ((fullScan.matches() && !(limited && fullScan.group(INDEX_SCAN_GROUP) != null))
+                        || detail.startsWith(TEMP_B_TREE)) {
+                    scansOrSorts = true;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return new Shape(sql, plan.toString(), scansOrSorts);
+    }
+
+    /**
+     * Add the time of the statement checked last on this thread to its shape. It must be called
+     * on the thread that ran the statement, e.g. the writer thread of a group commit.
+     */
+    void record(long nanos) {
+        final Shape shape = mCurrentShape.get();
+        if (shape == null) {
+            return;
+        }
+        mCurrentShape.remove();
+
+        synchronized (mShapes) {
+            shape.mCalls++;
+            shape.mTotalNanos += nanos;
+            shape.mMaxNanos = Math.max(shape.mMaxNanos, nanos);
+        }
+    }
+
+    /**
+     * Return the shapes with the highest mean time, slowest first, in
+     * {@link PetContract#EXTRA_QUERY_PLANS}.
+     */
+    Bundle getReport() {
+        // Copy the shapes with their timing, so they are sorted without holding the lock
+        final List<Shape> shapes = new ArrayList<>();
+        synchronized (mShapes) {
+            for (Shape shape : mShapes.values()) {
+                if (shape.mCalls > 0) {
+                    Shape copy = new Shape(shape.mSql, shape.mPlan, shape.mScansOrSorts);
+                    copy.mSlowPlan = shape.mSlowPlan;
+                    copy.mCalls = shape.mCalls;
+                    copy.mTotalNanos = shape.mTotalNanos;
+                    copy.mMaxNanos = shape.mMaxNanos;
+                    shapes.add(copy);
+                }
+            }
+        }
+
+        Collections.sort(shapes, new Comparator<Shape>() {
+            @Override
+            public int compare(Shape a, Shape b) {
+                final long meanA = a.mTotalNanos / a.mCalls;
+                final long meanB = b.mTotalNanos / b.mCalls;
+                return (meanA > meanB) ? -1 : ((meanA == meanB) ? 0 : 1);
+            }
+        });
+
+        final ArrayList<Bundle> plans = new ArrayList<>();
+        for (Shape shape : shapes.subList(0, Math.min(shapes.size(), REPORT_SIZE))) {
+            Bundle plan = new Bundle();
+            plan.putString(PetContract.EXTRA_PLAN_STATEMENT, shape.mSql);
+            plan.putString(PetContract.EXTRA_PLAN_DETAIL, shape.mPlan);
+            plan.putBoolean(PetContract.EXTRA_PLAN_SLOW, shape.mSlowPlan);
+            plan.putLong(PetContract.EXTRA_METRICS_CALLS, shape.mCalls);
+            plan.putLong(PetContract.EXTRA_METRICS_MEAN_MICROS,
+                    shape.mTotalNanos / shape.mCalls / 1000);
+            plan.putLong(PetContract.EXTRA_PLAN_MAX_MICROS, shape.mMaxNanos / 1000);
+            plans.add(plan);
+        }
+
+        Bundle report = new Bundle();
+        report.putParcelableArrayList(PetContract.EXTRA_QUERY_PLANS, plans);
+        return report;
+    }
+}
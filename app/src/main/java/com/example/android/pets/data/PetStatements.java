@@ -0,0 +1,295 @@
+package com.example.android.pets.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pets.data.PetContract.PetEntry;
+
+import java.util.ArrayDeque;
+
+/**
+ * {@link PetStatements} holds the compiled statements of the fixed-shape writes and reads of
+ * {@link PetProvider}: insert a pet with all its columns, from values or from UTF-8 bytes,
+ * update all the columns of a pet by _ID, delete a pet by _ID, read a pet by _ID and read the
+ * pets after an _ID. They only see the pets that are not deleted.
+ *
+ * {@link SQLiteDatabase#insert}, {@link SQLiteDatabase#update} and {@link SQLiteDatabase#delete}
+ * build their SQL again and look the statement up on every call, and the _ID goes through a
+ * new String[]. These statements are compiled once and their arguments are bound as primitives.
+ * The framework keeps the prepared statement of each connection, a statement runs on the
+ * connection of the calling thread, so it takes part in the transaction of that thread.
+ *
+ * A compiled statement holds its bindings, so a write takes a set of statements from a small
+ * pool for the time of the call, and compiles a new set when the pool is empty. No lock is held
+ * while a statement runs: a thread waiting for the connection would hold the lock, and the
+ * thread whose transaction has the connection could then wait for the lock forever. The pool
+ * keeps at most {@link #MAX_IDLE_WRITES} sets, the others are closed when they are returned,
+ * and the pooled ones are closed by {@link #close()}.
+ */
+final class PetStatements {
+
+    private static final String INSERT_SQL = "INSERT INTO " + PetEntry.TABLE_NAME + " ("
+            + PetEntry.COLUMN_PET_NAME + ", "
+            + PetEntry.COLUMN_PET_BREED + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT + ") VALUES (?, ?, ?, ?)";
+
+    /**
+     * Insert of a pet whose name and breed are bound as UTF-8 byte arrays, the casts store them
+     * as text like {@link #INSERT_SQL} does
+     */
+    private static final String INSERT_UTF8_SQL = "INSERT INTO " + PetEntry.TABLE_NAME + " ("
+            + PetEntry.COLUMN_PET_NAME + ", "
+            + PetEntry.COLUMN_PET_BREED + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT + ") VALUES (CAST(? AS TEXT), CAST(? AS TEXT), ?, ?)";
+
+    private static final String UPDATE_BY_ID_SQL = "UPDATE " + PetEntry.TABLE_NAME + " SET "
+            + PetEntry.COLUMN_PET_NAME + " = ?, "
+            + PetEntry.COLUMN_PET_BREED + " = ?, "
+            + PetEntry.COLUMN_PET_GENDER + " = ?, "
+            + PetEntry.COLUMN_PET_WEIGHT + " = ? WHERE " + PetEntry._ID + " = ? AND "
+            + PetDbHelper.SELECTION_LIVE;
+
+    /** A delete sets the tombstone of the pet, {@link PetPurger} removes it later */
+    private static final String DELETE_BY_ID_SQL = "UPDATE " + PetEntry.TABLE_NAME + " SET "
+            + PetDbHelper.COLUMN_DELETED + " = ? WHERE " + PetEntry._ID + " = ? AND "
+            + PetDbHelper.SELECTION_LIVE;
+
+    /** Columns read by {@link #queryById}, in this order */
+    static final String[] QUERY_COLUMNS = {
+            PetEntry._ID,
+            PetEntry.COLUMN_PET_NAME,
+            PetEntry.COLUMN_PET_BREED,
+            PetEntry.COLUMN_PET_GENDER,
+            PetEntry.COLUMN_PET_WEIGHT
+    };
+
+    private static final String QUERY_BY_ID_SQL = "SELECT " + PetEntry._ID + ", "
+            + PetEntry.COLUMN_PET_NAME + ", "
+            + PetEntry.COLUMN_PET_BREED + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT + " FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry._ID + " = ? AND " + PetDbHelper.SELECTION_LIVE;
+
+    private static final String QUERY_AFTER_ID_SQL = "SELECT " + PetEntry._ID + ", "
+            + PetEntry.COLUMN_PET_NAME + ", "
+            + PetEntry.COLUMN_PET_BREED + ", "
+            + PetEntry.COLUMN_PET_GENDER + ", "
+            + PetEntry.COLUMN_PET_WEIGHT + " FROM " + PetEntry.TABLE_NAME
+            + " WHERE " + PetEntry._ID + " > ? AND " + PetDbHelper.SELECTION_LIVE
+            + " ORDER BY " + PetEntry._ID + " LIMIT ?";
+
+    /** Number of sets of writes kept for the next calls, about the number of writer threads */
+    private static final int MAX_IDLE_WRITES = 4;
+
+    /** A set of compiled writes, used by one call at a time */
+    private static final class Writes {
+        final SQLiteStatement mInsert;
+        final SQLiteStatement mInsertUtf8;
+        final SQLiteStatement mUpdateById;
+        final SQLiteStatement mDeleteById;
+
+        Writes(SQLiteDatabase db) {
+            mInsert = db.compileStatement(INSERT_SQL);
+            mInsertUtf8 = db.compileStatement(INSERT_UTF8_SQL);
+            mUpdateById = db.compileStatement(UPDATE_BY_ID_SQL);
+            mDeleteById = db.compileStatement(DELETE_BY_ID_SQL);
+        }
+
+        void close() {
+            mInsert.close();
+            mInsertUtf8.close();
+            mUpdateById.close();
+            mDeleteById.close();
+        }
+    }
+
+    private final SQLiteDatabase mDb;
+
+    /** Writes that are not in use, guarded by itself */
+    private final ArrayDeque<Writes> mIdleWrites = new ArrayDeque<>(MAX_IDLE_WRITES);
+
+    /** True once {@link #close()} was called, guarded by {@link #mIdleWrites} */
+    private boolean mClosed;
+
+    PetStatements(SQLiteDatabase db) {
+        mDb = db;
+    }
+
+    /** Close the pooled statements, the writes still running close theirs when they end */
+    void close() {
+        synchronized (mIdleWrites) {
+            mClosed = true;
+            for (Writes writes : mIdleWrites) {
+                writes.close();
+            }
+            mIdleWrites.clear();
+        }
+    }
+
+    /** Take a set of writes from the pool, or compile one */
+    private Writes acquireWrites() {
+        synchronized (mIdleWrites) {
+            if (mClosed) {
+                throw new IllegalStateException("The statements are closed");
+            }
+            final Writes writes = mIdleWrites.poll();
+            if (writes != null) {
+                return writes;
+            }
+        }
+        return new Writes(mDb);
+    }
+
+    /** Return a set of writes to the pool, or close it if the pool is full or closed */
+    private void releaseWrites(Writes writes) {
+        synchronized (mIdleWrites) {
+            if (!mClosed && mIdleWrites.size() < MAX_IDLE_WRITES) {
+                mIdleWrites.push(writes);
+                return;
+            }
+        }
+        writes.close();
+    }
+
+    /** True if the values have exactly the columns of the insert and the update statements */
+    static boolean hasAllColumns(ContentValues values) {
+        return values.size() == 4
+                && values.containsKey(PetEntry.COLUMN_PET_NAME)
+                && values.containsKey(PetEntry.COLUMN_PET_BREED)
+                && values.containsKey(PetEntry.COLUMN_PET_GENDER)
+                && values.containsKey(PetEntry.COLUMN_PET_WEIGHT);
+    }
+
+    /**
+     * Insert a pet, the values must have all the columns.
+     *
+     * @return the _ID of the new pet, or -1 if it was not inserted
+     */
+    long insert(ContentValues values) {
+        final Writes writes = acquireWrites();
+        final SQLiteStatement insert = writes.mInsert;
+        try {
+            bindPet(insert, values);
+            return insert.executeInsert();
+        } finally {
+            insert.clearBindings();
+            releaseWrites(writes);
+        }
+    }
+
+    /**
+     * Insert a pet whose name and breed are in UTF-8, without creating a String. The gender
+     * and weight are boxed, SQLiteStatement keeps its bind arguments as objects.
+     *
+     * @return the _ID of the new pet, or -1 if it was not inserted
+     */
+    long insert(byte[] name, byte[] breed, int gender, int weight) {
+        final Writes writes = acquireWrites();
+        final SQLiteStatement insert = writes.mInsertUtf8;
+        try {
+            insert.bindBlob(1, name);
+            insert.bindBlob(2, breed);
+            insert.bindLong(3, gender);
+            insert.bindLong(4, weight);
+            return insert.executeInsert();
+        } finally {
+            insert.clearBindings();
+            releaseWrites(writes);
+        }
+    }
+
+    /**
+     * Replace all the columns of a pet, the values must have all the columns.
+     *
+     * @return the number of updated pets
+     */
+    int updateById(long id, ContentValues values) {
+        final Writes writes = acquireWrites();
+        final SQLiteStatement update = writes.mUpdateById;
+        try {
+            bindPet(update, values);
+            update.bindLong(5, id);
+            return update.executeUpdateDelete();
+        } finally {
+            update.clearBindings();
+            releaseWrites(writes);
+        }
+    }
+
+    /**
+     * Mark a pet as deleted with the given tombstone.
+     *
+     * @return the number of deleted pets
+     */
+    int deleteById(long id, long tombstone) {
+        final Writes writes = acquireWrites();
+        final SQLiteStatement delete = writes.mDeleteById;
+        try {
+            delete.bindLong(1, tombstone);
+            delete.bindLong(2, id);
+            return delete.executeUpdateDelete();
+        } finally {
+            delete.clearBindings();
+            releaseWrites(writes);
+        }
+    }
+
+    /** Read the {@link #QUERY_COLUMNS} of a pet, the _ID is bound as a long */
+    Cursor queryById(final long id) {
+        return mDb.rawQueryWithFactory(new SQLiteDatabase.CursorFactory() {
+            @Override
+            public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver,
+                                    String editTable, SQLiteQuery query) {
+                query.bindLong(1, id);
+                return new SQLiteCursor(driver, editTable, query);
+            }
+        }, QUERY_BY_ID_SQL, null, PetEntry.TABLE_NAME);
+    }
+
+    /**
+     * Read the {@link #QUERY_COLUMNS} of at most {@code limit} pets that come after the given
+     * _ID, in _ID order
+     */
+    Cursor queryAfterId(final long afterId, final int limit) {
+        return mDb.rawQueryWithFactory(new SQLiteDatabase.CursorFactory() {
+            @Override
+            public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver driver,
+                                    String editTable, SQLiteQuery query) {
+                query.bindLong(1, afterId);
+                query.bindLong(2, limit);
+                return new SQLiteCursor(driver, editTable, query);
+            }
+        }, QUERY_AFTER_ID_SQL, null, PetEntry.TABLE_NAME);
+    }
+
+    /** Bind the columns of a pet in the order of the insert and update statements */
+    private static void bindPet(SQLiteStatement statement, ContentValues values) {
+        bindString(statement, 1, values.getAsString(PetEntry.COLUMN_PET_NAME));
+        bindString(statement, 2, values.getAsString(PetEntry.COLUMN_PET_BREED));
+        bindLong(statement, 3, values.getAsInteger(PetEntry.COLUMN_PET_GENDER));
+        bindLong(statement, 4, values.getAsInteger(PetEntry.COLUMN_PET_WEIGHT));
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    private static void bindLong(SQLiteStatement statement, int index, Integer value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindLong(index, value);
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package com.example.android.pets.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link PetWriteExecutor} runs the inserts, updates and deletes of the activities on a single
+ * background thread, so a large write never blocks the UI thread.
+ *
+ * Writes run one at a time in the order they were submitted, so the writes of a pet are always
+ * applied in order. A write of a pet that has not started yet is merged with a newer write of
+ * the same pet: two updates run as one update with the newest values, and a delete replaces the
+ * pending update or delete. An update replaced by a delete completes at once with
+ * {@link #SUPERSEDED}, the delete reports its own result. The merged write moves to the end of the queue, after every write
+ * that was submitted before the newest one. An update or delete of a list URI may write the
+ * same pet, so the pending writes before it are never merged with the writes after it.
+ */
+public final class PetWriteExecutor {
+
+    private static final String LOG_TAG = PetWriteExecutor.class.getSimpleName();
+
+    /** Receives the result of a write on the UI thread */
+    public interface Callback {
+        /**
+         * @param uri  The URI of the new pet for an insert, null if the insert failed, or the
+         *             URI the update or delete was made on
+         * @param rows The number of rows that were written, 0 if the write failed, or
+         *             {@link #SUPERSEDED} if an update was replaced by a delete of the pet
+         */
+        void onWriteComplete(Uri uri, int rows);
+    }
+
+    /** Row count of an update that never ran because a delete of the same pet replaced it */
+    public static final int SUPERSEDED = -1;
+
+    private static final int INSERT = 0;
+    private static final int UPDATE = 1;
+    private static final int DELETE = 2;
+
+    private static PetWriteExecutor sInstance;
+
+    private final ContentResolver mResolver;
+    private final Handler mWorkerHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Object mLock = new Object();
+
+    /** Writes that have not started yet, guarded by {@link #mLock} */
+    private final ArrayDeque<Write> mPendingWrites = new ArrayDeque<>();
+
+    /** Pending writes of single pets by URI, they can still be merged. Guarded by {@link #mLock} */
+    private final Map<Uri, Write> mPendingPetWrites = new HashMap<>();
+
+    private final Runnable mRunNext = new Runnable() {
+        @Override
+        public void run() {
+            runNext();
+        }
+    };
+
+    public static synchronized PetWriteExecutor getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PetWriteExecutor(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PetWriteExecutor(Context context) {
+        mResolver = context.getContentResolver();
+
+        HandlerThread thread = new HandlerThread("PetWriteExecutor",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mWorkerHandler = new Handler(thread.getLooper());
+    }
+
+    /** Insert a pet into the table of the given URI */
+    public void insert(Uri uri, ContentValues values, Callback callback) {
+        submit(new Write(INSERT, uri, new ContentValues(values), callback));
+    }
+
+    /** Update the pet, or all the pets, of the given URI */
+    public void update(Uri uri, ContentValues values, Callback callback) {
+        submit(new Write(UPDATE, uri, new ContentValues(values), callback));
+    }
+
+    /** Delete the pet, or all the pets, of the given URI */
+    public void delete(Uri uri, Callback callback) {
+        submit(new Write(DELETE, uri, null, callback));
+    }
+
+    private void submit(Write write) {
+        synchronized (mLock) {
+            if (write.mType != INSERT && isPetUri(write.mUri)) {
+                Write pending = mPendingPetWrites.get(write.mUri);
+                if (pending != null && merge(pending, write)) {
+                    mPendingWrites.remove(pending);
+                }
+                mPendingPetWrites.put(write.mUri, write);
+            } else if (write.mType != INSERT) {
+                // Moving a pet write after this one could change which pets this one writes
+                mPendingPetWrites.clear();
+            }
+            mPendingWrites.add(write);
+        }
+        mWorkerHandler.post(mRunNext);
+    }
+
+    /**
+     * Merge a pending write into the newer write of the same pet, so only the newer one has to
+     * run. Returns false if they cannot be merged, when a pet is updated after a pending delete.
+     */
+    private boolean merge(Write pending, Write write) {
+        if (write.mType == UPDATE) {
+            if (pending.mType != UPDATE) {
+                return false;
+            }
+
+            // The newer values override the pending ones
+            ContentValues values = new ContentValues(pending.mValues);
+            values.putAll(write.mValues);
+            write.mValues = values;
+        } else if (pending.mType == UPDATE) {
+            // The rows of the delete say nothing about the update it replaces
+            postResult(pending.mCallbacks, pending.mUri, SUPERSEDED);
+            return true;
+        }
+
+        write.mCallbacks.addAll(0, pending.mCallbacks);
+        return true;
+    }
+
+    /** A pet URI ends with the _ID of the pet, the other URIs may write any number of pets */
+    private static boolean isPetUri(Uri uri) {
+        final String lastSegment = uri.getLastPathSegment();
+        return lastSegment != null && TextUtils.isDigitsOnly(lastSegment);
+    }
+
+    private void runNext() {
+        final Write write;
+        synchronized (mLock) {
+            write = mPendingWrites.poll();
+            if (write == null) {
+                // Merged writes leave more runs posted than writes queued
+                return;
+            }
+            if (mPendingPetWrites.get(write.mUri) == write) {
+                mPendingPetWrites.remove(write.mUri);
+            }
+        }
+
+        Uri resultUri = write.mUri;
+        int rows = 0;
+        try {
+            switch (write.mType) {
+                case INSERT:
+                    resultUri = mResolver.insert(write.mUri, write.mValues);
+                    rows = (resultUri != null) ? 1 : 0;
+                    break;
+                case UPDATE:
+                    rows = mResolver.update(write.mUri, write.mValues, null, null);
+                    break;
+                case DELETE:
+                    rows = mResolver.delete(write.mUri, null, null);
+                    break;
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to write " + write.mUri, e);
+            resultUri = (write.mType == INSERT) ? null : write.mUri;
+            rows = 0;
+        }
+
+        postResult(write.mCallbacks, resultUri, rows);
+    }
+
+    /** Give the result of a write to its callbacks on the UI thread */
+    private void postResult(final List<Callback> callbacks, final Uri uri, final int rows) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (Callback callback : callbacks) {
+                    callback.onWriteComplete(uri, rows);
+                }
+            }
+        });
+    }
+
+    /** A write waiting for the worker thread */
+    private static final class Write {
+
+        final int mType;
+        final Uri mUri;
+        ContentValues mValues;
+
+        /** Callbacks of this write and of the pending writes merged into it */
+        final List<Callback> mCallbacks = new ArrayList<>(1);
+
+        Write(int type, Uri uri, ContentValues values, Callback callback) {
+            mType = type;
+            mUri = uri;
+            mValues = values;
+            if (callback != null) {
+                mCallbacks.add(callback);
+            }
+        }
+    }
+}